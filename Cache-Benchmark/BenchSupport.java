@@ -0,0 +1,186 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+
+// The measurement loop shared by CacheBenchmark and
+// RateLimiter-Benchmark/RateLimiterBenchmark; both run.sh scripts compile
+// this file alongside their benchmark. It runs warmup iterations that are
+// thrown away and timed measurement iterations, each on fresh threads that
+// start together, and counts allocation per thread in place of -prof gc.
+public final class BenchSupport {
+
+    private static final int LATENCY_SAMPLE_MASK = 127; // time 1 op in 128
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private BenchSupport() {
+    }
+
+    // One benchmark thread. The same worker runs every iteration of a
+    // trial, so its state (position, random generator) carries over.
+    public abstract static class Worker {
+        final long[] samples = new long[1 << 16];
+        long ops;
+        long allocatedBytes;
+        int sampleCount;
+        private long cursor;
+
+        // Performs operation number i of this worker
+        protected abstract void operation(long i);
+
+        // Called on the driving thread once the worker has stopped, after
+        // every iteration, so counters of its own can be summed and reset
+        protected void iterationDone(boolean measured) {
+        }
+
+        final void run(Iteration iteration) {
+            ops = 0;
+            sampleCount = 0;
+            try {
+                iteration.start.await();
+            } catch (Exception e) {
+                return;
+            }
+            long allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+            long i = cursor;
+            while (!iteration.stop) {
+                if ((i & LATENCY_SAMPLE_MASK) == 0 && sampleCount < samples.length) {
+                    long start = System.nanoTime();
+                    operation(i);
+                    samples[sampleCount++] = System.nanoTime() - start;
+                } else {
+                    operation(i);
+                }
+                i++;
+            }
+            allocatedBytes = THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            ops = i - cursor;
+            cursor = i;
+        }
+    }
+
+    public static final class Measurement {
+        public final double opsPerSecond; // mean over measured iterations
+        public final double error; // stddev over measured iterations
+        public final double bytesPerOp;
+        public final long p99Nanos;
+        public final long measuredNanos; // all measured iterations together
+
+        Measurement(double opsPerSecond, double error, double bytesPerOp, long p99Nanos, long measuredNanos) {
+            this.opsPerSecond = opsPerSecond;
+            this.error = error;
+            this.bytesPerOp = bytesPerOp;
+            this.p99Nanos = p99Nanos;
+            this.measuredNanos = measuredNanos;
+        }
+    }
+
+    public static Measurement measure(Worker[] workers, int warmup, int iterations, long millis)
+            throws Exception {
+        double[] throughput = new double[iterations];
+        long totalOps = 0;
+        long totalBytes = 0;
+        long measuredNanos = 0;
+        List<Long> latencies = new ArrayList<>();
+
+        for (int i = 0; i < warmup + iterations; i++) {
+            boolean measured = i >= warmup;
+            Iteration iteration = new Iteration(workers.length);
+            Thread[] running = new Thread[workers.length];
+            for (int t = 0; t < workers.length; t++) {
+                Worker worker = workers[t];
+                running[t] = new Thread(() -> worker.run(iteration), "bench-worker-" + t);
+                running[t].start();
+            }
+            iteration.start.await();
+            Thread.sleep(millis);
+            iteration.stop = true;
+            for (Thread thread : running) thread.join();
+            long elapsed = System.nanoTime() - iteration.startNanos;
+
+            for (Worker worker : workers) worker.iterationDone(measured);
+            if (measured) {
+                long ops = 0;
+                for (Worker worker : workers) {
+                    ops += worker.ops;
+                    totalBytes += worker.allocatedBytes;
+                    for (int s = 0; s < worker.sampleCount; s++) latencies.add(worker.samples[s]);
+                }
+                totalOps += ops;
+                measuredNanos += elapsed;
+                throughput[i - warmup] = ops * 1e9 / elapsed;
+            }
+        }
+
+        Collections.sort(latencies);
+        long p99 = latencies.isEmpty() ? 0
+                : latencies.get(Math.min(latencies.size() - 1, (int) (latencies.size() * 0.99)));
+        return new Measurement(mean(throughput), stddev(throughput),
+                totalOps == 0 ? 0 : (double) totalBytes / totalOps, p99, measuredNanos);
+    }
+
+    private static final class Iteration {
+        final CyclicBarrier start;
+        volatile long startNanos;
+        volatile boolean stop;
+
+        Iteration(int threads) {
+            // Timestamped by the last thread to arrive, before any is released.
+            // The main thread may only be rescheduled after the workers have
+            // been running for a while.
+            this.start = new CyclicBarrier(threads + 1, () -> startNanos = System.nanoTime());
+        }
+    }
+
+    // Zipf ranks over [0, n) by inverting the CDF; rank 0 is the most
+    // frequent. A guide table of n buckets points each slice of [0, 1) at
+    // its first rank, so a draw is a lookup plus a scan of the few ranks
+    // that share a bucket, cheap enough to make per operation.
+    public static final class Zipf {
+        private final double[] cdf;
+        private final int[] guide;
+
+        public Zipf(int n, double skew) {
+            cdf = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1.0 / Math.pow(i + 1, skew);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < n; i++) cdf[i] /= sum;
+            guide = new int[n];
+            int rank = 0;
+            for (int j = 0; j < n; j++) {
+                while (rank < n - 1 && cdf[rank] < (double) j / n) rank++;
+                guide[j] = rank;
+            }
+        }
+
+        // Rank for a uniform draw u in [0, 1)
+        public int sample(double u) {
+            int rank = guide[(int) (u * guide.length)];
+            while (rank < cdf.length - 1 && cdf[rank] < u) rank++;
+            return rank;
+        }
+    }
+
+    public static int[] intList(String property, String defaults) {
+        return Arrays.stream(System.getProperty(property, defaults).split(","))
+                .mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+    }
+
+    static double mean(double[] values) {
+        double sum = 0;
+        for (double v : values) sum += v;
+        return values.length == 0 ? 0 : sum / values.length;
+    }
+
+    static double stddev(double[] values) {
+        if (values.length < 2) return 0;
+        double mean = mean(values);
+        double sum = 0;
+        for (double v : values) sum += (v - mean) * (v - mean);
+        return Math.sqrt(sum / (values.length - 1));
+    }
+}
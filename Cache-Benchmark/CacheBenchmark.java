@@ -0,0 +1,125 @@
+import java.util.*;
+import java.util.function.BiFunction;
+
+// Dependency-free benchmark engine for the cache designs in this repo,
+// following JMH's method: fresh instance per trial, warmup iterations that
+// are thrown away, timed measurement iterations, and a per-thread
+// allocation counter in place of -prof gc. The measurement loop itself is
+// BenchSupport, shared with RateLimiter-Benchmark. Per-design targets live
+// in the *Benchmark.java files next to this one; run.sh compiles each of
+// them against its design and runs them.
+//
+// Options (as -Dname=value):
+//   bench.threads      comma list, default 1,2,4,8,16,32,64
+//   bench.mixes        read percentages, default 90,50
+//   bench.dists        uniform,zipf
+//   bench.capacity     cache capacity, default 10000
+//   bench.keys         key universe, default 4 x capacity
+//   bench.warmup       warmup iterations, default 1
+//   bench.iterations   measured iterations, default 3
+//   bench.millis       iteration length, default 1000
+//   bench.filter       only run targets whose name contains this
+
+public class CacheBenchmark {
+
+    // One cache instance under test. Keys are indices into a pre-boxed
+    // key array so the harness itself allocates nothing per operation.
+    public interface Target {
+        void get(int keyIndex);
+        void put(int keyIndex);
+    }
+
+    // Builds a fresh target for a trial from (capacity, boxed keys)
+    public interface TargetFactory extends BiFunction<Integer, Integer[], Target> {
+    }
+
+    private static final int PATTERN_SIZE = 1 << 16;
+    private static final int PATTERN_MASK = PATTERN_SIZE - 1;
+
+    public static void run(Map<String, TargetFactory> targets) throws Exception {
+        int[] threadCounts = BenchSupport.intList("bench.threads", "1,2,4,8,16,32,64");
+        int[] mixes = BenchSupport.intList("bench.mixes", "90,50");
+        String[] dists = System.getProperty("bench.dists", "uniform,zipf").split(",");
+        int capacity = Integer.getInteger("bench.capacity", 10_000);
+        int keyCount = Integer.getInteger("bench.keys", capacity * 4);
+        int warmup = Integer.getInteger("bench.warmup", 1);
+        int iterations = Integer.getInteger("bench.iterations", 3);
+        long millis = Long.getLong("bench.millis", 1000);
+        String filter = System.getProperty("bench.filter", "");
+
+        Integer[] keys = new Integer[keyCount];
+        for (int i = 0; i < keyCount; i++) keys[i] = i;
+
+        System.out.printf("capacity=%d keys=%d warmup=%dx%dms measure=%dx%dms%n",
+                capacity, keyCount, warmup, millis, iterations, millis);
+        System.out.printf("%-28s %5s %-8s %7s %14s %10s %10s %10s%n",
+                "target", "read%", "dist", "threads", "ops/s", "+-err", "B/op", "p99 ns");
+
+        for (Map.Entry<String, TargetFactory> target : targets.entrySet()) {
+            if (!target.getKey().contains(filter)) continue;
+            for (String dist : dists) {
+                for (int mix : mixes) {
+                    for (int threads : threadCounts) {
+                        BenchSupport.Measurement result = trial(target.getValue(), capacity, keys, dist, mix,
+                                threads, warmup, iterations, millis);
+                        System.out.printf("%-28s %5d %-8s %7d %14.0f %10.0f %10.1f %10d%n",
+                                target.getKey(), mix, dist, threads, result.opsPerSecond,
+                                result.error, result.bytesPerOp, result.p99Nanos);
+                    }
+                }
+            }
+        }
+    }
+
+    private static BenchSupport.Measurement trial(TargetFactory factory, int capacity, Integer[] keys,
+                                                  String dist, int readPercent, int threads, int warmup,
+                                                  int iterations, long millis) throws Exception {
+        Target target = factory.apply(capacity, keys);
+        for (int i = 0; i < capacity; i++) target.put(i % keys.length);
+
+        Worker[] workers = new Worker[threads];
+        Random seed = new Random(42);
+        BenchSupport.Zipf zipf = "zipf".equals(dist) ? new BenchSupport.Zipf(keys.length, 0.99) : null;
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Worker(target, pattern(seed.nextLong(), keys.length, zipf),
+                    ops(seed.nextLong(), readPercent));
+        }
+        return BenchSupport.measure(workers, warmup, iterations, millis);
+    }
+
+    private static final class Worker extends BenchSupport.Worker {
+        final Target target;
+        final int[] keys;
+        final boolean[] reads;
+
+        Worker(Target target, int[] keys, boolean[] reads) {
+            this.target = target;
+            this.keys = keys;
+            this.reads = reads;
+        }
+
+        @Override
+        protected void operation(long i) {
+            int index = (int) i & PATTERN_MASK;
+            if (reads[index]) target.get(keys[index]);
+            else target.put(keys[index]);
+        }
+    }
+
+    // Key indices for one thread, uniform or zipf over the universe
+    private static int[] pattern(long seed, int keyCount, BenchSupport.Zipf zipf) {
+        Random random = new Random(seed);
+        int[] pattern = new int[PATTERN_SIZE];
+        for (int i = 0; i < PATTERN_SIZE; i++) {
+            pattern[i] = zipf == null ? random.nextInt(keyCount) : zipf.sample(random.nextDouble());
+        }
+        return pattern;
+    }
+
+    private static boolean[] ops(long seed, int readPercent) {
+        Random random = new Random(seed);
+        boolean[] reads = new boolean[PATTERN_SIZE];
+        for (int i = 0; i < PATTERN_SIZE; i++) reads[i] = random.nextInt(100) < readPercent;
+        return reads;
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+// Targets for Distributed-Cache-Design (CacheDemo). Cache is not
+// thread-safe, so the single-instance targets wrap it in one global lock,
+// the way callers use it today; SegmentedCache is benchmarked as is.
+
+public class DistributedCacheBenchmark {
+
+    private static final long TTL_MILLIS = 3_600_000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, CacheBenchmark.TargetFactory> targets = new LinkedHashMap<>();
+
+        policy(targets, "FIFO", CacheDemo.FIFOEvictionPolicy::new);
+        policy(targets, "LRU", CacheDemo.LRUEvictionPolicy::new);
+        policy(targets, "LFU", CacheDemo.LFUEvictionPolicy::new);
+
+        targets.put("Cache/W-TinyLFU", (capacity, keys) ->
+                locked(new CacheDemo.Cache<>(capacity, new CacheDemo.WTinyLFUEvictionPolicy<>(capacity)), keys));
+
+        CacheBenchmark.run(targets);
+    }
+
+    private static void policy(Map<String, CacheBenchmark.TargetFactory> targets,
+                               String name,
+                               Supplier<CacheDemo.EvictionPolicy<Integer>> policy) {
+        targets.put("Cache/" + name, (capacity, keys) ->
+                locked(new CacheDemo.Cache<>(capacity, policy.get()), keys));
+        targets.put("SegmentedCache/" + name, (capacity, keys) ->
+                segmented(new CacheDemo.SegmentedCache<>(capacity, 64, policy), keys));
+    }
+
+    private static CacheBenchmark.Target locked(CacheDemo.Cache<Integer, String> cache, Integer[] keys) {
+        return new CacheBenchmark.Target() {
+            @Override
+            public void get(int keyIndex) {
+                synchronized (cache) {
+                    cache.get(keys[keyIndex]);
+                }
+            }
+
+            @Override
+            public void put(int keyIndex) {
+                synchronized (cache) {
+                    cache.put(keys[keyIndex], "v", TTL_MILLIS);
+                }
+            }
+        };
+    }
+
+    private static CacheBenchmark.Target segmented(CacheDemo.SegmentedCache<Integer, String> cache,
+                                                   Integer[] keys) {
+        return new CacheBenchmark.Target() {
+            @Override
+            public void get(int keyIndex) {
+                cache.get(keys[keyIndex]);
+            }
+
+            @Override
+            public void put(int keyIndex) {
+                cache.put(keys[keyIndex], "v", TTL_MILLIS);
+            }
+        };
+    }
+}
@@ -0,0 +1,44 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Targets for system-design/LRU-Cache-System-Design: the locked generic
+// LRUCache<K,V> and ReadBufferedLRUCache<K,V>.
+
+public class GenericLRUCacheBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, CacheBenchmark.TargetFactory> targets = new LinkedHashMap<>();
+
+        targets.put("LRUCache<K,V>", (capacity, keys) -> {
+            LRUCache<Integer, String> cache = new LRUCache<>(capacity);
+            return new CacheBenchmark.Target() {
+                @Override
+                public void get(int keyIndex) {
+                    cache.get(keys[keyIndex]);
+                }
+
+                @Override
+                public void put(int keyIndex) {
+                    cache.put(keys[keyIndex], "v");
+                }
+            };
+        });
+
+        targets.put("ReadBufferedLRUCache<K,V>", (capacity, keys) -> {
+            ReadBufferedLRUCache<Integer, String> cache = new ReadBufferedLRUCache<>(capacity);
+            return new CacheBenchmark.Target() {
+                @Override
+                public void get(int keyIndex) {
+                    cache.get(keys[keyIndex]);
+                }
+
+                @Override
+                public void put(int keyIndex) {
+                    cache.put(keys[keyIndex], "v");
+                }
+            };
+        });
+
+        CacheBenchmark.run(targets);
+    }
+}
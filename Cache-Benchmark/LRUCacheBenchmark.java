@@ -0,0 +1,59 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Targets for LRUCache-Design: the locked LRUCache, the flat-array
+// PrimitiveLRUCache and the lock-free-read ReadBufferedLRUCache.
+
+public class LRUCacheBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, CacheBenchmark.TargetFactory> targets = new LinkedHashMap<>();
+
+        targets.put("LRUCache", (capacity, keys) -> {
+            LRUCache cache = new LRUCache(capacity);
+            return new CacheBenchmark.Target() {
+                @Override
+                public void get(int keyIndex) {
+                    cache.get(keyIndex);
+                }
+
+                @Override
+                public void put(int keyIndex) {
+                    cache.put(keyIndex, keyIndex);
+                }
+            };
+        });
+
+        targets.put("PrimitiveLRUCache", (capacity, keys) -> {
+            PrimitiveLRUCache cache = new PrimitiveLRUCache(capacity);
+            return new CacheBenchmark.Target() {
+                @Override
+                public void get(int keyIndex) {
+                    cache.get(keyIndex);
+                }
+
+                @Override
+                public void put(int keyIndex) {
+                    cache.put(keyIndex, keyIndex);
+                }
+            };
+        });
+
+        targets.put("ReadBufferedLRUCache", (capacity, keys) -> {
+            ReadBufferedLRUCache cache = new ReadBufferedLRUCache(capacity);
+            return new CacheBenchmark.Target() {
+                @Override
+                public void get(int keyIndex) {
+                    cache.get(keyIndex);
+                }
+
+                @Override
+                public void put(int keyIndex) {
+                    cache.put(keyIndex, keyIndex);
+                }
+            };
+        });
+
+        CacheBenchmark.run(targets);
+    }
+}
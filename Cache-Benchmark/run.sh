@@ -0,0 +1,27 @@
+#!/usr/bin/env bash
+# Compiles each benchmark target against its cache design and runs it.
+# Extra arguments are passed to the JVM, e.g.
+#   ./run.sh -Dbench.threads=1,4,16 -Dbench.filter=LRU
+set -euo pipefail
+
+here="$(cd "$(dirname "$0")" && pwd)"
+root="$(dirname "$here")"
+build="$(mktemp -d)"
+trap 'rm -rf "$build"' EXIT
+
+run() {
+    local design="$1" public_class="$2" bench="$3"
+    shift 3
+    local out="$build/$bench"
+    mkdir -p "$out/src"
+    cp "$root/$design" "$out/src/$public_class.java"
+    javac -encoding UTF-8 -d "$out/classes" \
+        "$out/src/$public_class.java" "$here/BenchSupport.java" "$here/CacheBenchmark.java" \
+        "$here/$bench.java"
+    echo "== $bench ($design)"
+    java -Xms2g -Xmx2g -cp "$out/classes" "$@" "$bench"
+}
+
+run "Distributed-Cache-Design/design.java" CacheDemo DistributedCacheBenchmark "$@"
+run "LRUCache-Design/design.java" LRUCacheDemo LRUCacheBenchmark "$@"
+run "system-design/LRU-Cache-System-Design/design.java" LRUCacheDemo GenericLRUCacheBenchmark "$@"
@@ -1,4 +1,27 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
 
 public class CacheDemo {
 
@@ -8,6 +31,11 @@ public class CacheDemo {
 		private final K key;
 		private V value;
 		private long expiryTime;
+		private long weight = 1;
+
+		// Intrusive links into the TimerWheel bucket this entry is scheduled in
+		private CacheEntry<K, V> wheelPrev;
+		private CacheEntry<K, V> wheelNext;
 
 		public CacheEntry(K key, V value,long expiryTime ) {
 			this.key = key;
@@ -35,6 +63,14 @@ public class CacheDemo {
 			this.expiryTime = expiryTime;
 		}
 
+		public long getWeight() {
+			return weight;
+		}
+
+		public void setWeight(long weight) {
+			this.weight = weight;
+		}
+
 		public boolean isExpired() {
 			return System.currentTimeMillis() >= expiryTime;
 		}
@@ -51,6 +87,16 @@ public class CacheDemo {
 		void removeKey(K key);
 
 		K evictKey();
+
+		// Snapshot support: visits keys from the next victim onwards with a
+		// policy-specific rank (e.g. LFU frequency) for restoreKey()
+		void forEachInEvictionOrder(ObjIntConsumer<K> action);
+
+		// Warm restart: keys arrive in the order forEachInEvictionOrder
+		// produced them, so appending rebuilds the same eviction order
+		default void restoreKey(K key, int rank) {
+			keyInserted(key);
+		}
 	}
 
 	// FiFo EvictionPolicy
@@ -87,6 +133,14 @@ public class CacheDemo {
 
 			return victim;
 		}
+
+		@Override
+		public void forEachInEvictionOrder(ObjIntConsumer<K> action) {
+
+			for (K key : keys) {
+				action.accept(key, 0);
+			}
+		}
 	}
 
 	/// LRU ///
@@ -131,269 +185,3949 @@ public class CacheDemo {
 
 			return victim;
 		}
+
+		@Override
+		public void forEachInEvictionOrder(ObjIntConsumer<K> action) {
+
+			for (K key : keys) {
+				action.accept(key, 0);
+			}
+		}
 	}
 
+	// LFU
+	//
+	// O(1) LFU built from intrusive lists: an ascending list of frequency
+	// nodes, each holding the keys seen exactly that many times in arrival
+	// order. Access moves a key to the neighbouring frequency node, eviction
+	// takes the oldest key of the lowest frequency. Emptied frequency nodes
+	// are pooled, so steady state only allocates a KeyNode per inserted key.
+	//
+	// With aging enabled every agingInterval operations all frequencies are
+	// halved (never below 1) and equal neighbours merged, so keys that were
+	// hot long ago stop pinning the cache. Aging walks the keys once; with
+	// an interval at least the number of tracked keys it stays amortized
+	// O(1) per operation.
+
 	static class LFUEvictionPolicy<K> implements EvictionPolicy<K> {
 
-		private final Map<K, Integer> keyFrequency = new HashMap<>();
+		private final Map<K, KeyNode<K>> keyNodes = new HashMap<>();
 
-		private final Map<Integer, LinkedHashSet<K>> frequencyMap =
-		    new HashMap<>();
+		// Circular sentinel; head.next is the lowest frequency
+		private final FrequencyNode<K> head = new FrequencyNode<>();
+
+		private final int agingInterval;
+
+		private int operationsSinceAging;
+
+		private FrequencyNode<K> freeFrequencyNodes;
+
+		public LFUEvictionPolicy() {
+			this(0);
+		}
+
+		// agingInterval = 0 disables aging
+		public LFUEvictionPolicy(int agingInterval) {
+
+			if (agingInterval < 0) {
+				throw new IllegalArgumentException(
+				    "agingInterval must not be negative");
+			}
 
-		private int minFrequency = 1;
+			this.agingInterval = agingInterval;
+
+			head.prev = head;
+			head.next = head;
+		}
 
 		@Override
 		public void keyInserted(K key) {
 
-			keyFrequency.put(key, 1);
+			if (keyNodes.containsKey(key)) {
+
+				keyAccessed(key);
+
+				return;
+			}
+
+			FrequencyNode<K> first = head.next;
+
+			if (first == head || first.frequency != 1) {
+				first = insertFrequencyAfter(head, 1);
+			}
+
+			KeyNode<K> node = new KeyNode<>(key);
 
-			frequencyMap
-			.computeIfAbsent(1, k -> new LinkedHashSet<>())
-			.add(key);
+			first.append(node);
 
-			minFrequency = 1;
+			keyNodes.put(key, node);
+
+			tick();
 		}
 
 		@Override
 		public void keyAccessed(K key) {
 
-			Integer freq = keyFrequency.get(key);
+			KeyNode<K> node = keyNodes.get(key);
 
-			if (freq == null) {
+			if (node == null) {
 				return;
 			}
 
-			LinkedHashSet<K> currentKeys =
-			    frequencyMap.get(freq);
-
-			currentKeys.remove(key);
+			FrequencyNode<K> current = node.parent;
 
-			if (currentKeys.isEmpty()) {
+			int newFrequency =
+			    current.frequency == Integer.MAX_VALUE
+			    ? Integer.MAX_VALUE
+			    : current.frequency + 1;
 
-				frequencyMap.remove(freq);
+			FrequencyNode<K> target = current.next;
 
-				if (freq == minFrequency) {
-					minFrequency++;
-				}
+			if (newFrequency == current.frequency) {
+				target = current;
+			} else if (target == head
+			           || target.frequency != newFrequency) {
+				target = insertFrequencyAfter(current, newFrequency);
 			}
 
-			int newFreq = freq + 1;
+			current.unlink(node);
+
+			target.append(node);
 
-			keyFrequency.put(key, newFreq);
+			if (current.isEmpty()) {
+				removeFrequency(current);
+			}
 
-			frequencyMap
-			.computeIfAbsent(newFreq,
-			                 k -> new LinkedHashSet<>())
-			.add(key);
+			tick();
 		}
 
 		@Override
 		public void removeKey(K key) {
 
-			Integer freq = keyFrequency.remove(key);
+			KeyNode<K> node = keyNodes.remove(key);
 
-			if (freq == null) {
+			if (node == null) {
 				return;
 			}
 
-			LinkedHashSet<K> keys =
-			    frequencyMap.get(freq);
-
-			if (keys == null) {
-				return;
-			}
+			FrequencyNode<K> parent = node.parent;
 
-			keys.remove(key);
+			parent.unlink(node);
 
-			if (keys.isEmpty()) {
-				frequencyMap.remove(freq);
+			if (parent.isEmpty()) {
+				removeFrequency(parent);
 			}
 		}
 
 		@Override
 		public K evictKey() {
 
-			LinkedHashSet<K> keys =
-			    frequencyMap.get(minFrequency);
+			FrequencyNode<K> lowest = head.next;
 
-			if (keys == null || keys.isEmpty()) {
+			if (lowest == head) {
 				return null;
 			}
 
-			Iterator<K> iterator = keys.iterator();
+			KeyNode<K> victim = lowest.first;
 
-			K victim = iterator.next();
+			lowest.unlink(victim);
 
-			iterator.remove();
+			if (lowest.isEmpty()) {
+				removeFrequency(lowest);
+			}
 
-			keyFrequency.remove(victim);
+			keyNodes.remove(victim.key);
 
-			if (keys.isEmpty()) {
-				frequencyMap.remove(minFrequency);
+			return victim.key;
+		}
+
+		@Override
+		public void forEachInEvictionOrder(ObjIntConsumer<K> action) {
+
+			for (FrequencyNode<K> node = head.next; node != head; node = node.next) {
+
+				for (KeyNode<K> key = node.first; key != null; key = key.next) {
+					action.accept(key.key, node.frequency);
+				}
 			}
+		}
 
-			return victim;
+		// rank is the key's frequency at snapshot time
+		@Override
+		public void restoreKey(K key, int rank) {
+
+			if (keyNodes.containsKey(key)) {
+				return;
+			}
+
+			int frequency = Math.max(1, rank);
+
+			// Snapshots arrive in ascending frequency, so this is the tail
+			FrequencyNode<K> target = head.prev;
+
+			if (target == head || target.frequency != frequency) {
+
+				FrequencyNode<K> prev = head.prev;
+
+				while (prev != head && prev.frequency > frequency) {
+					prev = prev.prev;
+				}
+
+				target =
+				    prev != head && prev.frequency == frequency
+				    ? prev
+				    : insertFrequencyAfter(prev, frequency);
+			}
+
+			KeyNode<K> node = new KeyNode<>(key);
+
+			target.append(node);
+
+			keyNodes.put(key, node);
 		}
-	}
 
-	// Cache
+		int frequencyOf(K key) {
 
-	static class Cache<K, V> {
+			KeyNode<K> node = keyNodes.get(key);
 
-		private final int capacity;
+			return node == null ? 0 : node.parent.frequency;
+		}
 
-		private final Map<K, CacheEntry<K, V>> storage;
+		private void tick() {
 
-		private final EvictionPolicy<K> evictionPolicy;
+			if (agingInterval > 0
+			        && ++operationsSinceAging >= agingInterval) {
 
-		public Cache(int capacity,
-		             EvictionPolicy<K> evictionPolicy) {
+				operationsSinceAging = 0;
 
-			this.capacity = capacity;
-			this.evictionPolicy = evictionPolicy;
-			this.storage = new HashMap<>();
+				age();
+			}
 		}
 
-		public void put(K key,
-		                V value,
-		                long ttlMillis) {
+		// Halve every frequency. Halving preserves order, so only adjacent
+		// nodes can collide; the lower one's keys stay ahead for eviction.
+		private void age() {
 
-			cleanupExpiredKeys();
+			FrequencyNode<K> node = head.next;
 
-			long expiryTime =
-			    System.currentTimeMillis() + ttlMillis;
+			while (node != head) {
 
-			if (storage.containsKey(key)) {
+				FrequencyNode<K> next = node.next;
 
-				CacheEntry<K, V> existing =
-				    storage.get(key);
+				node.frequency = Math.max(1, node.frequency >>> 1);
 
-				existing.setValue(value);
-				existing.setExpiryTime(expiryTime);
+				FrequencyNode<K> prev = node.prev;
 
-				evictionPolicy.keyAccessed(key);
+				if (prev != head && prev.frequency == node.frequency) {
 
-				return;
+					while (!node.isEmpty()) {
+
+						KeyNode<K> moved = node.first;
+
+						node.unlink(moved);
+
+						prev.append(moved);
+					}
+
+					removeFrequency(node);
+				}
+
+				node = next;
 			}
+		}
 
-			if (storage.size() >= capacity) {
+		private FrequencyNode<K> insertFrequencyAfter(
+		    FrequencyNode<K> prev,
+		    int frequency) {
 
-				K victim =
-				    evictionPolicy.evictKey();
+			FrequencyNode<K> node = freeFrequencyNodes;
+
+			if (node != null) {
+				freeFrequencyNodes = node.next;
+			} else {
+				node = new FrequencyNode<>();
+			}
+
+			node.frequency = frequency;
+
+			node.prev = prev;
+			node.next = prev.next;
+
+			prev.next.prev = node;
+			prev.next = node;
+
+			return node;
+		}
+
+		private void removeFrequency(FrequencyNode<K> node) {
+
+			node.prev.next = node.next;
+			node.next.prev = node.prev;
+
+			node.prev = null;
+			node.next = freeFrequencyNodes;
 
-				if (victim != null) {
-					storage.remove(victim);
+			freeFrequencyNodes = node;
+		}
+
+		private static class FrequencyNode<K> {
+
+			private int frequency;
+
+			private FrequencyNode<K> prev;
+			private FrequencyNode<K> next;
+
+			// Keys at this frequency, oldest first
+			private KeyNode<K> first;
+			private KeyNode<K> last;
+
+			boolean isEmpty() {
+				return first == null;
+			}
+
+			void append(KeyNode<K> node) {
+
+				node.parent = this;
+				node.prev = last;
+				node.next = null;
+
+				if (last == null) {
+					first = node;
+				} else {
+					last.next = node;
 				}
+
+				last = node;
 			}
 
-			CacheEntry<K, V> entry =
-			    new CacheEntry<>(
-			    key,
-			    value,
-			    expiryTime
-			);
+			void unlink(KeyNode<K> node) {
 
-			storage.put(key, entry);
+				if (node.prev == null) {
+					first = node.next;
+				} else {
+					node.prev.next = node.next;
+				}
 
-			evictionPolicy.keyInserted(key);
+				if (node.next == null) {
+					last = node.prev;
+				} else {
+					node.next.prev = node.prev;
+				}
+
+				node.parent = null;
+				node.prev = null;
+				node.next = null;
+			}
 		}
 
-		public Optional<V> get(K key) {
+		private static class KeyNode<K> {
 
-			CacheEntry<K, V> entry =
-			    storage.get(key);
+			private final K key;
 
-			if (entry == null) {
-				return Optional.empty();
+			private FrequencyNode<K> parent;
+
+			private KeyNode<K> prev;
+			private KeyNode<K> next;
+
+			KeyNode(K key) {
+				this.key = key;
 			}
+		}
+	}
 
-			if (entry.isExpired()) {
+	// W-TinyLFU
+	//
+	// New keys land in a small LRU admission window (1% of capacity). When
+	// the window overflows, its eldest key competes with the eldest key of
+	// the main region's probation segment, and whichever a CountMinSketch
+	// says is less frequent is evicted. The main region is a segmented LRU:
+	// a hit in probation promotes to protected (80% of main), overflow from
+	// protected is demoted back to probation. One-hit wonders from scans
+	// never get past the window, so they cannot flush the hot set.
 
-				delete(key);
+	static class WTinyLFUEvictionPolicy<K> implements EvictionPolicy<K> {
 
-				return Optional.empty();
+		private final LinkedHashSet<K> window = new LinkedHashSet<>();
+
+		private final LinkedHashSet<K> probation = new LinkedHashSet<>();
+
+		private final LinkedHashSet<K> protectedKeys = new LinkedHashSet<>();
+
+		private final CountMinSketch sketch;
+
+		private final int windowCapacity;
+
+		private final int mainCapacity;
+
+		private final int protectedCapacity;
+
+		public WTinyLFUEvictionPolicy(int capacity) {
+
+			if (capacity <= 0) {
+				throw new IllegalArgumentException(
+				    "capacity must be positive");
 			}
 
-			evictionPolicy.keyAccessed(key);
+			this.windowCapacity = Math.max(1, capacity / 100);
 
-			return Optional.of(entry.getValue());
+			this.mainCapacity = Math.max(1, capacity - windowCapacity);
+
+			this.protectedCapacity = Math.max(1, mainCapacity * 4 / 5);
+
+			this.sketch = new CountMinSketch(capacity);
 		}
 
-		public void delete(K key) {
+		@Override
+		public void keyInserted(K key) {
 
-			storage.remove(key);
+			sketch.increment(key);
 
-			evictionPolicy.removeKey(key);
+			if (window.contains(key)
+			        || probation.contains(key)
+			        || protectedKeys.contains(key)) {
+				return;
+			}
+
+			window.add(key);
+
+			// While the main region is still filling, window overflow
+			// moves straight to probation without an admission contest
+			while (window.size() > windowCapacity
+			        && probation.size() + protectedKeys.size() < mainCapacity) {
+				probation.add(pollFirst(window));
+			}
 		}
 
-		private void cleanupExpiredKeys() {
+		@Override
+		public void keyAccessed(K key) {
 
-			List<K> expiredKeys =
-			    new ArrayList<>();
+			sketch.increment(key);
 
-			for (Map.Entry<K, CacheEntry<K, V>> entry :
-			        storage.entrySet()) {
+			if (window.remove(key)) {
 
-				if (entry.getValue().isExpired()) {
-					expiredKeys.add(entry.getKey());
+				window.add(key);
+
+			} else if (probation.remove(key)) {
+
+				protectedKeys.add(key);
+
+				if (protectedKeys.size() > protectedCapacity) {
+					probation.add(pollFirst(protectedKeys));
 				}
+
+			} else if (protectedKeys.remove(key)) {
+
+				protectedKeys.add(key);
 			}
+		}
 
-			for (K key : expiredKeys) {
-				delete(key);
+		@Override
+		public void removeKey(K key) {
+
+			if (!window.remove(key) && !probation.remove(key)) {
+				protectedKeys.remove(key);
 			}
 		}
 
-		public void printCache() {
+		@Override
+		public K evictKey() {
 
-			System.out.println("Current Cache:");
+			// The key about to be inserted goes to the window, so a full
+			// window means its eldest must be admitted to main or dropped
+			if (window.size() < windowCapacity) {
 
-			for (Map.Entry<K, CacheEntry<K, V>> entry :
-			        storage.entrySet()) {
+				K victim = mainVictim();
 
-				System.out.println(
-				    entry.getKey()
-				    + " -> "
-				    + entry.getValue().getValue()
-				);
+				return victim != null ? victim : pollFirst(window);
 			}
 
-			System.out.println();
+			K candidate = pollFirst(window);
+
+			LinkedHashSet<K> victimRegion =
+			    probation.isEmpty() ? protectedKeys : probation;
+
+			if (victimRegion.isEmpty()) {
+				return candidate;
+			}
+
+			K victim = victimRegion.iterator().next();
+
+			if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+
+				victimRegion.remove(victim);
+
+				probation.add(candidate);
+
+				return victim;
+			}
+
+			// Rejected candidates are evicted; the main region is untouched
+			return candidate;
 		}
-	}
 
+		private static final int WINDOW = 0;
 
-	// Driver
+		private static final int PROBATION = 1;
 
-	public static void main(String[] args) throws Exception {
+		private static final int PROTECTED = 2;
 
-		Cache<Integer, String> cache =
-		    new Cache<>(
-		    3,
-		    new LRUEvictionPolicy<>()
-		);
+		// rank is the region; the sketch restarts cold
+		@Override
+		public void forEachInEvictionOrder(ObjIntConsumer<K> action) {
 
-		cache.put(1, "A", 10000);
-		cache.put(2, "B", 10000);
-		cache.put(3, "C", 10000);
+			for (K key : probation) {
+				action.accept(key, PROBATION);
+			}
 
-		cache.get(1);
+			for (K key : protectedKeys) {
+				action.accept(key, PROTECTED);
+			}
 
-		cache.put(4, "D", 10000);
+			for (K key : window) {
+				action.accept(key, WINDOW);
+			}
+		}
 
-		System.out.println(cache.get(1)); // A
-		System.out.println(cache.get(2)); // Empty
+		@Override
+		public void restoreKey(K key, int rank) {
 
-		cache.printCache();
+			sketch.increment(key);
 
-		System.out.println("Testing TTL");
+			if (rank == PROTECTED && protectedKeys.size() < protectedCapacity) {
+				protectedKeys.add(key);
+			} else if (rank != WINDOW
+			           && probation.size() + protectedKeys.size() < mainCapacity) {
+				probation.add(key);
+			} else {
+				keyInserted(key);
+			}
+		}
 
-		cache.put(5, "TEMP", 2000);
+		private K mainVictim() {
 
-		Thread.sleep(3000);
+			if (!probation.isEmpty()) {
+				return pollFirst(probation);
+			}
 
-		System.out.println(cache.get(5)); // Empty
+			if (!protectedKeys.isEmpty()) {
+				return pollFirst(protectedKeys);
+			}
+
+			return null;
+		}
+
+		private static <K> K pollFirst(LinkedHashSet<K> keys) {
+
+			if (keys.isEmpty()) {
+				return null;
+			}
+
+			Iterator<K> iterator = keys.iterator();
+
+			K first = iterator.next();
+
+			iterator.remove();
+
+			return first;
+		}
 	}
-}
 
+	// Count-Min Sketch
+	//
+	// Four rows of 4-bit saturating counters packed 16 to a long. Each key
+	// maps to one long per row and to a distinct nibble group inside it.
+	// After sampleSize increments every counter is halved, so the estimate
+	// tracks recent popularity rather than all-time totals.
+
+	static class CountMinSketch {
+
+		private static final long[] SEEDS = {
+			0xc3a5c85c97cb3127L,
+			0xb492b66fbe98f273L,
+			0x9ae16a3b2f90404fL,
+			0xcbf29ce484222325L
+		};
+
+		private static final long RESET_MASK = 0x7777777777777777L;
+
+		private static final long ONE_MASK = 0x1111111111111111L;
+
+		private final long[] table;
+
+		private final int tableMask;
 
+		private final int sampleSize;
+
+		private int size;
+
+		CountMinSketch(int expectedKeys) {
+
+			int length =
+			    Integer.highestOneBit(Math.max(expectedKeys, 8) - 1) << 1;
+
+			this.table = new long[length];
+			this.tableMask = length - 1;
+			this.sampleSize = 10 * Math.max(expectedKeys, 8);
+		}
+
+		int frequency(Object key) {
+
+			int hash = spread(key.hashCode());
+			int start = (hash & 3) << 2;
+
+			int frequency = Integer.MAX_VALUE;
+
+			for (int i = 0; i < 4; i++) {
+
+				int index = indexOf(hash, i);
+				int offset = (start + i) << 2;
+
+				int count = (int) ((table[index] >>> offset) & 0xfL);
+
+				frequency = Math.min(frequency, count);
+			}
+
+			return frequency;
+		}
+
+		void increment(Object key) {
+
+			int hash = spread(key.hashCode());
+			int start = (hash & 3) << 2;
+
+			boolean added = false;
+
+			for (int i = 0; i < 4; i++) {
+
+				int index = indexOf(hash, i);
+				int offset = (start + i) << 2;
+
+				if (((table[index] >>> offset) & 0xfL) != 0xfL) {
+
+					table[index] += 1L << offset;
+
+					added = true;
+				}
+			}
+
+			if (added && ++size >= sampleSize) {
+				reset();
+			}
+		}
+
+		private void reset() {
+
+			int odd = 0;
+
+			for (int i = 0; i < table.length; i++) {
+
+				odd += Long.bitCount(table[i] & ONE_MASK);
+
+				table[i] = (table[i] >>> 1) & RESET_MASK;
+			}
+
+			size = (size - (odd >>> 2)) >>> 1;
+		}
+
+		private int indexOf(int hash, int row) {
+
+			long h = (hash + SEEDS[row]) * SEEDS[row];
+
+			h += h >>> 32;
+
+			return (int) h & tableMask;
+		}
+
+		private static int spread(int x) {
+
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+
+			return (x >>> 16) ^ x;
+		}
+	}
+
+	// Timer Wheel
+	//
+	// Hierarchical timing wheel indexing entries by CacheEntry.expiryTime.
+	// Level 0 has one bucket per tick; each level above has buckets
+	// wheelSize times wider, so LEVELS levels of 512 x 100 ms cover
+	// centuries. An entry goes in the lowest level whose revolution still
+	// reaches its expiry. When a level's hand moves onto a bucket, the
+	// entries in it cascade down a level, or expire if they are due. Each
+	// entry therefore moves at most LEVELS times, so expiry stays
+	// amortized O(1) per entry however long the TTLs and however long the
+	// cache sat idle. Each bucket is a circular doubly linked list threaded
+	// through the entries themselves, so scheduling, rescheduling and
+	// cancelling are O(1) and allocation free.
+
+	static class TimerWheel<K, V> {
+
+		static final long DEFAULT_TICK_MILLIS = 100;
+
+		static final int DEFAULT_WHEEL_SIZE = 512;
+
+		static final int LEVELS = 4;
+
+		private final long tickMillis;
+
+		// buckets[level][slot]
+		private final CacheEntry<K, V>[][] buckets;
+
+		private final int bits;
+
+		private final int mask;
+
+		// Holds a bucket's entries while they are expired or cascaded, so
+		// an entry rescheduled into the same bucket is not visited again
+		private final CacheEntry<K, V> pending;
+
+		private long currentTick;
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		TimerWheel(long tickMillis, int wheelSize, long now) {
+
+			if (tickMillis <= 0 || wheelSize <= 0) {
+				throw new IllegalArgumentException(
+				    "tickMillis and wheelSize must be positive");
+			}
+
+			int size = Integer.highestOneBit(wheelSize);
+
+			if (size < wheelSize) {
+				size <<= 1;
+			}
+
+			size = Math.max(size, 2);
+
+			this.tickMillis = tickMillis;
+			this.buckets = new CacheEntry[LEVELS][size];
+			this.bits = Integer.numberOfTrailingZeros(size);
+			this.mask = size - 1;
+			this.currentTick = now / tickMillis;
+			this.pending = sentinel();
+
+			for (int level = 0; level < LEVELS; level++) {
+				for (int i = 0; i < size; i++) {
+					buckets[level][i] = sentinel();
+				}
+			}
+		}
+
+		private static <K, V> CacheEntry<K, V> sentinel() {
+
+			CacheEntry<K, V> sentinel =
+			    new CacheEntry<>(null, null, Long.MAX_VALUE);
+
+			sentinel.wheelPrev = sentinel;
+			sentinel.wheelNext = sentinel;
+
+			return sentinel;
+		}
+
+		void schedule(CacheEntry<K, V> entry) {
+
+			long tick =
+			    Math.max(entry.getExpiryTime() / tickMillis, currentTick);
+
+			// Lowest level where the entry is less than one revolution
+			// ahead of that level's hand. Anything beyond the top level
+			// waits in its furthest bucket and is placed again from there.
+			int level = 0;
+
+			while (level < LEVELS - 1
+			        && (tick >>> (bits * level)) - (currentTick >>> (bits * level)) > mask) {
+				level++;
+			}
+
+			int shift = bits * level;
+
+			long slot =
+			    Math.min(tick >>> shift, (currentTick >>> shift) + mask);
+
+			link(buckets[level][(int) (slot & mask)], entry);
+		}
+
+		private static <K, V> void link(CacheEntry<K, V> sentinel,
+		                                CacheEntry<K, V> entry) {
+
+			entry.wheelPrev = sentinel.wheelPrev;
+			entry.wheelNext = sentinel;
+
+			sentinel.wheelPrev.wheelNext = entry;
+			sentinel.wheelPrev = entry;
+		}
+
+		void reschedule(CacheEntry<K, V> entry) {
+
+			cancel(entry);
+			schedule(entry);
+		}
+
+		void cancel(CacheEntry<K, V> entry) {
+
+			if (entry.wheelNext == null) {
+				return;
+			}
+
+			entry.wheelPrev.wheelNext = entry.wheelNext;
+			entry.wheelNext.wheelPrev = entry.wheelPrev;
+
+			entry.wheelPrev = null;
+			entry.wheelNext = null;
+		}
+
+		// Expires every entry in the ticks that elapsed since the last
+		// call. Returns immediately while still inside the current tick.
+		void advance(long now, Consumer<CacheEntry<K, V>> onExpired) {
+
+			long targetTick = now / tickMillis;
+
+			if (targetTick <= currentTick) {
+				return;
+			}
+
+			long previousTick = currentTick;
+
+			currentTick = targetTick;
+
+			for (int level = 0; level < LEVELS; level++) {
+
+				int shift = bits * level;
+
+				long from = previousTick >>> shift;
+				long to = targetTick >>> shift;
+
+				if (from == to) {
+					break; // no level above has turned either
+				}
+
+				// Level 0 revisits the bucket of the previous tick, which
+				// may hold entries due later in that tick. Above level 0
+				// the hand's own bucket was emptied when it got there.
+				long first = level == 0 ? from : from + 1;
+				long last = Math.min(to, first + mask);
+
+				for (long slot = first; slot <= last; slot++) {
+					expireBucket(
+					    buckets[level][(int) (slot & mask)],
+					    now,
+					    onExpired
+					);
+				}
+			}
+		}
+
+		private void expireBucket(CacheEntry<K, V> sentinel,
+		                          long now,
+		                          Consumer<CacheEntry<K, V>> onExpired) {
+
+			if (sentinel.wheelNext == sentinel) {
+				return;
+			}
+
+			// Move the whole bucket onto pending in O(1)
+			pending.wheelNext = sentinel.wheelNext;
+			pending.wheelPrev = sentinel.wheelPrev;
+			pending.wheelNext.wheelPrev = pending;
+			pending.wheelPrev.wheelNext = pending;
+
+			sentinel.wheelNext = sentinel;
+			sentinel.wheelPrev = sentinel;
+
+			while (pending.wheelNext != pending) {
+
+				CacheEntry<K, V> entry = pending.wheelNext;
+
+				cancel(entry);
+
+				if (entry.getExpiryTime() <= now) {
+					onExpired.accept(entry);
+				} else {
+					schedule(entry);
+				}
+			}
+		}
+	}
+
+	// Weigher
+	//
+	// Assigns each entry a weight; the cache bounds the total weight rather
+	// than the entry count. Weights are fixed at put time.
+
+	interface Weigher<K, V> {
+
+		long weigh(K key, V value);
+
+		// Every entry weighs 1, so the bound is a plain entry count
+		static <K, V> Weigher<K, V> singleton() {
+			return (key, value) -> 1;
+		}
+	}
+
+	// Rough retained-size estimate for common key/value types on a 64-bit
+	// JVM with compressed oops, plus the cache's own per-entry overhead.
+	// Strings are assumed two bytes per char so the estimate errs high.
+	// Other types count as a bare object header; supply a dedicated
+	// Weigher for large custom values.
+
+	static class EstimatedBytesWeigher<K, V> implements Weigher<K, V> {
+
+		// CacheEntry, HashMap.Node and one eviction-policy node
+		static final long ENTRY_OVERHEAD = 112;
+
+		@Override
+		public long weigh(K key, V value) {
+			return ENTRY_OVERHEAD + estimate(key) + estimate(value);
+		}
+
+		static long estimate(Object o) {
+
+			if (o == null) {
+				return 0;
+			}
+
+			if (o instanceof String) {
+				return 24 + align(16 + 2L * ((String) o).length());
+			}
+
+			if (o instanceof byte[]) {
+				return align(16 + ((byte[]) o).length);
+			}
+
+			if (o instanceof char[]) {
+				return align(16 + 2L * ((char[]) o).length);
+			}
+
+			if (o instanceof int[]) {
+				return align(16 + 4L * ((int[]) o).length);
+			}
+
+			if (o instanceof long[]) {
+				return align(16 + 8L * ((long[]) o).length);
+			}
+
+			if (o instanceof Long || o instanceof Double) {
+				return 24;
+			}
+
+			return 16;
+		}
+
+		private static long align(long bytes) {
+			return (bytes + 7) & ~7L;
+		}
+	}
+
+	// Cache Stats
+	//
+	// StatsCounter is the recording surface the cache calls on its hot
+	// paths. NoOpStatsCounter is the default and also tells the cache to
+	// skip clock reads entirely. ConcurrentStatsCounter uses LongAdder
+	// throughout so threads on different segments never contend on a
+	// counter; snapshot() folds everything into an immutable CacheStats.
+
+	enum RemovalCause {
+		CAPACITY,
+		EXPIRED
+	}
+
+	interface StatsCounter {
+
+		void recordHit();
+
+		void recordMiss();
+
+		void recordRemoval(RemovalCause cause);
+
+		void recordPut(long nanos);
+
+		void recordPolicyTime(long nanos);
+
+		// False lets the cache skip System.nanoTime() around puts
+		boolean recordsTimings();
+
+		CacheStats snapshot();
+	}
+
+	static final class NoOpStatsCounter implements StatsCounter {
+
+		static final NoOpStatsCounter INSTANCE = new NoOpStatsCounter();
+
+		private NoOpStatsCounter() {
+		}
+
+		@Override
+		public void recordHit() {
+		}
+
+		@Override
+		public void recordMiss() {
+		}
+
+		@Override
+		public void recordRemoval(RemovalCause cause) {
+		}
+
+		@Override
+		public void recordPut(long nanos) {
+		}
+
+		@Override
+		public void recordPolicyTime(long nanos) {
+		}
+
+		@Override
+		public boolean recordsTimings() {
+			return false;
+		}
+
+		@Override
+		public CacheStats snapshot() {
+			return CacheStats.EMPTY;
+		}
+	}
+
+	static class ConcurrentStatsCounter implements StatsCounter {
+
+		private final LongAdder hits = new LongAdder();
+
+		private final LongAdder misses = new LongAdder();
+
+		private final LongAdder capacityEvictions = new LongAdder();
+
+		private final LongAdder expirations = new LongAdder();
+
+		private final LongAdder policyNanos = new LongAdder();
+
+		private final LongAdder policyCalls = new LongAdder();
+
+		private final LatencyHistogram putLatency = new LatencyHistogram();
+
+		@Override
+		public void recordHit() {
+			hits.increment();
+		}
+
+		@Override
+		public void recordMiss() {
+			misses.increment();
+		}
+
+		@Override
+		public void recordRemoval(RemovalCause cause) {
+
+			if (cause == RemovalCause.CAPACITY) {
+				capacityEvictions.increment();
+			} else {
+				expirations.increment();
+			}
+		}
+
+		@Override
+		public void recordPut(long nanos) {
+			putLatency.record(nanos);
+		}
+
+		@Override
+		public void recordPolicyTime(long nanos) {
+
+			policyNanos.add(nanos);
+
+			policyCalls.increment();
+		}
+
+		@Override
+		public boolean recordsTimings() {
+			return true;
+		}
+
+		@Override
+		public CacheStats snapshot() {
+
+			return new CacheStats(
+			    hits.sum(),
+			    misses.sum(),
+			    capacityEvictions.sum(),
+			    expirations.sum(),
+			    putLatency.count(),
+			    putLatency.valueAtPercentile(50),
+			    putLatency.valueAtPercentile(99),
+			    putLatency.valueAtPercentile(99.9),
+			    putLatency.max(),
+			    policyNanos.sum(),
+			    policyCalls.sum()
+			);
+		}
+	}
+
+	// Log-linear histogram in the spirit of HdrHistogram: eight linear
+	// sub-buckets per power of two, so any recorded value is reported
+	// within 12.5% of its true size. Buckets are LongAdders, so
+	// concurrent recorders do not contend.
+
+	static class LatencyHistogram {
+
+		private static final int SUB_BUCKET_BITS = 3;
+
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+		private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+		private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+		private final LongAccumulator max =
+		    new LongAccumulator(Math::max, 0);
+
+		LatencyHistogram() {
+
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] = new LongAdder();
+			}
+		}
+
+		void record(long value) {
+
+			long v = Math.max(0, value);
+
+			counts[indexOf(v)].increment();
+
+			max.accumulate(v);
+		}
+
+		long count() {
+
+			long total = 0;
+
+			for (LongAdder count : counts) {
+				total += count.sum();
+			}
+
+			return total;
+		}
+
+		long max() {
+			return max.get();
+		}
+
+		// Upper bound of the bucket holding the given percentile
+		long valueAtPercentile(double percentile) {
+
+			long[] snapshot = new long[BUCKETS];
+			long total = 0;
+
+			for (int i = 0; i < BUCKETS; i++) {
+				snapshot[i] = counts[i].sum();
+				total += snapshot[i];
+			}
+
+			if (total == 0) {
+				return 0;
+			}
+
+			long target =
+			    Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+
+			long seen = 0;
+
+			for (int i = 0; i < BUCKETS; i++) {
+
+				seen += snapshot[i];
+
+				if (seen >= target) {
+					return Math.min(upperBound(i), max.get());
+				}
+			}
+
+			return max.get();
+		}
+
+		private static int indexOf(long value) {
+
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+
+			int subBucket =
+			    (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+			return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+		}
+
+		private static long upperBound(int index) {
+
+			if (index < SUB_BUCKETS) {
+				return index;
+			}
+
+			int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+			long subBucket = index % SUB_BUCKETS;
+			int shift = exponent - SUB_BUCKET_BITS;
+
+			long lower = (SUB_BUCKETS + subBucket) << shift;
+
+			return lower + (1L << shift) - 1;
+		}
+	}
+
+	static final class CacheStats {
+
+		static final CacheStats EMPTY =
+		    new CacheStats(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+		private final long hitCount;
+		private final long missCount;
+		private final long capacityEvictionCount;
+		private final long expirationCount;
+		private final long putCount;
+		private final long putP50Nanos;
+		private final long putP99Nanos;
+		private final long putP999Nanos;
+		private final long putMaxNanos;
+		private final long policyNanos;
+		private final long policyCalls;
+
+		CacheStats(long hitCount,
+		           long missCount,
+		           long capacityEvictionCount,
+		           long expirationCount,
+		           long putCount,
+		           long putP50Nanos,
+		           long putP99Nanos,
+		           long putP999Nanos,
+		           long putMaxNanos,
+		           long policyNanos,
+		           long policyCalls) {
+
+			this.hitCount = hitCount;
+			this.missCount = missCount;
+			this.capacityEvictionCount = capacityEvictionCount;
+			this.expirationCount = expirationCount;
+			this.putCount = putCount;
+			this.putP50Nanos = putP50Nanos;
+			this.putP99Nanos = putP99Nanos;
+			this.putP999Nanos = putP999Nanos;
+			this.putMaxNanos = putMaxNanos;
+			this.policyNanos = policyNanos;
+			this.policyCalls = policyCalls;
+		}
+
+		public long getHitCount() {
+			return hitCount;
+		}
+
+		public long getMissCount() {
+			return missCount;
+		}
+
+		public double getHitRate() {
+
+			long requests = hitCount + missCount;
+
+			return requests == 0 ? 1.0 : (double) hitCount / requests;
+		}
+
+		public long getCapacityEvictionCount() {
+			return capacityEvictionCount;
+		}
+
+		public long getExpirationCount() {
+			return expirationCount;
+		}
+
+		public long getPutCount() {
+			return putCount;
+		}
+
+		public long getPutP50Nanos() {
+			return putP50Nanos;
+		}
+
+		public long getPutP99Nanos() {
+			return putP99Nanos;
+		}
+
+		public long getPutP999Nanos() {
+			return putP999Nanos;
+		}
+
+		public long getPutMaxNanos() {
+			return putMaxNanos;
+		}
+
+		// Mean time spent inside EvictionPolicy callbacks
+		public double getAveragePolicyNanos() {
+			return policyCalls == 0 ? 0 : (double) policyNanos / policyCalls;
+		}
+
+		@Override
+		public String toString() {
+
+			return String.format(
+			    "hits=%d misses=%d hitRate=%.2f%% evictions[capacity=%d ttl=%d] "
+			    + "puts=%d p50=%dns p99=%dns p99.9=%dns max=%dns policy=%.0fns/call",
+			    hitCount,
+			    missCount,
+			    getHitRate() * 100,
+			    capacityEvictionCount,
+			    expirationCount,
+			    putCount,
+			    putP50Nanos,
+			    putP99Nanos,
+			    putP999Nanos,
+			    putMaxNanos,
+			    getAveragePolicyNanos()
+			);
+		}
+	}
+
+	// Wraps an EvictionPolicy to charge the time spent in each callback to
+	// the stats counter. Only installed when the counter records timings.
+
+	static class TimedEvictionPolicy<K> implements EvictionPolicy<K> {
+
+		private final EvictionPolicy<K> delegate;
+
+		private final StatsCounter stats;
+
+		TimedEvictionPolicy(EvictionPolicy<K> delegate, StatsCounter stats) {
+			this.delegate = delegate;
+			this.stats = stats;
+		}
+
+		@Override
+		public void keyInserted(K key) {
+
+			long start = System.nanoTime();
+
+			delegate.keyInserted(key);
+
+			stats.recordPolicyTime(System.nanoTime() - start);
+		}
+
+		@Override
+		public void keyAccessed(K key) {
+
+			long start = System.nanoTime();
+
+			delegate.keyAccessed(key);
+
+			stats.recordPolicyTime(System.nanoTime() - start);
+		}
+
+		@Override
+		public void removeKey(K key) {
+
+			long start = System.nanoTime();
+
+			delegate.removeKey(key);
+
+			stats.recordPolicyTime(System.nanoTime() - start);
+		}
+
+		@Override
+		public K evictKey() {
+
+			long start = System.nanoTime();
+
+			K victim = delegate.evictKey();
+
+			stats.recordPolicyTime(System.nanoTime() - start);
+
+			return victim;
+		}
+
+		@Override
+		public void forEachInEvictionOrder(ObjIntConsumer<K> action) {
+			delegate.forEachInEvictionOrder(action);
+		}
+
+		@Override
+		public void restoreKey(K key, int rank) {
+			delegate.restoreKey(key, rank);
+		}
+	}
+
+	// Periodically hands a stats snapshot to a sink (stdout by default)
+
+	static class CacheStatsReporter {
+
+		private final StatsCounter stats;
+
+		private final Consumer<CacheStats> sink;
+
+		private ScheduledExecutorService scheduler;
+
+		CacheStatsReporter(StatsCounter stats) {
+			this(stats, snapshot -> System.out.println("[cache-stats] " + snapshot));
+		}
+
+		CacheStatsReporter(StatsCounter stats, Consumer<CacheStats> sink) {
+			this.stats = stats;
+			this.sink = sink;
+		}
+
+		public synchronized void start(long periodMillis) {
+
+			if (scheduler != null) {
+				return;
+			}
+
+			scheduler = daemonScheduler("cache-stats-reporter");
+
+			scheduler.scheduleAtFixedRate(
+			    () -> sink.accept(stats.snapshot()),
+			    periodMillis,
+			    periodMillis,
+			    TimeUnit.MILLISECONDS
+			);
+		}
+
+		public synchronized void stop() {
+
+			if (scheduler != null) {
+
+				scheduler.shutdownNow();
+
+				scheduler = null;
+			}
+		}
+	}
+
+	// Cache
+
+	static class Cache<K, V> {
+
+		private final long maxWeight;
+
+		private final Weigher<K, V> weigher;
+
+		private long totalWeight;
+
+		private long evictionCount;
+
+		private final Map<K, CacheEntry<K, V>> storage;
+
+		private final EvictionPolicy<K> evictionPolicy;
+
+		private final TimerWheel<K, V> timerWheel;
+
+		private final StatsCounter stats;
+
+		private final boolean recordTimings;
+
+		private final Consumer<CacheEntry<K, V>> expiryListener =
+		    this::onExpired;
+
+		public Cache(int capacity,
+		             EvictionPolicy<K> evictionPolicy) {
+
+			this(
+			    capacity,
+			    Weigher.singleton(),
+			    evictionPolicy
+			);
+		}
+
+		public Cache(int capacity,
+		             EvictionPolicy<K> evictionPolicy,
+		             StatsCounter stats) {
+
+			this(
+			    capacity,
+			    Weigher.singleton(),
+			    evictionPolicy,
+			    TimerWheel.DEFAULT_TICK_MILLIS,
+			    TimerWheel.DEFAULT_WHEEL_SIZE,
+			    stats
+			);
+		}
+
+		public Cache(int capacity,
+		             EvictionPolicy<K> evictionPolicy,
+		             long expiryTickMillis,
+		             int expiryWheelSize) {
+
+			this(
+			    capacity,
+			    Weigher.singleton(),
+			    evictionPolicy,
+			    expiryTickMillis,
+			    expiryWheelSize
+			);
+		}
+
+		public Cache(long maxWeight,
+		             Weigher<K, V> weigher,
+		             EvictionPolicy<K> evictionPolicy) {
+
+			this(
+			    maxWeight,
+			    weigher,
+			    evictionPolicy,
+			    TimerWheel.DEFAULT_TICK_MILLIS,
+			    TimerWheel.DEFAULT_WHEEL_SIZE
+			);
+		}
+
+		public Cache(long maxWeight,
+		             Weigher<K, V> weigher,
+		             EvictionPolicy<K> evictionPolicy,
+		             long expiryTickMillis,
+		             int expiryWheelSize) {
+
+			this(
+			    maxWeight,
+			    weigher,
+			    evictionPolicy,
+			    expiryTickMillis,
+			    expiryWheelSize,
+			    NoOpStatsCounter.INSTANCE
+			);
+		}
+
+		public Cache(long maxWeight,
+		             Weigher<K, V> weigher,
+		             EvictionPolicy<K> evictionPolicy,
+		             long expiryTickMillis,
+		             int expiryWheelSize,
+		             StatsCounter stats) {
+
+			if (maxWeight <= 0) {
+				throw new IllegalArgumentException(
+				    "maxWeight must be positive");
+			}
+
+			this.maxWeight = maxWeight;
+			this.weigher = weigher;
+			this.stats = stats;
+			this.recordTimings = stats.recordsTimings();
+			this.evictionPolicy =
+			    recordTimings
+			    ? new TimedEvictionPolicy<>(evictionPolicy, stats)
+			    : evictionPolicy;
+			this.storage = new HashMap<>();
+			this.timerWheel =
+			    new TimerWheel<>(
+			    expiryTickMillis,
+			    expiryWheelSize,
+			    System.currentTimeMillis()
+			);
+		}
+
+		// An entry heavier than maxWeight is never stored; any previous
+		// value for the key is dropped instead.
+		public void put(K key,
+		                V value,
+		                long ttlMillis) {
+
+			if (!recordTimings) {
+
+				putEntry(key, value, ttlMillis);
+
+				return;
+			}
+
+			long start = System.nanoTime();
+
+			putEntry(key, value, ttlMillis);
+
+			stats.recordPut(System.nanoTime() - start);
+		}
+
+		// Stores the entry only if the key has no live value. Records no
+		// stats and leaves the policy's order of existing keys alone, so a
+		// rebalance copy looks like neither a hit, a miss nor an access.
+		public boolean putIfAbsent(K key,
+		                           V value,
+		                           long ttlMillis) {
+
+			CacheEntry<K, V> existing =
+			    storage.get(key);
+
+			if (existing != null && !existing.isExpired()) {
+				return false;
+			}
+
+			putEntry(key, value, ttlMillis);
+
+			return true;
+		}
+
+		private void putEntry(K key,
+		                      V value,
+		                      long ttlMillis) {
+
+			long now = System.currentTimeMillis();
+
+			timerWheel.advance(now, expiryListener);
+
+			long expiryTime = now + ttlMillis;
+
+			long weight = weigher.weigh(key, value);
+
+			if (weight < 0) {
+				throw new IllegalArgumentException(
+				    "Negative weight for key " + key);
+			}
+
+			if (weight > maxWeight) {
+
+				delete(key);
+
+				return;
+			}
+
+			CacheEntry<K, V> existing =
+			    storage.get(key);
+
+			if (existing != null) {
+
+				totalWeight += weight - existing.getWeight();
+
+				existing.setValue(value);
+				existing.setExpiryTime(expiryTime);
+				existing.setWeight(weight);
+
+				timerWheel.reschedule(existing);
+
+				evictionPolicy.keyAccessed(key);
+
+				evictUntilWithin(0);
+
+				return;
+			}
+
+			evictUntilWithin(weight);
+
+			CacheEntry<K, V> entry =
+			    new CacheEntry<>(
+			    key,
+			    value,
+			    expiryTime
+			);
+
+			entry.setWeight(weight);
+
+			storage.put(key, entry);
+
+			totalWeight += weight;
+
+			timerWheel.schedule(entry);
+
+			evictionPolicy.keyInserted(key);
+		}
+
+		public Optional<V> get(K key) {
+
+			CacheEntry<K, V> entry =
+			    storage.get(key);
+
+			if (entry == null) {
+
+				stats.recordMiss();
+
+				return Optional.empty();
+			}
+
+			if (entry.isExpired()) {
+
+				delete(key);
+
+				stats.recordMiss();
+				stats.recordRemoval(RemovalCause.EXPIRED);
+
+				return Optional.empty();
+			}
+
+			stats.recordHit();
+
+			evictionPolicy.keyAccessed(key);
+
+			return Optional.of(entry.getValue());
+		}
+
+		// No stats, no access recorded
+		public boolean containsKey(K key) {
+
+			CacheEntry<K, V> entry =
+			    storage.get(key);
+
+			return entry != null && !entry.isExpired();
+		}
+
+		public void delete(K key) {
+
+			CacheEntry<K, V> removed =
+			    storage.remove(key);
+
+			if (removed != null) {
+
+				timerWheel.cancel(removed);
+
+				totalWeight -= removed.getWeight();
+			}
+
+			evictionPolicy.removeKey(key);
+		}
+
+		// Drops every entry whose TTL elapsed since the last call. put()
+		// does this on its own; a reaper can call it to free memory when
+		// the cache sees no writes.
+		public void expireEntries() {
+
+			timerWheel.advance(
+			    System.currentTimeMillis(),
+			    expiryListener
+			);
+		}
+
+		public long weightedSize() {
+			return totalWeight;
+		}
+
+		public long maxWeight() {
+			return maxWeight;
+		}
+
+		// Entries removed by the eviction policy to make room
+		public long evictionCount() {
+			return evictionCount;
+		}
+
+		// Keep asking the policy for victims until `incoming` more weight fits
+		private void evictUntilWithin(long incoming) {
+
+			while (totalWeight + incoming > maxWeight) {
+
+				K victim =
+				    evictionPolicy.evictKey();
+
+				if (victim == null) {
+					return;
+				}
+
+				CacheEntry<K, V> evicted =
+				    storage.remove(victim);
+
+				if (evicted != null) {
+
+					timerWheel.cancel(evicted);
+
+					totalWeight -= evicted.getWeight();
+
+					evictionCount++;
+
+					stats.recordRemoval(RemovalCause.CAPACITY);
+				}
+			}
+		}
+
+		private void onExpired(CacheEntry<K, V> entry) {
+
+			storage.remove(entry.getKey());
+
+			totalWeight -= entry.getWeight();
+
+			evictionPolicy.removeKey(entry.getKey());
+
+			stats.recordRemoval(RemovalCause.EXPIRED);
+		}
+
+		public CacheStats stats() {
+			return stats.snapshot();
+		}
+
+		public int size() {
+			return storage.size();
+		}
+
+		// Visits every live entry. The action must not modify this cache.
+		public void forEachEntry(Consumer<CacheEntry<K, V>> action) {
+
+			long now = System.currentTimeMillis();
+
+			for (CacheEntry<K, V> entry : storage.values()) {
+
+				if (entry.getExpiryTime() > now) {
+					action.accept(entry);
+				}
+			}
+		}
+
+		// Live entries from the next eviction victim onwards, each with the
+		// policy's rank. The action must not modify this cache.
+		public void forEachInEvictionOrder(ObjIntConsumer<CacheEntry<K, V>> action) {
+
+			long now = System.currentTimeMillis();
+
+			evictionPolicy.forEachInEvictionOrder((key, rank) -> {
+
+				CacheEntry<K, V> entry = storage.get(key);
+
+				if (entry != null && entry.getExpiryTime() > now) {
+					action.accept(entry, rank);
+				}
+			});
+		}
+
+		// Warm-restart insert with an absolute expiry. The policy places the
+		// key by rank instead of treating it as brand new; keys already in
+		// the cache keep their live value.
+		public void restoreEntry(K key,
+		                         V value,
+		                         long expiryTime,
+		                         int rank) {
+
+			long now = System.currentTimeMillis();
+
+			timerWheel.advance(now, expiryListener);
+
+			if (expiryTime <= now || storage.containsKey(key)) {
+				return;
+			}
+
+			long weight = weigher.weigh(key, value);
+
+			if (weight < 0 || weight > maxWeight) {
+				return;
+			}
+
+			evictUntilWithin(weight);
+
+			CacheEntry<K, V> entry =
+			    new CacheEntry<>(
+			    key,
+			    value,
+			    expiryTime
+			);
+
+			entry.setWeight(weight);
+
+			storage.put(key, entry);
+
+			totalWeight += weight;
+
+			timerWheel.schedule(entry);
+
+			evictionPolicy.restoreKey(key, rank);
+		}
+
+		public void printCache() {
+
+			System.out.println("Current Cache:");
+
+			for (Map.Entry<K, CacheEntry<K, V>> entry :
+			        storage.entrySet()) {
+
+				System.out.println(
+				    entry.getKey()
+				    + " -> "
+				    + entry.getValue().getValue()
+				);
+			}
+
+			System.out.println();
+		}
+	}
+
+	// Segmented Cache
+	//
+	// Keys hash to one of N independent segments. Every segment owns its
+	// storage map, its eviction policy and its lock, so operations on keys
+	// in different segments never contend. Capacity is split across
+	// segments, which makes eviction approximate (per segment) rather than
+	// global.
+
+	static class SegmentedCache<K, V> {
+
+		private final Segment<K, V>[] segments;
+
+		private final int segmentMask;
+
+		private final StatsCounter stats;
+
+		private ScheduledExecutorService reaper;
+
+		private ScheduledExecutorService snapshotter;
+
+		public SegmentedCache(int capacity,
+		                      int concurrencyLevel,
+		                      Supplier<EvictionPolicy<K>> policyFactory) {
+
+			this(
+			    capacity,
+			    concurrencyLevel,
+			    Weigher.singleton(),
+			    policyFactory
+			);
+		}
+
+		// maxWeight is split evenly, so each segment bounds its own share
+		public SegmentedCache(long maxWeight,
+		                      int concurrencyLevel,
+		                      Weigher<K, V> weigher,
+		                      Supplier<EvictionPolicy<K>> policyFactory) {
+
+			this(
+			    maxWeight,
+			    concurrencyLevel,
+			    weigher,
+			    policyFactory,
+			    NoOpStatsCounter.INSTANCE
+			);
+		}
+
+		// All segments record into the one (thread-safe) stats counter
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public SegmentedCache(long maxWeight,
+		                      int concurrencyLevel,
+		                      Weigher<K, V> weigher,
+		                      Supplier<EvictionPolicy<K>> policyFactory,
+		                      StatsCounter stats) {
+
+			if (maxWeight <= 0 || concurrencyLevel <= 0) {
+				throw new IllegalArgumentException(
+				    "maxWeight and concurrencyLevel must be positive");
+			}
+
+			int segmentCount =
+			    Integer.highestOneBit(
+			        (int) Math.min(concurrencyLevel, maxWeight));
+
+			this.segments = new Segment[segmentCount];
+			this.segmentMask = segmentCount - 1;
+			this.stats = stats;
+
+			long base = maxWeight / segmentCount;
+			long remainder = maxWeight % segmentCount;
+
+			for (int i = 0; i < segmentCount; i++) {
+
+				long segmentWeight =
+				    base + (i < remainder ? 1 : 0);
+
+				segments[i] =
+				    new Segment<>(
+				    new Cache<>(
+				        segmentWeight,
+				        weigher,
+				        policyFactory.get(),
+				        TimerWheel.DEFAULT_TICK_MILLIS,
+				        TimerWheel.DEFAULT_WHEEL_SIZE,
+				        stats
+				    )
+				);
+			}
+		}
+
+		public void put(K key,
+		                V value,
+		                long ttlMillis) {
+
+			Segment<K, V> segment = segmentFor(key);
+
+			segment.lock.lock();
+			try {
+				segment.cache.put(key, value, ttlMillis);
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+
+		public boolean putIfAbsent(K key,
+		                           V value,
+		                           long ttlMillis) {
+
+			Segment<K, V> segment = segmentFor(key);
+
+			segment.lock.lock();
+			try {
+				return segment.cache.putIfAbsent(key, value, ttlMillis);
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+
+		public Optional<V> get(K key) {
+
+			Segment<K, V> segment = segmentFor(key);
+
+			segment.lock.lock();
+			try {
+				return segment.cache.get(key);
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+
+		public boolean containsKey(K key) {
+
+			Segment<K, V> segment = segmentFor(key);
+
+			segment.lock.lock();
+			try {
+				return segment.cache.containsKey(key);
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+
+		public void delete(K key) {
+
+			Segment<K, V> segment = segmentFor(key);
+
+			segment.lock.lock();
+			try {
+				segment.cache.delete(key);
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+
+		public int segmentCount() {
+			return segments.length;
+		}
+
+		// Background expiry: sweeps each segment's timer wheel under that
+		// segment's lock so idle segments release expired entries too.
+		public synchronized void startReaper(long periodMillis) {
+
+			if (reaper != null) {
+				return;
+			}
+
+			reaper = daemonScheduler("cache-reaper");
+
+			reaper.scheduleAtFixedRate(
+			    this::expireEntries,
+			    periodMillis,
+			    periodMillis,
+			    TimeUnit.MILLISECONDS
+			);
+		}
+
+		public synchronized void stopReaper() {
+
+			if (reaper != null) {
+
+				reaper.shutdownNow();
+
+				reaper = null;
+			}
+		}
+
+		// Each segment is copied under its own lock; serialization and I/O
+		// happen after the lock is released
+		public long writeSnapshot(Path file,
+		                          Serializer<K> keySerializer,
+		                          Serializer<V> valueSerializer) throws IOException {
+
+			List<CacheSnapshot.Record<K, V>> records = new ArrayList<>();
+
+			for (Segment<K, V> segment : segments) {
+
+				segment.lock.lock();
+				try {
+					CacheSnapshot.collect(segment.cache, records);
+				} finally {
+					segment.lock.unlock();
+				}
+			}
+
+			return CacheSnapshot.writeRecords(records, file, keySerializer, valueSerializer);
+		}
+
+		public long loadSnapshot(Path file,
+		                         Serializer<K> keySerializer,
+		                         Serializer<V> valueSerializer) throws IOException {
+
+			return CacheSnapshot.read(
+			    file,
+			    keySerializer,
+			    valueSerializer,
+			    (key, value, expiryTime, rank) -> {
+
+				Segment<K, V> segment = segmentFor(key);
+
+				segment.lock.lock();
+				try {
+					segment.cache.restoreEntry(key, value, expiryTime, rank);
+				} finally {
+					segment.lock.unlock();
+				}
+			});
+		}
+
+		public synchronized void startSnapshots(Path file,
+		                                        long periodMillis,
+		                                        Serializer<K> keySerializer,
+		                                        Serializer<V> valueSerializer) {
+
+			if (snapshotter != null) {
+				return;
+			}
+
+			snapshotter = daemonScheduler("cache-snapshotter");
+
+			snapshotter.scheduleWithFixedDelay(() -> {
+				try {
+					writeSnapshot(file, keySerializer, valueSerializer);
+				} catch (IOException e) {
+					System.err.println("Cache snapshot failed: " + e.getMessage());
+				}
+			}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+		}
+
+		public synchronized void stopSnapshots() {
+
+			if (snapshotter != null) {
+
+				snapshotter.shutdownNow();
+
+				snapshotter = null;
+			}
+		}
+
+		public void expireEntries() {
+
+			for (Segment<K, V> segment : segments) {
+
+				segment.lock.lock();
+				try {
+					segment.cache.expireEntries();
+				} finally {
+					segment.lock.unlock();
+				}
+			}
+		}
+
+		public int size() {
+
+			int size = 0;
+
+			for (Segment<K, V> segment : segments) {
+
+				segment.lock.lock();
+				try {
+					size += segment.cache.size();
+				} finally {
+					segment.lock.unlock();
+				}
+			}
+
+			return size;
+		}
+
+		public CacheStats stats() {
+			return stats.snapshot();
+		}
+
+		public long weightedSize() {
+
+			long weight = 0;
+
+			for (Segment<K, V> segment : segments) {
+
+				segment.lock.lock();
+				try {
+					weight += segment.cache.weightedSize();
+				} finally {
+					segment.lock.unlock();
+				}
+			}
+
+			return weight;
+		}
+
+		public long evictionCount() {
+
+			long evictions = 0;
+
+			for (Segment<K, V> segment : segments) {
+
+				segment.lock.lock();
+				try {
+					evictions += segment.cache.evictionCount();
+				} finally {
+					segment.lock.unlock();
+				}
+			}
+
+			return evictions;
+		}
+
+		// Visits live entries one segment at a time, holding that segment's
+		// lock. The action must not call back into this cache.
+		public void forEachEntry(Consumer<CacheEntry<K, V>> action) {
+
+			for (Segment<K, V> segment : segments) {
+
+				segment.lock.lock();
+				try {
+					segment.cache.forEachEntry(action);
+				} finally {
+					segment.lock.unlock();
+				}
+			}
+		}
+
+		public void printCache() {
+
+			for (int i = 0; i < segments.length; i++) {
+
+				System.out.println("Segment " + i);
+
+				segments[i].lock.lock();
+				try {
+					segments[i].cache.printCache();
+				} finally {
+					segments[i].lock.unlock();
+				}
+			}
+		}
+
+		private Segment<K, V> segmentFor(K key) {
+
+			int h = key.hashCode();
+
+			// Spread high bits down so small tables still use them
+			h ^= (h >>> 16);
+			h *= 0x9E3779B9;
+
+			return segments[(h >>> 16) & segmentMask];
+		}
+
+		private static class Segment<K, V> {
+
+			private final Cache<K, V> cache;
+
+			private final ReentrantLock lock =
+			    new ReentrantLock();
+
+			Segment(Cache<K, V> cache) {
+				this.cache = cache;
+			}
+		}
+	}
+
+
+	// Serializer
+	//
+	// Pluggable key/value encoding for cache snapshots. deserialize reads
+	// exactly length bytes from the buffer's current position.
+
+	interface Serializer<T> {
+
+		byte[] serialize(T value);
+
+		T deserialize(ByteBuffer buffer, int length);
+	}
+
+	static final class Serializers {
+
+		static final Serializer<String> STRING = new Serializer<String>() {
+			@Override
+			public byte[] serialize(String value) {
+				return value.getBytes(StandardCharsets.UTF_8);
+			}
+
+			@Override
+			public String deserialize(ByteBuffer buffer, int length) {
+
+				byte[] bytes = new byte[length];
+
+				buffer.get(bytes);
+
+				return new String(bytes, StandardCharsets.UTF_8);
+			}
+		};
+
+		static final Serializer<Integer> INTEGER = new Serializer<Integer>() {
+			@Override
+			public byte[] serialize(Integer value) {
+				return ByteBuffer.allocate(Integer.BYTES).putInt(value).array();
+			}
+
+			@Override
+			public Integer deserialize(ByteBuffer buffer, int length) {
+				return buffer.getInt();
+			}
+		};
+
+		static final Serializer<Long> LONG = new Serializer<Long>() {
+			@Override
+			public byte[] serialize(Long value) {
+				return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+			}
+
+			@Override
+			public Long deserialize(ByteBuffer buffer, int length) {
+				return buffer.getLong();
+			}
+		};
+
+		static final Serializer<byte[]> BYTES = new Serializer<byte[]>() {
+			@Override
+			public byte[] serialize(byte[] value) {
+				return value;
+			}
+
+			@Override
+			public byte[] deserialize(ByteBuffer buffer, int length) {
+
+				byte[] bytes = new byte[length];
+
+				buffer.get(bytes);
+
+				return bytes;
+			}
+		};
+
+		private Serializers() {
+		}
+	}
+
+	// Cache Snapshot
+	//
+	// Binary snapshot of live entries for warm restarts. Layout:
+	//
+	//   header : magic, version, snapshot time (ms), record count
+	//   record : key length, value length, remaining TTL (ms), rank,
+	//            key bytes, value bytes
+	//
+	// Records are written in eviction order (next victim first) with the
+	// policy's rank, so replaying them through restoreEntry() rebuilds the
+	// LRU/FIFO order and LFU frequencies. Writes stream through a direct
+	// buffer into a temp file on a FileChannel and are renamed into place,
+	// so readers never see a partial snapshot. Loads map the file and read
+	// it sequentially; TTL keeps running while the process is down, and
+	// records that expired in the meantime are skipped without decoding.
+
+	static final class CacheSnapshot {
+
+		private static final int MAGIC = 0x43534E50; // "CSNP"
+
+		private static final int VERSION = 1;
+
+		private static final int HEADER_BYTES = 24;
+
+		private static final int RECORD_HEADER_BYTES = 20;
+
+		private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+		private static final long MAP_WINDOW_BYTES = 1L << 30;
+
+		interface RecordSink<K, V> {
+			void accept(K key, V value, long expiryTime, int rank);
+		}
+
+		static final class Record<K, V> {
+
+			final K key;
+			final V value;
+			final long expiryTime;
+			final int rank;
+
+			Record(K key, V value, long expiryTime, int rank) {
+				this.key = key;
+				this.value = value;
+				this.expiryTime = expiryTime;
+				this.rank = rank;
+			}
+		}
+
+		private CacheSnapshot() {
+		}
+
+		// Caller must keep the cache from being modified while this runs
+		static <K, V> long write(Cache<K, V> cache,
+		                         Path file,
+		                         Serializer<K> keySerializer,
+		                         Serializer<V> valueSerializer) throws IOException {
+
+			List<Record<K, V>> records = new ArrayList<>(cache.size());
+
+			collect(cache, records);
+
+			return writeRecords(records, file, keySerializer, valueSerializer);
+		}
+
+		static <K, V> long load(Cache<K, V> cache,
+		                        Path file,
+		                        Serializer<K> keySerializer,
+		                        Serializer<V> valueSerializer) throws IOException {
+
+			return read(file, keySerializer, valueSerializer, cache::restoreEntry);
+		}
+
+		static <K, V> void collect(Cache<K, V> cache, List<Record<K, V>> out) {
+
+			cache.forEachInEvictionOrder((entry, rank) ->
+			                             out.add(new Record<>(
+			                                         entry.getKey(),
+			                                         entry.getValue(),
+			                                         entry.getExpiryTime(),
+			                                         rank
+			                                     )));
+		}
+
+		static <K, V> long writeRecords(List<Record<K, V>> records,
+		                                Path file,
+		                                Serializer<K> keySerializer,
+		                                Serializer<V> valueSerializer) throws IOException {
+
+			Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+
+			long snapshotTime = System.currentTimeMillis();
+
+			long written = 0;
+
+			try (FileChannel channel = FileChannel.open(
+			                               temp,
+			                               StandardOpenOption.CREATE,
+			                               StandardOpenOption.WRITE,
+			                               StandardOpenOption.TRUNCATE_EXISTING)) {
+
+				ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+
+				buffer.putInt(MAGIC).putInt(VERSION).putLong(snapshotTime).putLong(0);
+
+				for (Record<K, V> record : records) {
+
+					long remainingTtl = record.expiryTime - snapshotTime;
+
+					if (remainingTtl <= 0) {
+						continue;
+					}
+
+					byte[] key = keySerializer.serialize(record.key);
+					byte[] value = valueSerializer.serialize(record.value);
+
+					int size = RECORD_HEADER_BYTES + key.length + value.length;
+
+					if (buffer.remaining() < size) {
+						flush(channel, buffer);
+					}
+
+					ByteBuffer target =
+					    buffer.remaining() >= size ? buffer : ByteBuffer.allocate(size);
+
+					target.putInt(key.length)
+					.putInt(value.length)
+					.putLong(remainingTtl)
+					.putInt(record.rank)
+					.put(key)
+					.put(value);
+
+					if (target != buffer) {
+						flush(channel, target);
+					}
+
+					written++;
+				}
+
+				flush(channel, buffer);
+
+				ByteBuffer count = ByteBuffer.allocate(Long.BYTES).putLong(0, written);
+
+				while (count.hasRemaining()) {
+					channel.write(count, HEADER_BYTES - Long.BYTES + count.position());
+				}
+
+				channel.force(false);
+			}
+
+			try {
+				Files.move(temp, file,
+				           StandardCopyOption.REPLACE_EXISTING,
+				           StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			return written;
+		}
+
+		// Returns the number of records handed to the sink
+		static <K, V> long read(Path file,
+		                        Serializer<K> keySerializer,
+		                        Serializer<V> valueSerializer,
+		                        RecordSink<K, V> sink) throws IOException {
+
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+				MappedReader reader = new MappedReader(channel);
+
+				ByteBuffer header = reader.require(0, HEADER_BYTES);
+
+				if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+					throw new IOException("Not a version " + VERSION + " cache snapshot: " + file);
+				}
+
+				long snapshotTime = header.getLong();
+				long count = header.getLong();
+
+				long now = System.currentTimeMillis();
+				long position = HEADER_BYTES;
+				long loaded = 0;
+
+				for (long i = 0; i < count; i++) {
+
+					ByteBuffer buffer = reader.require(position, RECORD_HEADER_BYTES);
+
+					int keyLength = buffer.getInt();
+					int valueLength = buffer.getInt();
+					long expiryTime = snapshotTime + buffer.getLong();
+					int rank = buffer.getInt();
+
+					int size = RECORD_HEADER_BYTES + keyLength + valueLength;
+
+					if (expiryTime > now) {
+
+						buffer = reader.require(position + RECORD_HEADER_BYTES,
+						                        keyLength + valueLength);
+
+						int start = buffer.position();
+
+						K key = keySerializer.deserialize(buffer, keyLength);
+
+						buffer.position(start + keyLength);
+
+						V value = valueSerializer.deserialize(buffer, valueLength);
+
+						sink.accept(key, value, expiryTime, rank);
+
+						loaded++;
+					}
+
+					position += size;
+				}
+
+				return loaded;
+			}
+		}
+
+		private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+			buffer.flip();
+
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+
+			buffer.clear();
+		}
+
+		// Maps the file in windows of up to 1 GB, remapping when a read
+		// crosses the end of the current one
+		private static final class MappedReader {
+
+			private final FileChannel channel;
+
+			private final long size;
+
+			private MappedByteBuffer window;
+
+			private long windowStart;
+
+			MappedReader(FileChannel channel) throws IOException {
+				this.channel = channel;
+				this.size = channel.size();
+			}
+
+			ByteBuffer require(long position, int length) throws IOException {
+
+				if (position + length > size) {
+					throw new IOException("Truncated cache snapshot");
+				}
+
+				if (window == null
+				        || position < windowStart
+				        || position + length > windowStart + window.limit()) {
+
+					long mapLength =
+					    Math.min(size - position, Math.max(MAP_WINDOW_BYTES, length));
+
+					window = channel.map(FileChannel.MapMode.READ_ONLY, position, mapLength);
+					windowStart = position;
+				}
+
+				window.position((int) (position - windowStart));
+
+				return window;
+			}
+		}
+	}
+
+	// Cache Node
+	//
+	// One shard of a ClusterCache. LocalCacheNode keeps the shard in this
+	// JVM; a remote shard only has to implement the same four calls.
+
+	interface CacheNode<K, V> {
+
+		void put(K key, V value, long ttlMillis);
+
+		// Atomic: stores only if the key has no live value. Records no
+		// stats and does not count as an access.
+		boolean putIfAbsent(K key, V value, long ttlMillis);
+
+		Optional<V> get(K key);
+
+		// Whether the key has a live value, without counting as an access
+		boolean containsKey(K key);
+
+		void delete(K key);
+
+		void forEachEntry(Consumer<CacheEntry<K, V>> action);
+	}
+
+	static class LocalCacheNode<K, V> implements CacheNode<K, V> {
+
+		private final SegmentedCache<K, V> cache;
+
+		public LocalCacheNode(int capacity,
+		                      Supplier<EvictionPolicy<K>> policyFactory) {
+
+			this.cache =
+			    new SegmentedCache<>(capacity, 16, policyFactory);
+		}
+
+		@Override
+		public void put(K key, V value, long ttlMillis) {
+			cache.put(key, value, ttlMillis);
+		}
+
+		@Override
+		public boolean putIfAbsent(K key, V value, long ttlMillis) {
+			return cache.putIfAbsent(key, value, ttlMillis);
+		}
+
+		@Override
+		public Optional<V> get(K key) {
+			return cache.get(key);
+		}
+
+		@Override
+		public boolean containsKey(K key) {
+			return cache.containsKey(key);
+		}
+
+		@Override
+		public void delete(K key) {
+			cache.delete(key);
+		}
+
+		@Override
+		public void forEachEntry(Consumer<CacheEntry<K, V>> action) {
+			cache.forEachEntry(action);
+		}
+
+		public int size() {
+			return cache.size();
+		}
+	}
+
+	// Consistent Hash Ring
+	//
+	// Every node is placed at virtualNodes points on a 64-bit ring; a key
+	// belongs to the first distinct nodes found walking clockwise from its
+	// hash. Adding or removing a node only moves the keys adjacent to its
+	// points, roughly 1/N of the total.
+
+	static class ConsistentHashRing {
+
+		private final TreeMap<Long, String> ring = new TreeMap<>();
+
+		private final int virtualNodes;
+
+		public ConsistentHashRing(int virtualNodes) {
+
+			if (virtualNodes <= 0) {
+				throw new IllegalArgumentException(
+				    "virtualNodes must be positive");
+			}
+
+			this.virtualNodes = virtualNodes;
+		}
+
+		public void addNode(String nodeId) {
+
+			for (int i = 0; i < virtualNodes; i++) {
+				ring.put(hash(nodeId + "#" + i), nodeId);
+			}
+		}
+
+		public void removeNode(String nodeId) {
+
+			for (int i = 0; i < virtualNodes; i++) {
+				ring.remove(hash(nodeId + "#" + i), nodeId);
+			}
+		}
+
+		public ConsistentHashRing copy() {
+
+			ConsistentHashRing copy = new ConsistentHashRing(virtualNodes);
+
+			copy.ring.putAll(ring);
+
+			return copy;
+		}
+
+		// Up to count distinct owners, primary first
+		public List<String> nodesFor(Object key, int count) {
+
+			List<String> owners = new ArrayList<>(count);
+
+			if (ring.isEmpty()) {
+				return owners;
+			}
+
+			long h = mix(key.hashCode());
+
+			for (String nodeId : ring.tailMap(h).values()) {
+
+				if (owners.size() == count) {
+					return owners;
+				}
+
+				if (!owners.contains(nodeId)) {
+					owners.add(nodeId);
+				}
+			}
+
+			for (String nodeId : ring.values()) {
+
+				if (owners.size() == count) {
+					break;
+				}
+
+				if (!owners.contains(nodeId)) {
+					owners.add(nodeId);
+				}
+			}
+
+			return owners;
+		}
+
+		private static long hash(String value) {
+
+			long h = 0xcbf29ce484222325L;
+
+			for (int i = 0; i < value.length(); i++) {
+				h ^= value.charAt(i);
+				h *= 0x100000001b3L;
+			}
+
+			return mix(h);
+		}
+
+		// 64-bit finalizer from MurmurHash3
+		private static long mix(long h) {
+
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+
+			return h;
+		}
+	}
+
+	// Cluster Cache
+	//
+	// Routes each key to replicationFactor shards picked by the ring and
+	// writes to all of them; reads try the owners in ring order. A topology
+	// change swaps in a new ring under the write side of a read/write lock
+	// and then moves keys with only the read side held, so gets and puts
+	// keep running. The move scans one node at a time, each holding only
+	// that node's own segment locks, and copies just the keys whose owner
+	// set changed, carrying over the remaining TTL. Until it finishes,
+	// reads fall back to the previous owners and writes go to both.
+
+	static class ClusterCache<K, V> {
+
+		// Replaced under the write lock, never modified in place
+		private ConsistentHashRing ring;
+
+		private Map<String, CacheNode<K, V>> nodes = new HashMap<>();
+
+		// The ring before the topology change still being moved, else null
+		private ConsistentHashRing previousRing;
+
+		private final int replicationFactor;
+
+		private final ReentrantReadWriteLock topologyLock =
+		    new ReentrantReadWriteLock();
+
+		// One topology change at a time
+		private final ReentrantLock rebalanceLock = new ReentrantLock();
+
+		public ClusterCache(int virtualNodes, int replicationFactor) {
+
+			if (replicationFactor <= 0) {
+				throw new IllegalArgumentException(
+				    "replicationFactor must be positive");
+			}
+
+			this.ring = new ConsistentHashRing(virtualNodes);
+			this.replicationFactor = replicationFactor;
+		}
+
+		public void put(K key, V value, long ttlMillis) {
+
+			topologyLock.readLock().lock();
+			try {
+				List<String> owners = ring.nodesFor(key, replicationFactor);
+
+				for (String nodeId : writeOrderOf(key, owners)) {
+
+					if (owners.contains(nodeId)) {
+						nodes.get(nodeId).put(key, value, ttlMillis);
+					} else {
+						// Losing the key: a copy left here would outlive the move
+						nodes.get(nodeId).delete(key);
+					}
+				}
+			} finally {
+				topologyLock.readLock().unlock();
+			}
+		}
+
+		public Optional<V> get(K key) {
+
+			topologyLock.readLock().lock();
+			try {
+				for (String nodeId : ownersOf(key)) {
+
+					Optional<V> value = nodes.get(nodeId).get(key);
+
+					if (value.isPresent()) {
+						return value;
+					}
+				}
+
+				return Optional.empty();
+			} finally {
+				topologyLock.readLock().unlock();
+			}
+		}
+
+		public void delete(K key) {
+
+			topologyLock.readLock().lock();
+			try {
+				List<String> owners = ring.nodesFor(key, replicationFactor);
+
+				for (String nodeId : writeOrderOf(key, owners)) {
+					nodes.get(nodeId).delete(key);
+				}
+			} finally {
+				topologyLock.readLock().unlock();
+			}
+		}
+
+		// Current owners, then any previous owners while a move is running
+		private List<String> ownersOf(K key) {
+
+			List<String> owners = ring.nodesFor(key, replicationFactor);
+
+			if (previousRing != null) {
+
+				for (String nodeId : previousRing.nodesFor(key, replicationFactor)) {
+
+					if (!owners.contains(nodeId)) {
+						owners.add(nodeId);
+					}
+				}
+			}
+
+			return owners;
+		}
+
+		// Every previous owner, then the current owners that are new. A mover
+		// copies a key while holding the lock of a previous owner's segment,
+		// so a write that goes through the previous owners first cannot
+		// reach a new owner until that copy is done, and then replaces it.
+		private List<String> writeOrderOf(K key, List<String> owners) {
+
+			if (previousRing == null) {
+				return owners;
+			}
+
+			List<String> ordered = previousRing.nodesFor(key, replicationFactor);
+
+			for (String nodeId : owners) {
+
+				if (!ordered.contains(nodeId)) {
+					ordered.add(nodeId);
+				}
+			}
+
+			return ordered;
+		}
+
+		// Returns the number of key copies transferred to new owners
+		public int addNode(String nodeId, CacheNode<K, V> node) {
+
+			rebalanceLock.lock();
+			try {
+				ConsistentHashRing before;
+				ConsistentHashRing after;
+				Map<String, CacheNode<K, V>> members;
+
+				topologyLock.writeLock().lock();
+				try {
+					if (nodes.containsKey(nodeId)) {
+						throw new IllegalArgumentException(
+						    "Node already in cluster: " + nodeId);
+					}
+
+					before = ring;
+					after = ring.copy();
+					after.addNode(nodeId);
+
+					members = new HashMap<>(nodes);
+					members.put(nodeId, node);
+
+					nodes = members;
+					previousRing = before;
+					ring = after;
+				} finally {
+					topologyLock.writeLock().unlock();
+				}
+
+				// The new node only holds keys written since the swap
+				Map<String, CacheNode<K, V>> holders = new HashMap<>(members);
+				holders.remove(nodeId);
+
+				int moved = moveKeys(before, after, holders, members);
+
+				finishMove(members);
+
+				return moved;
+			} finally {
+				rebalanceLock.unlock();
+			}
+		}
+
+		// Drains the node's keys to their new owners before dropping it
+		public int removeNode(String nodeId) {
+
+			rebalanceLock.lock();
+			try {
+				ConsistentHashRing before;
+				ConsistentHashRing after;
+				Map<String, CacheNode<K, V>> members;
+
+				topologyLock.writeLock().lock();
+				try {
+					if (!nodes.containsKey(nodeId)) {
+						throw new IllegalArgumentException(
+						    "Unknown node: " + nodeId);
+					}
+
+					before = ring;
+					after = ring.copy();
+					after.removeNode(nodeId);
+
+					// Still a member, and a previous owner, until its keys are moved
+					members = nodes;
+					previousRing = before;
+					ring = after;
+				} finally {
+					topologyLock.writeLock().unlock();
+				}
+
+				int moved = moveKeys(before, after, members, members);
+
+				Map<String, CacheNode<K, V>> remaining = new HashMap<>(members);
+				remaining.remove(nodeId);
+
+				finishMove(remaining);
+
+				return moved;
+			} finally {
+				rebalanceLock.unlock();
+			}
+		}
+
+		private void finishMove(Map<String, CacheNode<K, V>> members) {
+
+			topologyLock.writeLock().lock();
+			try {
+				nodes = members;
+				previousRing = null;
+			} finally {
+				topologyLock.writeLock().unlock();
+			}
+		}
+
+		public Set<String> nodeIds() {
+
+			topologyLock.readLock().lock();
+			try {
+				return new TreeSet<>(nodes.keySet());
+			} finally {
+				topologyLock.readLock().unlock();
+			}
+		}
+
+		// Scans each holder in turn. A key whose owner set changed is copied
+		// to its new owners by the first previous owner that has it, and
+		// dropped from every holder that no longer owns it. Only those keys
+		// are kept in memory, one holder at a time.
+		//
+		// The copy is putIfAbsent, made while forEachEntry holds the
+		// holder's segment lock. Client puts and deletes go through the
+		// previous owners before the new ones (writeOrderOf), and a put
+		// deletes the key from a previous owner that is losing it. So a
+		// write either reaches the holder before the scan, and the copy
+		// carries the new value or nothing, or it waits for the copy and
+		// then overwrites or deletes it on the new owner. A stale copy never
+		// outlives a newer put, and a deleted key does not come back.
+		private int moveKeys(ConsistentHashRing before,
+		                     ConsistentHashRing after,
+		                     Map<String, CacheNode<K, V>> holders,
+		                     Map<String, CacheNode<K, V>> members) {
+
+			long now = System.currentTimeMillis();
+
+			int[] moved = new int[1];
+
+			for (Map.Entry<String, CacheNode<K, V>> holder : holders.entrySet()) {
+
+				String holderId = holder.getKey();
+
+				List<K> dropped = new ArrayList<>();
+
+				holder.getValue().forEachEntry(entry -> {
+
+					K key = entry.getKey();
+
+					List<String> oldOwners = before.nodesFor(key, replicationFactor);
+					List<String> newOwners = after.nodesFor(key, replicationFactor);
+
+					if (oldOwners.size() == newOwners.size()
+					        && newOwners.containsAll(oldOwners)) {
+						return;
+					}
+
+					if (!newOwners.contains(holderId)) {
+						dropped.add(key);
+					}
+
+					long ttl = entry.getExpiryTime() - now;
+
+					if (ttl <= 0 || !copiesKey(holderId, key, oldOwners, members)) {
+						return;
+					}
+
+					for (String owner : newOwners) {
+
+						CacheNode<K, V> target = members.get(owner);
+
+						if (!oldOwners.contains(owner)
+						        && target.putIfAbsent(key, entry.getValue(), ttl)) {
+
+							moved[0]++;
+						}
+					}
+				});
+
+				for (K key : dropped) {
+					holder.getValue().delete(key);
+				}
+			}
+
+			return moved[0];
+		}
+
+		// True if holderId is the first previous owner still holding key
+		private boolean copiesKey(String holderId,
+		                          K key,
+		                          List<String> oldOwners,
+		                          Map<String, CacheNode<K, V>> members) {
+
+			for (String owner : oldOwners) {
+
+				if (owner.equals(holderId)) {
+					return true;
+				}
+
+				if (members.get(owner).containsKey(key)) {
+					return false;
+				}
+			}
+
+			return false;
+		}
+	}
+
+	private static ScheduledExecutorService daemonScheduler(String name) {
+
+		return Executors.newSingleThreadScheduledExecutor(runnable -> {
+
+			Thread thread = new Thread(runnable, name);
+
+			thread.setDaemon(true);
+
+			return thread;
+		});
+	}
+
+	// Driver
+
+	public static void main(String[] args) throws Exception {
+
+		Cache<Integer, String> cache =
+		    new Cache<>(
+		    3,
+		    new LRUEvictionPolicy<>()
+		);
+
+		cache.put(1, "A", 10000);
+		cache.put(2, "B", 10000);
+		cache.put(3, "C", 10000);
+
+		cache.get(1);
+
+		cache.put(4, "D", 10000);
+
+		System.out.println(cache.get(1)); // A
+		System.out.println(cache.get(2)); // Empty
+
+		cache.printCache();
+
+		System.out.println("Testing TTL");
+
+		cache.put(5, "TEMP", 2000);
+
+		Thread.sleep(3000);
+
+		System.out.println(cache.get(5)); // Empty
+
+		System.out.println("Testing Segmented Cache");
+
+		SegmentedCache<Integer, String> segmented =
+		    new SegmentedCache<>(
+		    8,
+		    4,
+		    LFUEvictionPolicy::new
+		);
+
+		for (int i = 0; i < 12; i++) {
+			segmented.put(i, "V" + i, 10000);
+		}
+
+		System.out.println(segmented.get(11)); // V11
+
+		segmented.printCache();
+
+		System.out.println("Testing Weighted Cache");
+
+		Cache<String, String> weighted =
+		    new Cache<>(
+		    1_000,
+		    new EstimatedBytesWeigher<>(),
+		    new LRUEvictionPolicy<>()
+		);
+
+		weighted.put("small", "x", 10000);
+		weighted.put("medium", "y".repeat(100), 10000);
+		weighted.put("large", "z".repeat(300), 10000); // evicts until it fits
+
+		System.out.println(weighted.get("small")); // Empty
+		System.out.println(weighted.get("large").isPresent()); // true
+		System.out.println(
+		    "Weight " + weighted.weightedSize()
+		    + "/" + weighted.maxWeight()
+		    + ", evictions " + weighted.evictionCount()
+		);
+
+		System.out.println("Testing Stats");
+
+		StatsCounter stats = new ConcurrentStatsCounter();
+
+		Cache<Integer, String> instrumented =
+		    new Cache<>(
+		    3,
+		    new LRUEvictionPolicy<>(),
+		    stats
+		);
+
+		instrumented.put(1, "A", 10000);
+		instrumented.put(2, "B", 50);
+		instrumented.put(3, "C", 10000);
+		instrumented.get(1);
+		instrumented.get(2);
+		instrumented.put(4, "D", 10000); // capacity eviction of 3
+		instrumented.get(3);             // miss
+
+		Thread.sleep(200);
+
+		instrumented.get(2);             // miss, expired
+
+		System.out.println(instrumented.stats());
+
+		System.out.println("Testing Snapshot Restore");
+
+		Path snapshot = Files.createTempFile("cache", ".snapshot");
+
+		Cache<Integer, String> before =
+		    new Cache<>(3, new LRUEvictionPolicy<>());
+
+		before.put(1, "A", 10000);
+		before.put(2, "B", 10000);
+		before.put(3, "C", 10000);
+		before.get(1); // LRU order is now 2, 3, 1
+
+		CacheSnapshot.write(before, snapshot, Serializers.INTEGER, Serializers.STRING);
+
+		Cache<Integer, String> after =
+		    new Cache<>(3, new LRUEvictionPolicy<>());
+
+		CacheSnapshot.load(after, snapshot, Serializers.INTEGER, Serializers.STRING);
+
+		after.put(4, "D", 10000); // evicts 2, as it would have before restart
+
+		System.out.println(after.get(2)); // Empty
+		System.out.println(after.get(1)); // A
+
+		Files.deleteIfExists(snapshot);
+	}
+}
+
+// Throughput comparison: one Cache behind a global lock vs SegmentedCache.
+// Run with: java CacheThroughputBenchmark [seconds-per-run]
+
+class CacheThroughputBenchmark {
+
+	private static final int CAPACITY = 4096;
+
+	private static final int KEY_SPACE = CAPACITY * 2;
+
+	private static final int READ_PERCENT = 90;
+
+	interface Target {
+
+		void put(Integer key, String value);
+
+		Optional<String> get(Integer key);
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		long millis =
+		    args.length > 0 ? Long.parseLong(args[0]) * 1000 : 1000;
+
+		int[] threadCounts = {1, 4, 16, 32, 64};
+
+		Map<String, Supplier<CacheDemo.EvictionPolicy<Integer>>> policies =
+		    new LinkedHashMap<>();
+
+		policies.put("FIFO", CacheDemo.FIFOEvictionPolicy::new);
+		policies.put("LRU", CacheDemo.LRUEvictionPolicy::new);
+		policies.put("LFU", CacheDemo.LFUEvictionPolicy::new);
+
+		Integer[] keys = new Integer[KEY_SPACE];
+		for (int i = 0; i < KEY_SPACE; i++) {
+			keys[i] = i;
+		}
+
+		System.out.printf("%-6s %-8s %14s %14s %8s%n",
+		                  "policy", "threads", "global ops/s",
+		                  "segmented ops/s", "speedup");
+
+		for (Map.Entry<String, Supplier<CacheDemo.EvictionPolicy<Integer>>> policy :
+		        policies.entrySet()) {
+
+			for (int threads : threadCounts) {
+
+				double global =
+				    run(globalLock(policy.getValue()), keys, threads, millis);
+
+				double segmented =
+				    run(segmented(policy.getValue()), keys, threads, millis);
+
+				System.out.printf("%-6s %-8d %14.0f %14.0f %7.2fx%n",
+				                  policy.getKey(), threads, global,
+				                  segmented, segmented / global);
+			}
+		}
+	}
+
+	private static Target globalLock(
+	    Supplier<CacheDemo.EvictionPolicy<Integer>> policy) {
+
+		CacheDemo.Cache<Integer, String> cache =
+		    new CacheDemo.Cache<>(CAPACITY, policy.get());
+
+		Object lock = new Object();
+
+		return new Target() {
+			@Override
+			public void put(Integer key, String value) {
+				synchronized (lock) {
+					cache.put(key, value, 60_000);
+				}
+			}
+
+			@Override
+			public Optional<String> get(Integer key) {
+				synchronized (lock) {
+					return cache.get(key);
+				}
+			}
+		};
+	}
+
+	private static Target segmented(
+	    Supplier<CacheDemo.EvictionPolicy<Integer>> policy) {
+
+		CacheDemo.SegmentedCache<Integer, String> cache =
+		    new CacheDemo.SegmentedCache<>(CAPACITY, 64, policy);
+
+		return new Target() {
+			@Override
+			public void put(Integer key, String value) {
+				cache.put(key, value, 60_000);
+			}
+
+			@Override
+			public Optional<String> get(Integer key) {
+				return cache.get(key);
+			}
+		};
+	}
+
+	private static double run(Target target,
+	                          Integer[] keys,
+	                          int threads,
+	                          long millis) throws InterruptedException {
+
+		for (Integer key : keys) {
+			target.put(key, "v");
+		}
+
+		LongAdder ops = new LongAdder();
+		CountDownLatch start = new CountDownLatch(1);
+		AtomicBoolean running = new AtomicBoolean(true);
+		Thread[] workers = new Thread[threads];
+
+		for (int t = 0; t < threads; t++) {
+
+			workers[t] = new Thread(() -> {
+
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				long done = 0;
+
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				while (running.get()) {
+
+					Integer key = keys[random.nextInt(keys.length)];
+
+					if (random.nextInt(100) < READ_PERCENT) {
+						target.get(key);
+					} else {
+						target.put(key, "v");
+					}
+
+					done++;
+				}
+
+				ops.add(done);
+			});
+
+			workers[t].start();
+		}
+
+		start.countDown();
+		Thread.sleep(millis);
+		running.set(false);
+
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		return ops.sum() * 1000.0 / millis;
+	}
+}
+
+
+
+// Put latency on a 1M-entry cache, timer wheel expiry vs the old full scan
+// of storage on every put. Runs with short (1-5 s) and long (1 h) TTLs; the
+// long ones sit beyond one revolution of the lowest wheel level. The idle
+// cases drive a TimerWheel on a synthetic clock, so a gap of minutes costs
+// no wall time, and time the single advance() the first put after the gap
+// would pay.
+// Run with: java -Xmx2g ExpiryLatencyBenchmark
+
+class ExpiryLatencyBenchmark {
+
+	private static final int ENTRIES = 1_000_000;
+
+	private static final int MEASURED_PUTS = 2_000_000;
+
+	private static final int LEGACY_SCANS = 20;
+
+	private static final long HOUR_MILLIS = 3_600_000;
+
+	// Keeps the legacy scan's result alive so the JIT cannot drop the loop
+	static long sink;
+
+	public static void main(String[] args) {
+
+		putLatency("short TTL put", 1_000, 4_000);
+		putLatency("1h TTL put", HOUR_MILLIS, 60_000);
+
+		for (long gapMillis : new long[] {1_000, 52_000, 600_000, 7_200_000}) {
+			idleGap(gapMillis);
+		}
+
+		legacyScan();
+	}
+
+	private static void putLatency(String label, long minTtl, int ttlSpread) {
+
+		CacheDemo.Cache<Integer, String> cache =
+		    new CacheDemo.Cache<>(
+		    ENTRIES,
+		    new CacheDemo.LRUEvictionPolicy<>()
+		);
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		for (int i = 0; i < ENTRIES; i++) {
+			cache.put(i, "v", minTtl + random.nextInt(ttlSpread));
+		}
+
+		long[] latencies = new long[MEASURED_PUTS];
+
+		for (int i = 0; i < MEASURED_PUTS; i++) {
+
+			Integer key = random.nextInt(ENTRIES + ENTRIES / 4);
+			long ttl = minTtl + random.nextInt(ttlSpread);
+
+			long start = System.nanoTime();
+
+			cache.put(key, "v", ttl);
+
+			latencies[i] = System.nanoTime() - start;
+		}
+
+		report(label, latencies);
+	}
+
+	// ENTRIES entries at 1 h TTLs, then one advance after gapMillis of
+	// no puts. Repeated on fresh wheels so the figure is not one sample.
+	private static void idleGap(long gapMillis) {
+
+		long[] latencies = new long[5];
+		long expired = 0;
+
+		for (int run = 0; run < latencies.length; run++) {
+
+			long now = 1_700_000_000_000L;
+
+			CacheDemo.TimerWheel<Integer, String> wheel =
+			    new CacheDemo.TimerWheel<>(
+			    CacheDemo.TimerWheel.DEFAULT_TICK_MILLIS,
+			    CacheDemo.TimerWheel.DEFAULT_WHEEL_SIZE,
+			    now
+			);
+
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+
+			for (int i = 0; i < ENTRIES; i++) {
+				wheel.schedule(
+				    new CacheDemo.CacheEntry<>(
+				    i,
+				    "v",
+				    now + HOUR_MILLIS + random.nextInt(60_000)
+				));
+			}
+
+			long[] count = new long[1];
+
+			long start = System.nanoTime();
+
+			wheel.advance(now + gapMillis, entry -> count[0]++);
+
+			latencies[run] = System.nanoTime() - start;
+			expired += count[0];
+		}
+
+		report(
+		    "idle " + gapMillis / 1000 + "s, " + expired / latencies.length / 1000 + "k due",
+		    latencies
+		);
+
+		sink += expired;
+	}
+
+	// Legacy behaviour: walk every entry and collect expired keys
+	private static void legacyScan() {
+
+		Map<Integer, CacheDemo.CacheEntry<Integer, String>> storage =
+		    new HashMap<>();
+
+		for (int i = 0; i < ENTRIES; i++) {
+			storage.put(i, new CacheDemo.CacheEntry<>(i, "v", Long.MAX_VALUE));
+		}
+
+		long[] scans = new long[LEGACY_SCANS];
+
+		for (int i = 0; i < LEGACY_SCANS; i++) {
+
+			long start = System.nanoTime();
+
+			List<Integer> expired = new ArrayList<>();
+
+			for (Map.Entry<Integer, CacheDemo.CacheEntry<Integer, String>> entry :
+			        storage.entrySet()) {
+
+				if (entry.getValue().isExpired()) {
+					expired.add(entry.getKey());
+				}
+			}
+
+			scans[i] = System.nanoTime() - start;
+
+			sink += expired.size();
+		}
+
+		report("legacy scan per put", scans);
+	}
+
+	private static void report(String label, long[] nanos) {
+
+		long[] sorted = nanos.clone();
+
+		Arrays.sort(sorted);
+
+		long total = 0;
+
+		for (long n : sorted) {
+			total += n;
+		}
+
+		System.out.printf(
+		    "%-22s mean=%8.2fus p50=%8.2fus p99=%8.2fus p99.9=%8.2fus max=%9.2fus%n",
+		    label,
+		    (double) total / sorted.length / 1000.0,
+		    percentile(sorted, 0.50) / 1000.0,
+		    percentile(sorted, 0.99) / 1000.0,
+		    percentile(sorted, 0.999) / 1000.0,
+		    sorted[sorted.length - 1] / 1000.0
+		);
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		return sorted[(int) Math.min(sorted.length - 1, p * sorted.length)];
+	}
+}
+
+// Trace-driven hit ratio simulator. Replays synthetic key traces through a
+// Cache per eviction policy and reports the hit ratio side by side.
+// Run with: java EvictionSimulator [capacity]
+
+class EvictionSimulator {
+
+	private static final int TRACE_LENGTH = 1_000_000;
+
+	private static final int UNIVERSE = 100_000;
+
+	public static void main(String[] args) {
+
+		int capacity =
+		    args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+
+		Map<String, int[]> traces = new LinkedHashMap<>();
+
+		traces.put("zipf", zipf(0.9, new Random(1)));
+		traces.put("scan", zipfWithScans(0.9, new Random(2)));
+		traces.put("loop", loop(capacity + capacity / 4));
+
+		Map<String, Supplier<CacheDemo.EvictionPolicy<Integer>>> policies =
+		    new LinkedHashMap<>();
+
+		policies.put("FIFO", CacheDemo.FIFOEvictionPolicy::new);
+		policies.put("LRU", CacheDemo.LRUEvictionPolicy::new);
+		policies.put("LFU", CacheDemo.LFUEvictionPolicy::new);
+		policies.put("LFU-aged", () -> new CacheDemo.LFUEvictionPolicy<>(capacity * 10));
+		policies.put("W-TinyLFU", () -> new CacheDemo.WTinyLFUEvictionPolicy<>(capacity));
+
+		System.out.printf("capacity=%d, %d requests per trace%n", capacity, TRACE_LENGTH);
+
+		System.out.printf("%-10s", "policy");
+		for (String trace : traces.keySet()) {
+			System.out.printf("%10s", trace);
+		}
+		System.out.println();
+
+		for (Map.Entry<String, Supplier<CacheDemo.EvictionPolicy<Integer>>> policy :
+		        policies.entrySet()) {
+
+			System.out.printf("%-10s", policy.getKey());
+
+			for (int[] trace : traces.values()) {
+
+				double hitRatio =
+				    replay(trace, capacity, policy.getValue().get());
+
+				System.out.printf("%9.2f%%", hitRatio * 100);
+			}
+
+			System.out.println();
+		}
+	}
+
+	static double replay(int[] trace,
+	                     int capacity,
+	                     CacheDemo.EvictionPolicy<Integer> policy) {
+
+		CacheDemo.Cache<Integer, Integer> cache =
+		    new CacheDemo.Cache<>(capacity, policy);
+
+		long hits = 0;
+
+		for (int key : trace) {
+
+			if (cache.get(key).isPresent()) {
+				hits++;
+			} else {
+				cache.put(key, key, 3_600_000);
+			}
+		}
+
+		return (double) hits / trace.length;
+	}
+
+	// Keys 0..UNIVERSE-1 with P(k) proportional to 1 / (k+1)^skew
+	static int[] zipf(double skew, Random random) {
+
+		double[] cdf = new double[UNIVERSE];
+		double sum = 0;
+
+		for (int i = 0; i < UNIVERSE; i++) {
+			sum += 1.0 / Math.pow(i + 1, skew);
+			cdf[i] = sum;
+		}
+
+		int[] trace = new int[TRACE_LENGTH];
+
+		for (int i = 0; i < TRACE_LENGTH; i++) {
+
+			int index = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+
+			trace[i] = index >= 0 ? index : Math.min(-index - 1, UNIVERSE - 1);
+		}
+
+		return trace;
+	}
+
+	// Zipf traffic interrupted every 40k requests by a 10k-key one-off scan
+	static int[] zipfWithScans(double skew, Random random) {
+
+		int[] base = zipf(skew, random);
+		int[] trace = new int[TRACE_LENGTH];
+
+		int scanKey = UNIVERSE;
+		int b = 0;
+
+		for (int i = 0; i < TRACE_LENGTH; i++) {
+
+			if (i % 20_000 < 10_000 && (i / 20_000) % 2 == 1) {
+				trace[i] = scanKey++;
+			} else {
+				trace[i] = base[b++];
+			}
+		}
+
+		return trace;
+	}
+
+	// Repeating sequential loop slightly larger than the cache
+	static int[] loop(int length) {
+
+		int[] trace = new int[TRACE_LENGTH];
+
+		for (int i = 0; i < TRACE_LENGTH; i++) {
+			trace[i] = i % length;
+		}
+
+		return trace;
+	}
+}
+
+// Local multi-node harness for ClusterCache: grows an in-process cluster
+// one node at a time, reporting keys transferred per rebalance (against
+// the ideal share), rebalance time, get/put throughput while the
+// rebalance runs, lost keys and get/put throughput afterwards.
+// Run with: java ClusterRebalanceHarness [keys] [maxNodes]
+
+class ClusterRebalanceHarness {
+
+	private static final int REPLICATION_FACTOR = 2;
+
+	private static final int VIRTUAL_NODES = 128;
+
+	private static final int THREADS = 4;
+
+	public static void main(String[] args) throws Exception {
+
+		int keyCount =
+		    args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+
+		int maxNodes =
+		    args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+		CacheDemo.ClusterCache<Integer, String> cluster =
+		    new CacheDemo.ClusterCache<>(VIRTUAL_NODES, REPLICATION_FACTOR);
+
+		cluster.addNode("node-1", newNode(keyCount));
+		cluster.addNode("node-2", newNode(keyCount));
+
+		for (int i = 0; i < keyCount; i++) {
+			cluster.put(i, "v" + i, 3_600_000);
+		}
+
+		System.out.printf("%d keys, replication factor %d, %d virtual nodes%n",
+		                  keyCount, REPLICATION_FACTOR, VIRTUAL_NODES);
+
+		System.out.printf("%-6s %10s %10s %8s %12s %14s %6s %12s%n",
+		                  "nodes", "moved", "ideal", "ratio",
+		                  "rebalance", "ops/s during", "lost", "ops/s");
+
+		report(cluster, 2, 0, 0, 0, 0, keyCount);
+
+		for (int n = 3; n <= maxNodes; n++) {
+
+			LongAdder ops = new LongAdder();
+			AtomicBoolean running = new AtomicBoolean(true);
+			Thread[] workers = startLoad(cluster, keyCount, ops, running);
+
+			long start = System.nanoTime();
+
+			int moved = cluster.addNode("node-" + n, newNode(keyCount));
+
+			long rebalanceNanos = System.nanoTime() - start;
+
+			stopLoad(workers, running);
+
+			// A new node should take its 1/n share of every copy
+			double ideal = (double) keyCount * REPLICATION_FACTOR / n;
+
+			report(cluster, n, moved, ideal, rebalanceNanos,
+			       ops.sum() * 1e9 / rebalanceNanos, keyCount);
+		}
+
+		long start = System.nanoTime();
+
+		int moved = cluster.removeNode("node-1");
+
+		System.out.printf("removed node-1: %d copies moved in %.1f ms, %d lost%n",
+		                  moved, (System.nanoTime() - start) / 1e6,
+		                  lost(cluster, keyCount));
+	}
+
+	// Room for every key plus slack for uneven segments, so nothing is
+	// lost to eviction and "lost" only counts routing mistakes
+	private static CacheDemo.LocalCacheNode<Integer, String> newNode(int keyCount) {
+		return new CacheDemo.LocalCacheNode<>(
+		           keyCount * 2,
+		           CacheDemo.LRUEvictionPolicy::new
+		       );
+	}
+
+	private static void report(CacheDemo.ClusterCache<Integer, String> cluster,
+	                           int nodes,
+	                           int moved,
+	                           double ideal,
+	                           long rebalanceNanos,
+	                           double opsDuring,
+	                           int keyCount) throws InterruptedException {
+
+		System.out.printf("%-6d %10d %10.0f %8s %10.1fms %14.0f %6d %12.0f%n",
+		                  nodes,
+		                  moved,
+		                  ideal,
+		                  ideal > 0 ? String.format("%.2f", moved / ideal) : "-",
+		                  rebalanceNanos / 1e6,
+		                  opsDuring,
+		                  lost(cluster, keyCount),
+		                  throughput(cluster, keyCount));
+	}
+
+	private static int lost(CacheDemo.ClusterCache<Integer, String> cluster,
+	                        int keyCount) {
+
+		int lost = 0;
+
+		for (int i = 0; i < keyCount; i++) {
+
+			if (!cluster.get(i).isPresent()) {
+				lost++;
+			}
+		}
+
+		return lost;
+	}
+
+	// 90% gets / 10% puts over existing keys for one second
+	private static double throughput(CacheDemo.ClusterCache<Integer, String> cluster,
+	                                 int keyCount) throws InterruptedException {
+
+		LongAdder ops = new LongAdder();
+		AtomicBoolean running = new AtomicBoolean(true);
+		Thread[] workers = startLoad(cluster, keyCount, ops, running);
+
+		Thread.sleep(1000);
+
+		stopLoad(workers, running);
+
+		return ops.sum();
+	}
+
+	private static Thread[] startLoad(CacheDemo.ClusterCache<Integer, String> cluster,
+	                                  int keyCount,
+	                                  LongAdder ops,
+	                                  AtomicBoolean running) {
+
+		Thread[] workers = new Thread[THREADS];
+
+		for (int t = 0; t < THREADS; t++) {
+
+			workers[t] = new Thread(() -> {
+
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				long done = 0;
+
+				while (running.get()) {
+
+					int key = random.nextInt(keyCount);
+
+					if (random.nextInt(10) == 0) {
+						cluster.put(key, "v" + key, 3_600_000);
+					} else {
+						cluster.get(key);
+					}
+
+					done++;
+				}
+
+				ops.add(done);
+			});
+
+			workers[t].start();
+		}
+
+		return workers;
+	}
+
+	private static void stopLoad(Thread[] workers,
+	                             AtomicBoolean running) throws InterruptedException {
+
+		running.set(false);
+
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+}
+
+// Snapshot write and warm-restart load of a 1M-entry cache, checking that
+// the restored cache has the same eviction order.
+// Run with: java -Xmx2g SnapshotRestoreBenchmark [entries]
+
+class SnapshotRestoreBenchmark {
+
+	public static void main(String[] args) throws Exception {
+
+		int entries =
+		    args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+		Map<String, Supplier<CacheDemo.EvictionPolicy<Integer>>> policies =
+		    new LinkedHashMap<>();
+
+		policies.put("LRU", CacheDemo.LRUEvictionPolicy::new);
+		policies.put("LFU", CacheDemo.LFUEvictionPolicy::new);
+
+		Path file = Files.createTempFile("cache-benchmark", ".snapshot");
+
+		String payload = "x".repeat(100);
+
+		for (Map.Entry<String, Supplier<CacheDemo.EvictionPolicy<Integer>>> policy :
+		        policies.entrySet()) {
+
+			CacheDemo.Cache<Integer, String> cache =
+			    new CacheDemo.Cache<>(entries, policy.getValue().get());
+
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+
+			for (int i = 0; i < entries; i++) {
+				cache.put(i, payload, 600_000);
+			}
+
+			for (int i = 0; i < entries; i++) {
+				cache.get(random.nextInt(entries / 10));
+			}
+
+			long start = System.nanoTime();
+
+			long written =
+			    CacheDemo.CacheSnapshot.write(
+			        cache, file,
+			        CacheDemo.Serializers.INTEGER,
+			        CacheDemo.Serializers.STRING);
+
+			long writeNanos = System.nanoTime() - start;
+
+			CacheDemo.Cache<Integer, String> restored =
+			    new CacheDemo.Cache<>(entries, policy.getValue().get());
+
+			start = System.nanoTime();
+
+			long loaded =
+			    CacheDemo.CacheSnapshot.load(
+			        restored, file,
+			        CacheDemo.Serializers.INTEGER,
+			        CacheDemo.Serializers.STRING);
+
+			long loadNanos = System.nanoTime() - start;
+
+			System.out.printf(
+			    "%s: wrote %d records (%.1f MB) in %.0f ms, loaded %d in %.0f ms, order %s%n",
+			    policy.getKey(),
+			    written,
+			    Files.size(file) / 1e6,
+			    writeNanos / 1e6,
+			    loaded,
+			    loadNanos / 1e6,
+			    evictionOrder(cache).equals(evictionOrder(restored)) ? "preserved" : "DIFFERS"
+			);
+		}
+
+		Files.deleteIfExists(file);
+	}
+
+	private static List<Integer> evictionOrder(CacheDemo.Cache<Integer, String> cache) {
+
+		List<Integer> order = new ArrayList<>();
+
+		cache.forEachInEvictionOrder((entry, rank) -> order.add(entry.getKey()));
+
+		return order;
+	}
+}
@@ -1,5 +1,8 @@
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
 
 class LRUCache {
@@ -93,6 +96,316 @@ class LRUCache {
     }
 }
 
+// Primitive LRU cache: same contract as LRUCache but keys, values and the
+// LRU links live in flat int arrays. The index is an open-addressing table
+// (linear probing, backward-shift deletion) of entry positions, and a full
+// cache recycles the LRU entry's slot, so get/put never allocate.
+class PrimitiveLRUCache {
+    private static final int NIL = -1;
+
+    private final int capacity;
+    private final int[] keys;
+    private final int[] values;
+    private final int[] prev;
+    private final int[] next;
+    // Entry index + 1 per slot, 0 marks an empty slot
+    private final int[] table;
+    private final int tableMask;
+    private int head = NIL; // MRU
+    private int tail = NIL; // LRU
+    private int size;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public PrimitiveLRUCache(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        this.keys = new int[capacity];
+        this.values = new int[capacity];
+        this.prev = new int[capacity];
+        this.next = new int[capacity];
+
+        // Keep the load factor at or below 0.75
+        long minSlots = (long) capacity + capacity / 3 + 1;
+        int tableSize = Integer.highestOneBit((int) Math.min(minSlots, 1 << 30) - 1) << 1;
+        this.table = new int[Math.max(tableSize, 2)];
+        this.tableMask = table.length - 1;
+    }
+
+    public int get(int key) {
+        lock.lock();
+        try {
+            int slot = findSlot(key);
+            if (slot == NIL) return -1;
+
+            int index = table[slot] - 1;
+            moveToFront(index);
+            return values[index];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(int key, int value) {
+        lock.lock();
+        try {
+            int slot = findSlot(key);
+            if (slot != NIL) {
+                int index = table[slot] - 1;
+                values[index] = value;
+                moveToFront(index);
+                return;
+            }
+
+            int index;
+            if (size == capacity) {
+                // Reuse the LRU entry's position for the new key
+                index = tail;
+                unlink(index);
+                removeSlot(findSlot(keys[index]));
+            } else {
+                index = size++;
+            }
+
+            keys[index] = key;
+            values[index] = value;
+            insertSlot(index);
+            addFirst(index);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // --- Hash index ---
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int findSlot(int key) {
+        int slot = hash(key) & tableMask;
+        while (table[slot] != 0) {
+            if (keys[table[slot] - 1] == key) return slot;
+            slot = (slot + 1) & tableMask;
+        }
+        return NIL;
+    }
+
+    private void insertSlot(int index) {
+        int slot = hash(keys[index]) & tableMask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & tableMask;
+        }
+        table[slot] = index + 1;
+    }
+
+    // Backward-shift deletion keeps probe chains intact without tombstones
+    private void removeSlot(int slot) {
+        int hole = slot;
+        int current = (slot + 1) & tableMask;
+        while (table[current] != 0) {
+            int ideal = hash(keys[table[current] - 1]) & tableMask;
+            if (((current - ideal) & tableMask) >= ((current - hole) & tableMask)) {
+                table[hole] = table[current];
+                hole = current;
+            }
+            current = (current + 1) & tableMask;
+        }
+        table[hole] = 0;
+    }
+
+    // --- LRU order as int links ---
+    private void addFirst(int index) {
+        prev[index] = NIL;
+        next[index] = head;
+        if (head != NIL) prev[head] = index;
+        head = index;
+        if (tail == NIL) tail = index;
+    }
+
+    private void unlink(int index) {
+        int p = prev[index];
+        int n = next[index];
+        if (p != NIL) next[p] = n; else head = n;
+        if (n != NIL) prev[n] = p; else tail = p;
+    }
+
+    private void moveToFront(int index) {
+        if (head == index) return;
+        unlink(index);
+        addFirst(index);
+    }
+}
+
+// Read-mostly variant of LRUCache. get() does a lock-free ConcurrentHashMap
+// lookup and records the hit in a striped, lossy ring buffer; the recorded
+// hits are replayed against the LRU list in batches by whoever wins a
+// tryLock (or by the next put). Recency may lag slightly behind reads.
+class ReadBufferedLRUCache {
+    private static final int BUFFER_SIZE = 16; // per stripe, power of two
+    private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+
+    private final int capacity;
+    private final ConcurrentHashMap<Integer, Node> map;
+    private final DoublyLinkedList dll; // guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReadBuffer[] readBuffers;
+    private final int stripeMask;
+
+    public ReadBufferedLRUCache(int capacity) {
+        this.capacity = capacity;
+        this.map = new ConcurrentHashMap<>();
+        this.dll = new DoublyLinkedList();
+
+        int stripes = Integer.highestOneBit(
+                Math.max(1, Runtime.getRuntime().availableProcessors()) * 4 - 1) << 1;
+        this.readBuffers = new ReadBuffer[stripes];
+        for (int i = 0; i < stripes; i++) readBuffers[i] = new ReadBuffer();
+        this.stripeMask = stripes - 1;
+    }
+
+    public int get(int key) {
+        Node node = map.get(key);
+        if (node == null) return -1;
+
+        if (!readBuffers[stripeIndex()].offer(node)) {
+            tryDrain(); // stripe full: drain unless someone else already is
+        }
+        return node.value;
+    }
+
+    public void put(int key, int value) {
+        lock.lock();
+        try {
+            drainReadBuffers();
+
+            Node existing = map.get(key);
+            if (existing != null) {
+                existing.value = value;
+                dll.moveToFront(existing);
+                return;
+            }
+
+            if (map.size() == capacity) {
+                Node lru = dll.removeLast();
+                map.remove(lru.key);
+            }
+
+            Node newNode = new Node(key, value);
+            dll.addFirst(newNode);
+            map.put(key, newNode);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int stripeIndex() {
+        long id = Thread.currentThread().getId();
+        return (int) (id * 0x9E3779B97F4A7C15L >>> 32) & stripeMask;
+    }
+
+    private void tryDrain() {
+        if (!lock.tryLock()) return;
+        try {
+            drainReadBuffers();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller holds the lock
+    private void drainReadBuffers() {
+        for (ReadBuffer buffer : readBuffers) buffer.drainTo(dll);
+    }
+
+    // Node class; value is read without the lock
+    private static class Node {
+        final int key;
+        volatile int value;
+        Node prev, next;
+        Node(int k, int v) { key = k; value = v; }
+    }
+
+    // Doubly linked list for LRU order
+    private static class DoublyLinkedList {
+        private final Node head = new Node(-1, -1);
+        private final Node tail = new Node(-1, -1);
+
+        DoublyLinkedList() {
+            head.next = tail;
+            tail.prev = head;
+        }
+
+        void addFirst(Node node) {
+            node.next = head.next;
+            head.next.prev = node;
+            head.next = node;
+            node.prev = head;
+        }
+
+        void moveToFront(Node node) {
+            // Evicted after its read was buffered
+            if (node.prev == null) return;
+            remove(node);
+            addFirst(node);
+        }
+
+        Node removeLast() {
+            if (tail.prev == head) return null;
+            Node node = tail.prev;
+            remove(node);
+            return node;
+        }
+
+        void remove(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+    }
+
+    // Bounded multi-producer ring drained only by the lock holder
+    private static class ReadBuffer {
+        private final AtomicReferenceArray<Node> slots = new AtomicReferenceArray<>(BUFFER_SIZE);
+        private final AtomicLong writeCounter = new AtomicLong();
+        private volatile long readCounter;
+
+        boolean offer(Node node) {
+            long tail = writeCounter.get();
+            if (tail - readCounter >= BUFFER_SIZE) return false;
+
+            // Losing the CAS just drops this read
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                slots.lazySet((int) (tail & BUFFER_MASK), node);
+            }
+            return true;
+        }
+
+        void drainTo(DoublyLinkedList dll) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            while (head < tail) {
+                int index = (int) (head & BUFFER_MASK);
+                Node node = slots.get(index);
+                if (node == null) break; // claimed but not yet published
+                slots.lazySet(index, null);
+                dll.moveToFront(node);
+                head++;
+            }
+            readCounter = head;
+        }
+    }
+}
+
 public class LRUCacheDemo {
     public static void main(String[] args) {
         LRUCache cache = new LRUCache(3);
@@ -113,6 +426,32 @@ public class LRUCacheDemo {
 
         System.out.println(cache.get(1)); // -1 (evicted)
         System.out.println(cache.get(5)); // 50
+
+        PrimitiveLRUCache primitive = new PrimitiveLRUCache(3);
+
+        primitive.put(1, 10);
+        primitive.put(2, 20);
+        primitive.put(3, 30);
+
+        System.out.println(primitive.get(1)); // 10
+
+        primitive.put(4, 40); // Evicts key 2
+
+        System.out.println(primitive.get(2)); // -1 (evicted)
+        System.out.println(primitive.get(4)); // 40
+
+        ReadBufferedLRUCache buffered = new ReadBufferedLRUCache(3);
+
+        buffered.put(1, 10);
+        buffered.put(2, 20);
+        buffered.put(3, 30);
+
+        System.out.println(buffered.get(1)); // 10 (recorded, applied on next put)
+
+        buffered.put(4, 40); // Drains reads, then evicts key 2
+
+        System.out.println(buffered.get(2)); // -1 (evicted)
+        System.out.println(buffered.get(1)); // 10
     }
 }
 
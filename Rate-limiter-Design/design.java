@@ -1,8 +1,30 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
 import java.util.*;
+import java.lang.ref.Reference;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 
 interface RateLimiter {
     boolean allowRequest();
+
+    // Gives back one permit taken by an allowRequest() that returned true.
+    // Used to roll back when a request passes some of its limits but not all.
+    void refund();
 }
 
 class FixedWindowRateLimiter implements RateLimiter {
@@ -31,6 +53,13 @@ class FixedWindowRateLimiter implements RateLimiter {
         requestCount++;
         return requestCount <= maxRequests;
     }
+
+    @Override
+    public synchronized void refund() {
+        if (requestCount > 0) {
+            requestCount--;
+        }
+    }
 }
 
 class SlidingWindowRateLimiter implements RateLimiter {
@@ -59,12 +88,612 @@ class SlidingWindowRateLimiter implements RateLimiter {
         timestamps.addLast(now);
         return true;
     }
+
+    @Override
+    public synchronized void refund() {
+        timestamps.pollLast();
+    }
+}
+
+// Sliding window counter: keeps only the request counts of the current and
+// the previous fixed window and weights the previous one by how much of it
+// still overlaps the sliding window:
+//
+//   estimate = previous * (1 - elapsed / window) + current
+//
+// That is two counters per key instead of up to maxRequests timestamps.
+// Accuracy bound: the estimate is exact when the previous window's
+// requests were spread evenly. With adversarial bursts at a window edge,
+// it can admit at most 2 x maxRequests within one sliding window, the same
+// worst case as a fixed window. The timestamp log is always exact.
+class SlidingWindowCounterRateLimiter implements RateLimiter {
+    private final int maxRequests;
+    private final long windowSizeMillis;
+
+    private long currentWindow = Long.MIN_VALUE;
+    private long currentCount;
+    private long previousCount;
+
+    SlidingWindowCounterRateLimiter(int maxRequests, long windowSizeMillis) {
+        this.maxRequests = maxRequests;
+        this.windowSizeMillis = windowSizeMillis;
+    }
+
+    @Override
+    public synchronized boolean allowRequest() {
+        long now = System.currentTimeMillis();
+        long window = now / windowSizeMillis;
+
+        if (window != currentWindow) {
+            previousCount = window == currentWindow + 1 ? currentCount : 0;
+            currentCount = 0;
+            currentWindow = window;
+        }
+
+        // Scaled by windowSizeMillis to stay in integer arithmetic
+        long elapsed = now - window * windowSizeMillis;
+        long weighted = previousCount * (windowSizeMillis - elapsed)
+                + (currentCount + 1) * windowSizeMillis;
+
+        if (weighted > maxRequests * windowSizeMillis) {
+            return false;
+        }
+
+        currentCount++;
+        return true;
+    }
+
+    @Override
+    public synchronized void refund() {
+        if (currentCount > 0) {
+            currentCount--;
+        }
+    }
+}
+
+// Token bucket holding up to maxRequests tokens, refilled continuously at
+// maxRequests per window. The whole bucket is one AtomicLong: the high bits
+// hold the last refill time (ms since creation), the low TOKEN_BITS hold
+// the token count, so allowRequest() is a single CAS loop with no lock and
+// no allocation. Refill time is rounded up, so the limiter never grants
+// more than the configured rate.
+class TokenBucketRateLimiter implements RateLimiter {
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+
+    private final long capacity;
+    private final long windowSizeMillis;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong state;
+
+    TokenBucketRateLimiter(int maxRequests, long windowSizeMillis) {
+        if (maxRequests <= 0 || maxRequests > TOKEN_MASK || windowSizeMillis <= 0) {
+            throw new IllegalArgumentException(
+                    "maxRequests must be in [1, " + TOKEN_MASK + "] and windowSizeMillis positive");
+        }
+        this.capacity = maxRequests;
+        this.windowSizeMillis = windowSizeMillis;
+        this.state = new AtomicLong(pack(0, capacity));
+    }
+
+    @Override
+    public boolean allowRequest() {
+        long now = (System.nanoTime() - startNanos) / 1_000_000;
+
+        while (true) {
+            long current = state.get();
+            long last = current >>> TOKEN_BITS;
+            long tokens = current & TOKEN_MASK;
+
+            long elapsed = now - last;
+            if (elapsed >= windowSizeMillis) {
+                tokens = capacity;
+                last = now;
+            } else if (elapsed > 0 && tokens < capacity) {
+                long added = elapsed * capacity / windowSizeMillis;
+                if (added > 0) {
+                    tokens = Math.min(capacity, tokens + added);
+                    last = tokens == capacity
+                            ? now
+                            : last + ceilDiv(added * windowSizeMillis, capacity);
+                }
+            }
+
+            if (tokens == 0) {
+                return false;
+            }
+
+            if (state.compareAndSet(current, pack(last, tokens - 1))) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public void refund() {
+        while (true) {
+            long current = state.get();
+            long tokens = current & TOKEN_MASK;
+            if (tokens == capacity || state.compareAndSet(current, current + 1)) {
+                return;
+            }
+        }
+    }
+
+    private static long pack(long lastRefillMillis, long tokens) {
+        return (lastRefillMillis << TOKEN_BITS) | tokens;
+    }
+
+    private static long ceilDiv(long x, long y) {
+        return (x + y - 1) / y;
+    }
+}
+
+// A limiter that can hand out permits in the future, not just answer yes or
+// no now. Callers wait for admission instead of spinning or dropping work.
+interface PacedRateLimiter extends RateLimiter {
+
+    // Completes once the permits are available. The permits are reserved
+    // right away, and the future is completed by a task on one shared timer
+    // thread, so no thread is parked per waiter. Dependent stages run on
+    // that timer thread unless they are attached with the *Async variants.
+    // Cancelling the future gives the permits back.
+    CompletableFuture<Void> acquire(int permits);
+
+    // Takes the permits if they will be available within the timeout, and
+    // waits until they are. Returns false at once, with nothing taken, if
+    // they will not be.
+    boolean tryAcquire(int permits, long timeout, TimeUnit unit) throws InterruptedException;
+
+    // How long until one permit is available, 0 if one is available now
+    long nanosUntilNextPermit();
+}
+
+// Generic Cell Rate Algorithm. Requests are spaced one emission interval
+// (window / maxRequests) apart on a virtual timeline; the only state is the
+// theoretical arrival time (TAT) of the next request. A request is allowed
+// if the TAT is not more than one window ahead of now, which permits a
+// burst of maxRequests. One AtomicLong, one CAS, nothing allocated.
+//
+// Reserving n permits moves the TAT n intervals ahead. If that pushes the
+// last of them past the burst tolerance, the caller waits until it is
+// within tolerance again. That is what PacedRateLimiter builds on.
+class GcraRateLimiter implements PacedRateLimiter {
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rate-limiter-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long emissionIntervalNanos;
+    private final long burstToleranceNanos;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong theoreticalArrival = new AtomicLong();
+
+    GcraRateLimiter(int maxRequests, long windowSizeMillis) {
+        if (maxRequests <= 0 || windowSizeMillis <= 0) {
+            throw new IllegalArgumentException("maxRequests and windowSizeMillis must be positive");
+        }
+        long windowNanos = windowSizeMillis * 1_000_000;
+        this.emissionIntervalNanos = windowNanos / maxRequests;
+        this.burstToleranceNanos = windowNanos - emissionIntervalNanos;
+    }
+
+    @Override
+    public boolean allowRequest() {
+        return reserve(1, 0) >= 0;
+    }
+
+    @Override
+    public void refund() {
+        theoreticalArrival.addAndGet(-emissionIntervalNanos);
+    }
+
+    @Override
+    public CompletableFuture<Void> acquire(int permits) {
+        long waitNanos = reserve(permits, Long.MAX_VALUE);
+        if (waitNanos == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> admitted = new CompletableFuture<>();
+        ScheduledFuture<?> timer = TIMER.schedule(() -> admitted.complete(null), waitNanos, TimeUnit.NANOSECONDS);
+        admitted.whenComplete((ignored, failure) -> {
+            if (admitted.isCancelled()) {
+                timer.cancel(false);
+                theoreticalArrival.addAndGet(-permits * emissionIntervalNanos);
+            }
+        });
+        return admitted;
+    }
+
+    @Override
+    public boolean tryAcquire(int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        long waitNanos = reserve(permits, unit.toNanos(timeout));
+        if (waitNanos < 0) {
+            return false;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            // Give the reservation back, as a cancelled acquire does
+            theoreticalArrival.addAndGet(-permits * emissionIntervalNanos);
+            throw e;
+        }
+        return true;
+    }
+
+    @Override
+    public long nanosUntilNextPermit() {
+        long now = System.nanoTime() - startNanos;
+        return Math.max(0, theoreticalArrival.get() - now - burstToleranceNanos);
+    }
+
+    // Reserves the permits if the last of them is admitted within
+    // maxWaitNanos, and returns how long the caller must wait for it.
+    // Returns -1, reserving nothing, if the wait would be longer.
+    private long reserve(int permits, long maxWaitNanos) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("permits must be positive");
+        }
+        long now = System.nanoTime() - startNanos;
+
+        while (true) {
+            long tat = theoreticalArrival.get();
+            long start = Math.max(tat, now);
+            long lastStart = start + (permits - 1) * emissionIntervalNanos;
+            long waitNanos = Math.max(0, lastStart - now - burstToleranceNanos);
+
+            if (waitNanos > maxWaitNanos) {
+                return -1;
+            }
+
+            if (theoreticalArrival.compareAndSet(tat, start + permits * emissionIntervalNanos)) {
+                return waitNanos;
+            }
+        }
+    }
+}
+
+// Shared quota for cluster mode. Grants up to `requested` of the `limit`
+// permits a key has in one fixed window and returns how many were granted,
+// which is 0 once the window is used up. Implementations must be atomic
+// across all callers.
+interface CounterStore {
+    int acquire(String key, long window, int requested, int limit);
+}
+
+// In-process counter store, and the state behind CounterStoreServer. Each
+// key holds only the count of its current window. Older windows are
+// replaced rather than kept.
+//
+// A key nobody has asked about for idleTimeoutMillis is dropped: its window
+// has closed, so the next acquire would start from zero anyway. The idle
+// timeout must be at least the longest window any client uses. A sweep
+// runs at most four times per timeout, on whichever acquire comes due
+// first. Every entry it scans was touched within the last 1.25 timeouts, so
+// the sweep costs O(1) amortized per acquire and memory stays bounded by
+// the keys active recently.
+class InMemoryCounterStore implements CounterStore {
+
+    static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60_000;
+
+    private static final class WindowCount {
+        final long window;
+        final long count;
+        final long touchedMillis;
+
+        WindowCount(long window, long count, long touchedMillis) {
+            this.window = window;
+            this.count = count;
+            this.touchedMillis = touchedMillis;
+        }
+    }
+
+    private final Map<String, WindowCount> counts = new ConcurrentHashMap<>();
+    private final long idleTimeoutMillis;
+    private final long sweepIntervalMillis;
+    private final AtomicLong nextSweepMillis;
+
+    InMemoryCounterStore() {
+        this(DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    InMemoryCounterStore(long idleTimeoutMillis) {
+        if (idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("idleTimeoutMillis must be positive");
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.sweepIntervalMillis = Math.max(1, idleTimeoutMillis / 4);
+        this.nextSweepMillis = new AtomicLong(System.currentTimeMillis() + sweepIntervalMillis);
+    }
+
+    @Override
+    public int acquire(String key, long window, int requested, int limit) {
+        long now = System.currentTimeMillis();
+        sweepIfDue(now);
+
+        int[] granted = new int[1];
+        counts.compute(key, (k, current) -> {
+            if (current != null && current.window > window) {
+                return current; // a request from a window that has already closed
+            }
+            long used = current == null || current.window != window ? 0 : current.count;
+            granted[0] = (int) Math.max(0, Math.min(requested, limit - used));
+            return new WindowCount(window, used + granted[0], now);
+        });
+        return granted[0];
+    }
+
+    // Number of keys currently held
+    int size() {
+        return counts.size();
+    }
+
+    private void sweepIfDue(long now) {
+        long due = nextSweepMillis.get();
+        if (now < due || !nextSweepMillis.compareAndSet(due, now + sweepIntervalMillis)) {
+            return;
+        }
+        long cutoff = now - idleTimeoutMillis;
+        // Removes only if the entry was not replaced since it was read
+        counts.entrySet().removeIf(entry -> entry.getValue().touchedMillis < cutoff);
+    }
 }
 
+// Serves an InMemoryCounterStore over TCP for RemoteCounterStore clients.
+// The protocol is one line per call:
+//
+//   ACQUIRE <key> <window> <requested> <limit>   ->   <granted>
+//
+// Each connection gets its own thread. Nodes keep their connection open.
+class CounterStoreServer implements Closeable {
+
+    private final CounterStore store = new InMemoryCounterStore();
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "counter-store-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    CounterStoreServer(int port) throws IOException {
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        connections.execute(this::acceptLoop);
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Counter store accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())))) {
+            socket.setTcpNoDelay(true);
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length != 5 || !parts[0].equals("ACQUIRE")) {
+                    out.println("ERR malformed request");
+                } else {
+                    String reply;
+                    try {
+                        reply = String.valueOf(store.acquire(
+                                parts[1],
+                                Long.parseLong(parts[2]),
+                                Integer.parseInt(parts[3]),
+                                Integer.parseInt(parts[4])));
+                    } catch (NumberFormatException e) {
+                        reply = "ERR malformed request";
+                    }
+                    out.println(reply);
+                }
+                out.flush();
+            }
+        } catch (SocketException e) {
+            // client went away or the server is closing
+        } catch (IOException e) {
+            System.err.println("Counter store connection failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+}
+
+// Client for CounterStoreServer. It uses one connection, and calls are
+// serialized on it. Keys must not contain whitespace. Connection failures
+// surface as UncheckedIOException from allowRequest.
+class RemoteCounterStore implements CounterStore, Closeable {
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final PrintWriter out;
+
+    RemoteCounterStore(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+    }
+
+    @Override
+    public synchronized int acquire(String key, long window, int requested, int limit) {
+        out.println("ACQUIRE " + key + " " + window + " " + requested + " " + limit);
+        out.flush();
+        try {
+            String reply = in.readLine();
+            if (reply == null || reply.startsWith("ERR")) {
+                throw new IOException("Counter store replied " + reply);
+            }
+            return Integer.parseInt(reply);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
+
+// Enforces a limit shared by every node in a cluster. Each node leases
+// permits from the CounterStore in batches of leaseSize and spends them
+// locally, so the store sees one round-trip per batch, not one per request.
+// Once the store has no permits left for the window, the node denies
+// requests without asking again until the next window.
+//
+// The global limit is never exceeded. The cost of batching is permits that
+// a node leased but did not use before the window ended: another node may
+// be denied while they sit unused. Up to (nodes - 1) * (leaseSize - 1)
+// permits can be stranded this way. DistributedRateLimitSimulation
+// measures that tradeoff.
+//
+// A refund goes back into the lease only if the permit came from the
+// lease's window. Each thread remembers the window of its last few grants,
+// so refund() must run on the thread that took the permit, soon after, as
+// RuleBasedRateLimiter does. A refund that cannot be matched to a grant is
+// dropped: that can waste a permit, but never admits past the limit.
+class DistributedRateLimiter implements RateLimiter {
+    private static final int RECENT_GRANTS = 8;
+    private static final ThreadLocal<RecentGrants> RECENT = ThreadLocal.withInitial(RecentGrants::new);
+
+    private final String key;
+    private final CounterStore store;
+    private final int maxRequests;
+    private final long windowSizeMillis;
+    private final int leaseSize;
+    private final LongSupplier clockMillis;
+
+    private long leaseWindow = Long.MIN_VALUE;
+    private int leasedPermits;
+    private boolean exhausted;
+
+    DistributedRateLimiter(String key, CounterStore store, int maxRequests, long windowSizeMillis, int leaseSize) {
+        this(key, store, maxRequests, windowSizeMillis, leaseSize, System::currentTimeMillis);
+    }
+
+    DistributedRateLimiter(
+            String key,
+            CounterStore store,
+            int maxRequests,
+            long windowSizeMillis,
+            int leaseSize,
+            LongSupplier clockMillis
+    ) {
+        if (maxRequests <= 0 || windowSizeMillis <= 0 || leaseSize <= 0) {
+            throw new IllegalArgumentException("maxRequests, windowSizeMillis and leaseSize must be positive");
+        }
+        this.key = key;
+        this.store = store;
+        this.maxRequests = maxRequests;
+        this.windowSizeMillis = windowSizeMillis;
+        this.leaseSize = leaseSize;
+        this.clockMillis = clockMillis;
+    }
+
+    @Override
+    public synchronized boolean allowRequest() {
+        long window = clockMillis.getAsLong() / windowSizeMillis;
+
+        if (window != leaseWindow) {
+            leaseWindow = window;
+            leasedPermits = 0;
+            exhausted = false;
+        }
+
+        if (leasedPermits == 0) {
+            if (exhausted) {
+                return false;
+            }
+            leasedPermits = store.acquire(key, window, leaseSize, maxRequests);
+            if (leasedPermits == 0) {
+                exhausted = true;
+                return false;
+            }
+        }
+
+        leasedPermits--;
+        RECENT.get().add(this, window);
+        return true;
+    }
+
+    // The permit goes back into this node's lease, not to the store. A
+    // permit from an earlier window is not refunded: the lease now belongs
+    // to a later window, and crediting it would admit more than the limit.
+    @Override
+    public synchronized void refund() {
+        long window = RECENT.get().remove(this);
+        if (window != Long.MIN_VALUE && window == leaseWindow) {
+            leasedPermits++;
+        }
+    }
+
+    // The windows of one thread's most recent grants, newest last
+    private static final class RecentGrants {
+        final DistributedRateLimiter[] limiters = new DistributedRateLimiter[RECENT_GRANTS];
+        final long[] windows = new long[RECENT_GRANTS];
+        int next;
+
+        void add(DistributedRateLimiter limiter, long window) {
+            limiters[next] = limiter;
+            windows[next] = window;
+            next = (next + 1) % RECENT_GRANTS;
+        }
+
+        // Forgets the newest grant by limiter and returns its window, or
+        // Long.MIN_VALUE if there is none
+        long remove(DistributedRateLimiter limiter) {
+            for (int i = 1; i <= RECENT_GRANTS; i++) {
+                int slot = (next - i + RECENT_GRANTS) % RECENT_GRANTS;
+                if (limiters[slot] == limiter) {
+                    limiters[slot] = null;
+                    return windows[slot];
+                }
+            }
+            return Long.MIN_VALUE;
+        }
+    }
+}
+
+// Only GCRA limiters are PacedRateLimiters. Pacing reserves permits that
+// are not free yet, so the limiter has to record a grant in the future.
+// GCRA does that by moving its TAT ahead. The others cannot:
+// - the fixed window keeps only the current window's count, with no
+//   place for a permit booked in a later one;
+// - the sliding window log holds past grant times, and a future one would
+//   count against every check made before it is due;
+// - the sliding window counter only estimates its count from the previous
+//   window, so when a permit frees up is itself an estimate;
+// - the token bucket packs an unsigned token count, which cannot hold the
+//   negative balance a reservation needs.
+// RateLimiterManager.acquire, tryAcquire and nanosUntilNextPermit throw
+// UnsupportedOperationException for them.
 class RateLimiterFactory {
     enum Algorithm {
         FIXED_WINDOW,
-        SLIDING_WINDOW
+        SLIDING_WINDOW,
+        SLIDING_WINDOW_COUNTER,
+        TOKEN_BUCKET,
+        GCRA
     }
     
     static RateLimiter create(
@@ -75,6 +704,12 @@ class RateLimiterFactory {
         switch (algorithm) {
             case SLIDING_WINDOW:
                 return new SlidingWindowRateLimiter(maxRequests, windowSizeMillis);
+            case SLIDING_WINDOW_COUNTER:
+                return new SlidingWindowCounterRateLimiter(maxRequests, windowSizeMillis);
+            case TOKEN_BUCKET:
+                return new TokenBucketRateLimiter(maxRequests, windowSizeMillis);
+            case GCRA:
+                return new GcraRateLimiter(maxRequests, windowSizeMillis);
             case FIXED_WINDOW:
             default:
                 return new FixedWindowRateLimiter(maxRequests, windowSizeMillis);
@@ -82,33 +717,365 @@ class RateLimiterFactory {
     }
 }
 
+// Tracks one limiter per user. Limiter state is dropped after the user has
+// been idle for idleTimeoutMillis, and the number of tracked users is
+// capped at maxKeys, so memory stays flat under high-cardinality keys
+// (per-IP limiting during a scrape).
+//
+// Keys are indexed by the time bucket of their last request. A sweep runs
+// at most once per bucket, on whichever request thread crosses the
+// boundary first, and drops whole buckets that are older than the idle
+// timeout. Nothing scans the full map. A key only moves to a new bucket
+// the first time it is seen in that bucket, so an active key costs one queue
+// append per bucket rather than one per request.
+//
+// With the default idle timeout of two windows, dropping state is
+// lossless: every algorithm here behaves like a fresh limiter once a full
+// window has passed without requests. The key cap is not lossless. When it
+// is hit, users from the oldest buckets are evicted first and restart with
+// a fresh limiter, so size it above the expected number of active users.
 class RateLimiterManager {
 
-    private final Map<String, RateLimiter> userLimiters = new ConcurrentHashMap<>();
-    private final RateLimiterFactory.Algorithm algorithm;
-    private final int maxRequests;
-    private final long windowSizeMillis;
+    static final int DEFAULT_MAX_KEYS = 1_000_000;
+
+    // Number of time buckets spanning one idle timeout
+    private static final int BUCKETS_PER_TIMEOUT = 4;
+
+    private static final class TrackedLimiter {
+        final RateLimiter limiter;
+        volatile long bucket;
+
+        TrackedLimiter(RateLimiter limiter, long bucket) {
+            this.limiter = limiter;
+            this.bucket = bucket;
+        }
+    }
+
+    private final Map<String, TrackedLimiter> userLimiters = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Queue<String>> keysByBucket = new ConcurrentSkipListMap<>();
+    private final AtomicLong nextSweepBucket = new AtomicLong();
+    private final Function<String, RateLimiter> limiterFactory;
+    private final long idleTimeoutMillis;
+    private final long bucketMillis;
+    private final int maxKeys;
 
     RateLimiterManager(
             RateLimiterFactory.Algorithm algorithm,
             int maxRequests,
             long windowSizeMillis
     ) {
+        this(algorithm, maxRequests, windowSizeMillis, 2 * windowSizeMillis, DEFAULT_MAX_KEYS);
+    }
+
+    RateLimiterManager(
+            RateLimiterFactory.Algorithm algorithm,
+            int maxRequests,
+            long windowSizeMillis,
+            long idleTimeoutMillis,
+            int maxKeys
+    ) {
+        this(id -> RateLimiterFactory.create(algorithm, maxRequests, windowSizeMillis),
+                idleTimeoutMillis, maxKeys);
+    }
+
+    private RateLimiterManager(Function<String, RateLimiter> limiterFactory, long idleTimeoutMillis, int maxKeys) {
+        if (idleTimeoutMillis <= 0 || maxKeys <= 0) {
+            throw new IllegalArgumentException("idleTimeoutMillis and maxKeys must be positive");
+        }
+        this.limiterFactory = limiterFactory;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.bucketMillis = Math.max(1, idleTimeoutMillis / BUCKETS_PER_TIMEOUT);
+        this.maxKeys = maxKeys;
+        this.nextSweepBucket.set(System.currentTimeMillis() / bucketMillis + 1);
+    }
+
+    // Cluster mode: maxRequests per window is enforced across every node that
+    // shares the store, leasing leaseSize permits per round-trip. Dropping
+    // an idle user only forfeits that node's unused lease.
+    static RateLimiterManager clustered(
+            CounterStore store,
+            int maxRequests,
+            long windowSizeMillis,
+            int leaseSize
+    ) {
+        return new RateLimiterManager(
+                id -> new DistributedRateLimiter(id, store, maxRequests, windowSizeMillis, leaseSize),
+                2 * windowSizeMillis,
+                DEFAULT_MAX_KEYS
+        );
+    }
+
+    boolean allowRequest(String userId) {
+        return limiterFor(userId).allowRequest();
+    }
+
+    // The waiting calls of PacedRateLimiter, for managers whose limiters
+    // can pace (GCRA). Any other algorithm throws
+    // UnsupportedOperationException; see RateLimiterFactory.
+    CompletableFuture<Void> acquire(String userId, int permits) {
+        return pacedLimiterFor(userId).acquire(permits);
+    }
+
+    boolean tryAcquire(String userId, int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        return pacedLimiterFor(userId).tryAcquire(permits, timeout, unit);
+    }
+
+    long nanosUntilNextPermit(String userId) {
+        return pacedLimiterFor(userId).nanosUntilNextPermit();
+    }
+
+    private PacedRateLimiter pacedLimiterFor(String userId) {
+        RateLimiter limiter = limiterFor(userId);
+        if (!(limiter instanceof PacedRateLimiter)) {
+            throw new UnsupportedOperationException(
+                    limiter.getClass().getSimpleName() + " cannot pace requests; use the GCRA algorithm");
+        }
+        return (PacedRateLimiter) limiter;
+    }
+
+    // The limiter tracked for userId, created on first use
+    RateLimiter limiterFor(String userId) {
+        long now = System.currentTimeMillis();
+        long bucket = now / bucketMillis;
+
+        TrackedLimiter tracked = userLimiters.get(userId);
+        if (tracked == null) {
+            tracked = userLimiters.computeIfAbsent(
+                    userId,
+                    id -> new TrackedLimiter(limiterFactory.apply(id), bucket)
+            );
+            if (tracked.bucket == bucket) {
+                index(userId, bucket);
+            }
+            if (userLimiters.size() > maxKeys) {
+                evictOverCapacity();
+            }
+        } else if (tracked.bucket != bucket) {
+            tracked.bucket = bucket;
+            index(userId, bucket);
+        }
+
+        long sweepBucket = nextSweepBucket.get();
+        if (bucket >= sweepBucket && nextSweepBucket.compareAndSet(sweepBucket, bucket + 1)) {
+            expireIdle(now);
+        }
+
+        return tracked.limiter;
+    }
+
+    int size() {
+        return userLimiters.size();
+    }
+
+    private void index(String userId, long bucket) {
+        Queue<String> keys = keysByBucket.computeIfAbsent(bucket, b -> new ConcurrentLinkedQueue<>());
+        keys.add(userId);
+        // A sweep may have detached this bucket between the lookup and the add
+        if (keysByBucket.get(bucket) != keys) {
+            keysByBucket.computeIfAbsent(bucket, b -> new ConcurrentLinkedQueue<>()).add(userId);
+        }
+    }
+
+    // Drops every bucket that ended at least idleTimeoutMillis ago. Keys in
+    // it that were used since have moved to a newer bucket and are skipped.
+    private void expireIdle(long now) {
+        long lastExpiredBucket = (now - idleTimeoutMillis) / bucketMillis - 1;
+
+        Map.Entry<Long, Queue<String>> oldest;
+        while ((oldest = keysByBucket.firstEntry()) != null && oldest.getKey() <= lastExpiredBucket) {
+            keysByBucket.remove(oldest.getKey(), oldest.getValue());
+            for (String userId : oldest.getValue()) {
+                removeIfIn(userId, oldest.getKey());
+            }
+        }
+    }
+
+    // Evicts the least recently active users, oldest bucket first, until
+    // the map is back under maxKeys.
+    private void evictOverCapacity() {
+        Map.Entry<Long, Queue<String>> oldest;
+        while (userLimiters.size() > maxKeys && (oldest = keysByBucket.firstEntry()) != null) {
+            String userId = oldest.getValue().poll();
+            if (userId == null) {
+                keysByBucket.remove(oldest.getKey(), oldest.getValue());
+            } else {
+                removeIfIn(userId, oldest.getKey());
+            }
+        }
+    }
+
+    private void removeIfIn(String userId, long bucket) {
+        TrackedLimiter tracked = userLimiters.get(userId);
+        if (tracked != null && tracked.bucket == bucket) {
+            userLimiters.remove(userId, tracked);
+        }
+    }
+}
+
+// A limit that applies to requests whose attributes match all of its
+// selectors. A selector value is either a literal, which matches only
+// that value, or "*", which matches any value and keeps a separate limiter
+// per distinct value. So {tenant=acme, user=*} limits each user of acme,
+// and {route=/search} limits all /search traffic together. A rule with
+// no selectors is one global limit.
+class RateLimitRule {
+    static final String ANY = "*";
+
+    final String name;
+    final Map<String, String> selectors;
+    final RateLimiterFactory.Algorithm algorithm;
+    final int maxRequests;
+    final long windowSizeMillis;
+
+    RateLimitRule(
+            String name,
+            Map<String, String> selectors,
+            RateLimiterFactory.Algorithm algorithm,
+            int maxRequests,
+            long windowSizeMillis
+    ) {
+        this.name = name;
+        this.selectors = new TreeMap<>(selectors);
         this.algorithm = algorithm;
         this.maxRequests = maxRequests;
         this.windowSizeMillis = windowSizeMillis;
     }
+}
 
-    boolean allowRequest(String userId) {
-        RateLimiter limiter = userLimiters.computeIfAbsent(
-                userId,
-                id -> RateLimiterFactory.create(
-                        algorithm,
-                        maxRequests,
-                        windowSizeMillis
-                )
-        );
-        return limiter.allowRequest();
+class RateLimitDecision {
+    static final RateLimitDecision ALLOWED = new RateLimitDecision(true, null);
+
+    final boolean allowed;
+    final String deniedBy; // name of the first rule that denied, or null
+
+    RateLimitDecision(boolean allowed, String deniedBy) {
+        this.allowed = allowed;
+        this.deniedBy = deniedBy;
+    }
+}
+
+// Evaluates every rule that matches a request's attributes, all or
+// nothing: a request is admitted only if all matching limits allow it.
+// If one denies, the permits already taken from the others are refunded.
+// Between the take and the refund, another request may see those permits
+// as used. That can cause a spurious deny, but never an over-admission.
+//
+// The rules are compiled once, grouped by shape: which attributes they
+// select, and which of those are "*". Within a shape, rules sit in a hash
+// map keyed by their literal values. A request costs one hash lookup per
+// shape, and only rules that actually match are touched. Adding more
+// tenants or routes to an existing shape does not make evaluation slower.
+class RuleBasedRateLimiter {
+
+    private static final char KEY_SEPARATOR = '\u001F';
+
+    private static final class CompiledRule {
+        final String name;
+        final String[] wildcardAttributes;
+        final RateLimiterManager limiters;
+
+        CompiledRule(RateLimitRule rule, String[] wildcardAttributes) {
+            this.name = rule.name;
+            this.wildcardAttributes = wildcardAttributes;
+            this.limiters = new RateLimiterManager(rule.algorithm, rule.maxRequests, rule.windowSizeMillis);
+        }
+    }
+
+    private static final class Shape {
+        final String[] literalAttributes;
+        final Map<String, List<CompiledRule>> rulesByLiterals = new HashMap<>();
+
+        Shape(String[] literalAttributes) {
+            this.literalAttributes = literalAttributes;
+        }
+    }
+
+    private final List<Shape> shapes = new ArrayList<>();
+
+    RuleBasedRateLimiter(List<RateLimitRule> rules) {
+        Map<String, Shape> shapesBySignature = new HashMap<>();
+
+        for (RateLimitRule rule : rules) {
+            List<String> literalAttributes = new ArrayList<>();
+            List<String> literalValues = new ArrayList<>();
+            List<String> wildcardAttributes = new ArrayList<>();
+            for (Map.Entry<String, String> selector : rule.selectors.entrySet()) {
+                if (RateLimitRule.ANY.equals(selector.getValue())) {
+                    wildcardAttributes.add(selector.getKey());
+                } else {
+                    literalAttributes.add(selector.getKey());
+                    literalValues.add(selector.getValue());
+                }
+            }
+
+            String signature = literalAttributes + "/" + wildcardAttributes;
+            Shape shape = shapesBySignature.computeIfAbsent(signature, s -> {
+                Shape created = new Shape(literalAttributes.toArray(new String[0]));
+                shapes.add(created);
+                return created;
+            });
+            shape.rulesByLiterals
+                    .computeIfAbsent(join(literalValues), k -> new ArrayList<>())
+                    .add(new CompiledRule(rule, wildcardAttributes.toArray(new String[0])));
+        }
+    }
+
+    RateLimitDecision allowRequest(Map<String, String> attributes) {
+        List<RateLimiter> acquired = new ArrayList<>();
+
+        for (Shape shape : shapes) {
+            String literals = valuesOf(shape.literalAttributes, attributes);
+            List<CompiledRule> matching = literals == null ? null : shape.rulesByLiterals.get(literals);
+            if (matching == null) {
+                continue;
+            }
+
+            for (CompiledRule rule : matching) {
+                String limiterKey = valuesOf(rule.wildcardAttributes, attributes);
+                if (limiterKey == null) {
+                    continue;
+                }
+
+                RateLimiter limiter = rule.limiters.limiterFor(limiterKey);
+                if (!limiter.allowRequest()) {
+                    for (int i = acquired.size() - 1; i >= 0; i--) {
+                        acquired.get(i).refund();
+                    }
+                    return new RateLimitDecision(false, rule.name);
+                }
+                acquired.add(limiter);
+            }
+        }
+
+        return RateLimitDecision.ALLOWED;
+    }
+
+    // The request's values for the given attributes as one key, or null if
+    // the request lacks one of them
+    private static String valuesOf(String[] attributeNames, Map<String, String> attributes) {
+        if (attributeNames.length == 1) {
+            return attributes.get(attributeNames[0]);
+        }
+        StringBuilder key = new StringBuilder();
+        for (String attribute : attributeNames) {
+            String value = attributes.get(attribute);
+            if (value == null) {
+                return null;
+            }
+            key.append(value).append(KEY_SEPARATOR);
+        }
+        return key.toString();
+    }
+
+    private static String join(List<String> values) {
+        if (values.size() == 1) {
+            return values.get(0);
+        }
+        StringBuilder key = new StringBuilder();
+        for (String value : values) {
+            key.append(value).append(KEY_SEPARATOR);
+        }
+        return key.toString();
     }
 }
 
@@ -131,5 +1098,271 @@ public class Main
                     (manager.allowRequest(user) ? "ALLOWED" : "BLOCKED")
             );
         }
+
+        for (RateLimiterFactory.Algorithm algorithm : new RateLimiterFactory.Algorithm[] {
+                RateLimiterFactory.Algorithm.SLIDING_WINDOW_COUNTER,
+                RateLimiterFactory.Algorithm.TOKEN_BUCKET,
+                RateLimiterFactory.Algorithm.GCRA
+        }) {
+            RateLimiterManager lockFree = new RateLimiterManager(algorithm, 5, 10_000);
+
+            StringBuilder decisions = new StringBuilder(algorithm + ":");
+            for (int i = 1; i <= 7; i++) {
+                decisions.append(lockFree.allowRequest(user) ? " ALLOWED" : " BLOCKED");
+            }
+            System.out.println(decisions); // 5 allowed, then blocked
+        }
+
+        // One request from each of 50k distinct IPs, as during a scrape.
+        // The key cap holds the map at 10k, and once the 20ms window has
+        // been idle for two windows the sweep releases the rest.
+        RateLimiterManager perIp = new RateLimiterManager(
+                RateLimiterFactory.Algorithm.TOKEN_BUCKET, 5, 20, 40, 10_000);
+        for (int i = 0; i < 50_000; i++) {
+            perIp.allowRequest("10.0." + (i >> 8) + "." + (i & 0xFF));
+        }
+        System.out.println("Tracked IPs after scrape: " + perIp.size());
+
+        try {
+            Thread.sleep(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        perIp.allowRequest("10.1.0.1");
+        System.out.println("Tracked IPs after idle sweep: " + perIp.size());
+
+        // Two nodes sharing a counter store enforce 5 requests in total,
+        // not 5 each. Each node leases 2 permits per round-trip.
+        CounterStore sharedStore = new InMemoryCounterStore();
+        RateLimiterManager nodeA = RateLimiterManager.clustered(sharedStore, 5, 10_000, 2);
+        RateLimiterManager nodeB = RateLimiterManager.clustered(sharedStore, 5, 10_000, 2);
+
+        StringBuilder clustered = new StringBuilder("CLUSTERED:");
+        for (int i = 1; i <= 8; i++) {
+            RateLimiterManager node = i % 2 == 0 ? nodeB : nodeA;
+            clustered.append(node.allowRequest(user) ? " ALLOWED" : " BLOCKED");
+        }
+        System.out.println(clustered); // 5 allowed across both nodes
+
+        // The store forgets keys once their window has closed and gone idle
+        InMemoryCounterStore perIpStore = new InMemoryCounterStore(500);
+        for (int i = 0; i < 50_000; i++) {
+            perIpStore.acquire("10.0." + (i >> 8) + "." + (i & 0xFF), 0, 1, 5);
+        }
+        System.out.println("Store keys after scrape: " + perIpStore.size());
+
+        try {
+            Thread.sleep(600);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        perIpStore.acquire("10.1.0.1", 5, 1, 5);
+        System.out.println("Store keys after idle sweep: " + perIpStore.size());
+
+        // Per-user, per-tenant and per-route limits checked together. Bob's
+        // second request is acme's fifth, so tenant-acme denies it and the
+        // permit it took from bob's per-user limit is refunded. That leaves
+        // bob two more requests elsewhere, not one.
+        RuleBasedRateLimiter rules = new RuleBasedRateLimiter(List.of(
+                new RateLimitRule("per-user", Map.of("user", RateLimitRule.ANY),
+                        RateLimiterFactory.Algorithm.TOKEN_BUCKET, 3, 10_000),
+                new RateLimitRule("tenant-acme", Map.of("tenant", "acme"),
+                        RateLimiterFactory.Algorithm.SLIDING_WINDOW_COUNTER, 4, 10_000),
+                new RateLimitRule("acme-search", Map.of("tenant", "acme", "route", "/search"),
+                        RateLimiterFactory.Algorithm.FIXED_WINDOW, 100, 10_000)
+        ));
+        String[][] requests = {
+                {"alice", "acme", "/search"}, {"alice", "acme", "/search"}, {"alice", "acme", "/home"},
+                {"bob", "acme", "/search"}, {"bob", "acme", "/search"},
+                {"carol", "globex", "/search"},
+                {"bob", "globex", "/home"}, {"bob", "globex", "/home"}, {"bob", "globex", "/home"}
+        };
+        for (String[] request : requests) {
+            RateLimitDecision decision = rules.allowRequest(
+                    Map.of("user", request[0], "tenant", request[1], "route", request[2]));
+            System.out.println(String.join(" ", request) + ": "
+                    + (decision.allowed ? "ALLOWED" : "BLOCKED by " + decision.deniedBy));
+        }
+
+        // Waiting for admission instead of being refused: 30 acquires
+        // against 10 per 100 ms. The first 10 are the burst, and the other
+        // 20 complete one every 10 ms, all from the one timer thread.
+        RateLimiterManager paced = new RateLimiterManager(RateLimiterFactory.Algorithm.GCRA, 10, 100);
+        long pacedStart = System.nanoTime();
+        CompletableFuture<?>[] admissions = new CompletableFuture<?>[30];
+        for (int i = 0; i < admissions.length; i++) {
+            admissions[i] = paced.acquire("alice", 1);
+        }
+        CompletableFuture.allOf(admissions).join();
+        System.out.printf("30 acquires admitted after %d ms, next permit in %.1f ms%n",
+                (System.nanoTime() - pacedStart) / 1_000_000,
+                paced.nanosUntilNextPermit("alice") / 1e6);
+        try {
+            new RateLimiterManager(RateLimiterFactory.Algorithm.TOKEN_BUCKET, 10, 100).acquire("alice", 1);
+        } catch (UnsupportedOperationException e) {
+            System.out.println("token bucket acquire: " + e.getMessage());
+        }
+    }
+}
+
+// Heap retained by RateLimiterManager per tracked user, timestamp-log
+// SLIDING_WINDOW vs SLIDING_WINDOW_COUNTER, with every user at its limit.
+// Run with: java -Xmx4g RateLimiterMemoryBenchmark [users] [maxRequests]
+class RateLimiterMemoryBenchmark {
+
+    public static void main(String[] args) {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int maxRequests = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+        System.out.printf("%d users, each at %d requests/min%n", users, maxRequests);
+
+        // Warm up so class loading and JIT metadata do not land in the deltas
+        for (RateLimiterFactory.Algorithm algorithm : RateLimiterFactory.Algorithm.values()) {
+            measure(algorithm, 1_000, maxRequests);
+        }
+
+        for (RateLimiterFactory.Algorithm algorithm : new RateLimiterFactory.Algorithm[] {
+                RateLimiterFactory.Algorithm.SLIDING_WINDOW,
+                RateLimiterFactory.Algorithm.SLIDING_WINDOW_COUNTER
+        }) {
+            long bytes = measure(algorithm, users, maxRequests);
+            System.out.printf("%-24s %10.1f MB total %10.1f bytes/user%n",
+                    algorithm, bytes / 1e6, (double) bytes / users);
+        }
+    }
+
+    private static long measure(RateLimiterFactory.Algorithm algorithm, int users, int maxRequests) {
+        long baseline = usedHeap();
+
+        RateLimiterManager manager = new RateLimiterManager(algorithm, maxRequests, 60_000);
+        for (int u = 0; u < users; u++) {
+            String userId = "user-" + u;
+            for (int r = 0; r < maxRequests; r++) {
+                manager.allowRequest(userId);
+            }
+        }
+
+        long bytes = usedHeap() - baseline;
+        Reference.reachabilityFence(manager);
+        return bytes;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+
+// Simulates a cluster of nodes sharing one global limit. Time is simulated,
+// so every run is deterministic. Requests arrive evenly spaced within each
+// window and go to a random node, as behind a load balancer. For each lease
+// size it reports the fraction of the achievable admissions that were
+// admitted (accuracy) and the counter store round-trips per window. The
+// last section repeats two lease sizes through CounterStoreServer over
+// loopback TCP to put a real cost on a round-trip.
+// Run with: java DistributedRateLimitSimulation [nodes] [limit] [windows]
+class DistributedRateLimitSimulation {
+
+    private static final long WINDOW_MILLIS = 1_000;
+    private static final int[] LEASE_SIZES = {1, 10, 50, 100, 250};
+    private static final double[] LOADS = {0.5, 1.0, 3.0};
+
+    public static void main(String[] args) throws IOException {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        int limit = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int windows = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        System.out.printf("%d nodes, global limit %d per %d ms, %d windows%n%n",
+                nodes, limit, WINDOW_MILLIS, windows);
+        System.out.printf("%-14s %6s %12s %12s %10s %14s%n",
+                "mode", "load", "allowed/win", "max/win", "accuracy", "round-trips/win");
+
+        for (double load : LOADS) {
+            // Every node enforcing the limit on its own, as before cluster mode
+            print("local-only", load, limit, windows, run(nodes, limit, windows, load, 1, false, null));
+            for (int leaseSize : LEASE_SIZES) {
+                print("lease " + leaseSize, load, limit, windows, run(nodes, limit, windows, load, leaseSize, true, null));
+            }
+            System.out.println();
+        }
+
+        try (CounterStoreServer server = new CounterStoreServer(0)) {
+            System.out.println("Over loopback TCP, load 3.0:");
+            for (int leaseSize : new int[] {1, 50}) {
+                long start = System.nanoTime();
+                long[] result = run(nodes, limit, windows, 3.0, leaseSize, true, server);
+                double elapsedMillis = (System.nanoTime() - start) / 1e6;
+                long decisions = (long) (3.0 * limit) * windows;
+                System.out.printf("  lease %-4d %6d allowed/win, %6d round-trips/win, %8.1f ms total, %6.2f us per decision%n",
+                        leaseSize, result[0] / windows, result[2] / windows,
+                        elapsedMillis, elapsedMillis * 1_000 / decisions);
+            }
+        }
+    }
+
+    // Returns {allowed, max allowed in one window, round-trips, sum of min(offered, limit)}
+    private static long[] run(
+            int nodes,
+            int limit,
+            int windows,
+            double load,
+            int leaseSize,
+            boolean shared,
+            CounterStoreServer server
+    ) throws IOException {
+        long[] now = new long[1];
+        LongAdder roundTrips = new LongAdder();
+        CounterStore sharedStore = new InMemoryCounterStore();
+
+        List<Closeable> connections = new ArrayList<>();
+        DistributedRateLimiter[] limiters = new DistributedRateLimiter[nodes];
+        for (int n = 0; n < nodes; n++) {
+            CounterStore store;
+            if (server != null) {
+                RemoteCounterStore remote = new RemoteCounterStore("localhost", server.port());
+                connections.add(remote);
+                store = remote;
+            } else {
+                store = shared ? sharedStore : new InMemoryCounterStore();
+            }
+            CounterStore counted = (key, window, requested, max) -> {
+                if (shared) {
+                    roundTrips.increment();
+                }
+                return store.acquire(key, window, requested, max);
+            };
+            // A fresh key per run, since runs against the same server restart at window 0
+            limiters[n] = new DistributedRateLimiter("api-key-lease-" + leaseSize, counted, limit, WINDOW_MILLIS, leaseSize, () -> now[0]);
+        }
+
+        Random random = new Random(42);
+        int offered = (int) (load * limit);
+        long allowed = 0;
+        long maxInWindow = 0;
+
+        for (int w = 0; w < windows; w++) {
+            long allowedInWindow = 0;
+            for (int i = 0; i < offered; i++) {
+                now[0] = w * WINDOW_MILLIS + i * WINDOW_MILLIS / offered;
+                if (limiters[random.nextInt(nodes)].allowRequest()) {
+                    allowedInWindow++;
+                }
+            }
+            allowed += allowedInWindow;
+            maxInWindow = Math.max(maxInWindow, allowedInWindow);
+        }
+
+        for (Closeable connection : connections) {
+            connection.close();
+        }
+        return new long[] {allowed, maxInWindow, roundTrips.sum(), (long) Math.min(offered, limit) * windows};
+    }
+
+    private static void print(String mode, double load, int limit, int windows, long[] result) {
+        System.out.printf("%-14s %6.1f %12d %12d %9.1f%% %14d%n",
+                mode, load, result[0] / windows, result[1], 100.0 * result[0] / result[3], result[2] / windows);
     }
 }
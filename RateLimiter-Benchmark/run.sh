@@ -0,0 +1,17 @@
+#!/usr/bin/env bash
+# Compiles the rate limiter benchmark against Rate-limiter-Design, with the
+# measurement loop it shares with Cache-Benchmark, and runs it.
+# Extra arguments are passed to the JVM, e.g.
+#   ./run.sh -Dbench.threads=1,16,64 -Dbench.algorithms=GCRA,TOKEN_BUCKET
+set -euo pipefail
+
+here="$(cd "$(dirname "$0")" && pwd)"
+root="$(dirname "$here")"
+build="$(mktemp -d)"
+trap 'rm -rf "$build"' EXIT
+
+mkdir -p "$build/src"
+cp "$root/Rate-limiter-Design/design.java" "$build/src/Main.java"
+javac -encoding UTF-8 -d "$build/classes" "$build/src/Main.java" \
+    "$root/Cache-Benchmark/BenchSupport.java" "$here/RateLimiterBenchmark.java"
+java -Xms3g -Xmx3g -cp "$build/classes" "$@" RateLimiterBenchmark
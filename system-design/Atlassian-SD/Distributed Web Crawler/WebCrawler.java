@@ -1,22 +1,141 @@
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+
+public class WebCrawler implements AutoCloseable {
+    // Default politeness: at most one fetch per host per second
+    public static final long DEFAULT_CRAWL_DELAY_MILLIS = 1000;
+    // Default cap on fetches in flight at once, across all hosts
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+    // Default time between checkpoints of the crawl state
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_MILLIS = 60_000;
 
-public class WebCrawler {
-    // Frontier: Queue of URLs to crawl
-    private Queue<URLDepthPair> urlQueue = new ConcurrentLinkedQueue<>();
-    // Set of visited URLs to avoid duplicates
-    private Set<String> visitedUrls = ConcurrentHashMap.newKeySet();
+    // Frontier: per-host queues of URLs to crawl, handed out politely
+    private final CrawlFrontier frontier;
+    // Visited URLs in LinkTokenizer.normalize form, to avoid duplicates.
+    // Fingerprints in a Bloom filter and memory-mapped runs, not Strings.
+    private final UrlSeenSet visitedUrls;
     // Maximum depth to crawl
-    private final int MAX_DEPTH = 3;
+    private final int maxDepth;
+    // Async HTTP fetches; no thread is held while a fetch is in flight
+    private final FetchEngine fetchEngine;
+    // Bounds the number of fetches in flight
+    private final Semaphore fetchPermits;
+    // Write-ahead log and checkpoints of the seen-set and frontier
+    private final CrawlState state;
+    private final int resumedUrls;
+    // Set when the crawler made its own temporary work directory; close deletes it
+    private final Path ownedWorkDirectory;
+    private long checkpointIntervalMillis = DEFAULT_CHECKPOINT_INTERVAL_MILLIS;
+
+    public WebCrawler() {
+        this(10, DEFAULT_CRAWL_DELAY_MILLIS, 3);
+    }
+
+    public WebCrawler(int threadCount, long crawlDelayMillis, int maxDepth) {
+        this(threadCount, crawlDelayMillis, maxDepth, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public WebCrawler(int threadCount, long crawlDelayMillis, int maxDepth, int maxInFlight) {
+        this(threadCount, crawlDelayMillis, maxDepth, maxInFlight, temporaryDirectory(), true);
+    }
+
+    // threadCount threads parse fetched pages; up to maxInFlight fetches run at once.
+    // The crawl state is kept in workDirectory. If an earlier crawl left state
+    // there, this one resumes it: pages that were finished are not fetched
+    // again, and the rest of its frontier is queued.
+    public WebCrawler(int threadCount, long crawlDelayMillis, int maxDepth, int maxInFlight, Path workDirectory) {
+        this(threadCount, crawlDelayMillis, maxDepth, maxInFlight, workDirectory, false);
+    }
+
+    private WebCrawler(int threadCount, long crawlDelayMillis, int maxDepth, int maxInFlight,
+                       Path workDirectory, boolean ownsWorkDirectory) {
+        this.frontier = new CrawlFrontier(crawlDelayMillis);
+        int[] resumed = new int[1];
+        try {
+            this.state = CrawlState.open(workDirectory, pair -> {
+                frontier.add(pair);
+                resumed[0]++;
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.resumedUrls = resumed[0];
+        this.visitedUrls = state.seen;
+        this.maxDepth = maxDepth;
+        this.fetchEngine = new FetchEngine(threadCount);
+        this.fetchPermits = new Semaphore(maxInFlight);
+        this.ownedWorkDirectory = ownsWorkDirectory ? workDirectory : null;
+    }
+
+    private static Path temporaryDirectory() {
+        try {
+            return Files.createTempDirectory("web-crawler");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-    // Thread pool for concurrent crawling
-    private final ExecutorService executor = Executors.newFixedThreadPool(10);
+    // Flushes and closes the crawl log and stops the crawler's threads. A work
+    // directory the crawler created itself is deleted; one passed in is kept,
+    // so a later crawler can resume from it.
+    @Override
+    public void close() {
+        try {
+            state.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        fetchEngine.close();
+        if (ownedWorkDirectory != null) {
+            try {
+                CrawlState.deleteRecursively(ownedWorkDirectory);
+            } catch (IOException e) {
+                System.err.println("Failed to delete " + ownedWorkDirectory + ": " + e);
+            }
+        }
+    }
 
     // URL Depth Pair: Stores the URL and its depth
     static class URLDepthPair {
@@ -29,96 +148,2965 @@ public class WebCrawler {
         }
     }
 
-    // Function to start the crawl
+    public void setCheckpointInterval(long checkpointIntervalMillis) {
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+    }
+
+    // Number of URLs queued on startup from an earlier crawl's state
+    public int resumedUrls() {
+        return resumedUrls;
+    }
+
+    // Keeps startCrawl running on an empty frontier, for a node of a
+    // distributed crawl that may still be sent links. Set it back to false
+    // to let startCrawl return once the frontier drains.
+    public void setKeepAlive(boolean keepAlive) {
+        frontier.setKeepAlive(keepAlive);
+    }
+
+    // True when no URL is queued or being fetched
+    public boolean isIdle() {
+        return frontier.isIdle();
+    }
+
+    // Overrides the crawl delay for one host, e.g. from its robots.txt Crawl-delay
+    public void setCrawlDelay(String host, long crawlDelayMillis) {
+        frontier.setCrawlDelay(host, crawlDelayMillis);
+    }
+
+    // Function to start the crawl. Returns once the frontier is drained.
     public void startCrawl(String startUrl) {
-        // Add the initial URL to the queue with depth 0
-        urlQueue.add(new URLDepthPair(startUrl, 0));
-
-        // Process the URLs in the queue
-        while (!urlQueue.isEmpty() || !executor.isTerminated()) {
-            URLDepthPair pair = urlQueue.poll();
-            if (pair != null && !visitedUrls.contains(pair.url) && pair.depth <= MAX_DEPTH) {
-                visitedUrls.add(pair.url);
-                executor.execute(() -> crawlPage(pair));
-            }
-            
-            // If queue is empty, wait a bit for threads to add more URLs
-            if (urlQueue.isEmpty()) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
+        // Add the initial URL to the frontier with depth 0
+        String seed = LinkTokenizer.normalize(startUrl);
+        if (seed == null) {
+            System.err.println("Not a crawlable URL: " + startUrl);
+            return;
+        }
+        // Already seen if this is a resumed crawl
+        onLinkFound(new URLDepthPair(seed, 0));
+
+        ScheduledExecutorService checkpoints = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "crawl-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpoints.scheduleWithFixedDelay(this::checkpoint,
+                checkpointIntervalMillis, checkpointIntervalMillis, TimeUnit.MILLISECONDS);
+
+        // This thread only dispatches: it blocks on the frontier until a host is
+        // due and starts an async fetch. Links are extracted on the fetch engine's
+        // threads as the body streams in, and the host goes back to the frontier
+        // when the fetch ends.
+        try {
+            while (true) {
+                fetchPermits.acquire();
+                URLDepthPair pair = frontier.take();
+                if (pair == null) {
+                    fetchPermits.release();
+                    break; // frontier drained and nothing in flight
                 }
+                fetchEngine.fetchLinks(pair.url, link -> foundOn(pair, link))
+                        .whenComplete((result, failure) -> {
+                            if (failure != null) {
+                                System.err.println("Failed to crawl: " + pair.url + " due to " + failure);
+                            }
+                            // Its links were logged as they were found. Once DONE is
+                            // durable too, a restart will not fetch this page again.
+                            state.log.done(pair.url).whenComplete((ignored, logFailure) -> {
+                                try {
+                                    if (logFailure != null) {
+                                        System.err.println("Failed to log crawl of " + pair.url + ": " + logFailure);
+                                    }
+                                    if (failure == null) {
+                                        onPageCrawled(pair, result);
+                                    }
+                                } finally {
+                                    frontier.complete(pair);
+                                    fetchPermits.release();
+                                }
+                            });
+                        });
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            checkpoints.shutdown();
         }
-
-        // Shutdown the executor once crawling is complete
-        executor.shutdown();
+        // The frontier is empty: compact the log into a final checkpoint
         try {
-            executor.awaitTermination(30, TimeUnit.SECONDS);
+            checkpoints.awaitTermination(1, TimeUnit.MINUTES);
+            checkpoint();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
     }
 
-    // Function to crawl a single page
-    public void crawlPage(URLDepthPair pair) {
+    private void checkpoint() {
         try {
-            String content = fetchPageContent(pair.url);
+            state.checkpoint();
+        } catch (IOException e) {
+            System.err.println("Failed to checkpoint crawl state: " + e);
+        }
+    }
+
+    private void foundOn(URLDepthPair page, String link) {
+        if (page.depth < maxDepth) {
+            onLinkFound(new URLDepthPair(link, page.depth + 1));
+        }
+    }
 
-            if (content != null) {
-                System.out.println("Crawled: " + pair.url + " at depth " + pair.depth);
-                List<String> links = extractLinks(content);
+    // Every link found, and the seed, comes through here. A node of a
+    // distributed crawl overrides it to send links it does not own elsewhere.
+    protected void onLinkFound(URLDepthPair link) {
+        enqueue(link);
+    }
 
-                for (String link : links) {
-                    // Add the found links to the queue with incremented depth
-                    if (!visitedUrls.contains(link)) {
-                        urlQueue.add(new URLDepthPair(link, pair.depth + 1));
-                    }
-                }
-            }
+    // Adds a URL unless it was seen before or is too deep
+    protected void enqueue(URLDepthPair pair) {
+        if (pair.depth <= maxDepth && visitedUrls.add(pair.url)) {
+            state.log.add(pair.url, pair.depth);
+            frontier.add(pair);
+        }
+    }
+
+    // Called for every fetch that got a response; its links are already in the frontier
+    protected void onPageCrawled(URLDepthPair pair, FetchEngine.FetchResult result) {
+        System.out.println("Crawled: " + pair.url + " at depth " + pair.depth + " (" + result.status + ")");
+    }
+
+    // Function to crawl a single page, blocking until it is fetched
+    public void crawlPage(URLDepthPair pair) {
+        try {
+            FetchEngine.FetchResult result = fetchEngine
+                    .fetchLinks(pair.url, link -> foundOn(pair, link))
+                    .join();
+            state.log.done(pair.url).join();
+            onPageCrawled(pair, result);
         } catch (Exception e) {
             System.err.println("Failed to crawl: " + pair.url + " due to " + e.getMessage());
         }
     }
 
-    // Fetch page content using HttpURLConnection
+    // Fetch page content, blocking. Returns null for errors and non-HTML responses.
     public String fetchPageContent(String urlString) {
-        StringBuilder content = new StringBuilder();
         try {
-            URL url = new URL(urlString);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-
-            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                content.append(line);
-            }
-            reader.close();
+            return fetchEngine.fetch(urlString).join().body;
         } catch (Exception e) {
             System.err.println("Error fetching page: " + urlString + " - " + e.getMessage());
             return null;
         }
-        return content.toString();
     }
 
-    // Extract links from the HTML content using regex
+    // Extract absolute http(s) links from HTML content. Relative links need
+    // the page URL, see extractLinks(String, String).
     public List<String> extractLinks(String content) {
-        List<String> links = new ArrayList<>();
-        String regex = "href=\\\"(http[s]?://[^\\\"]+)\\\""; // Basic regex for extracting links
-        Pattern pattern = Pattern.compile(regex);
-        Matcher matcher = pattern.matcher(content);
+        return extractLinks(null, content);
+    }
 
-        while (matcher.find()) {
-            links.add(matcher.group(1));
-        }
+    // Extract links from HTML content, resolved against baseUrl and normalized
+    public List<String> extractLinks(String baseUrl, String content) {
+        List<String> links = new ArrayList<>();
+        LinkTokenizer tokenizer = new LinkTokenizer(baseUrl, StandardCharsets.UTF_8, links::add);
+        tokenizer.feed(ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)));
         return links;
     }
 
     public static void main(String[] args) {
-        WebCrawler crawler = new WebCrawler();
-        String startUrl = "https://example.com"; // Starting URL
-        crawler.startCrawl(startUrl);
+        try (WebCrawler crawler = new WebCrawler()) {
+            String startUrl = "https://example.com"; // Starting URL
+            crawler.startCrawl(startUrl);
+        }
+    }
+}
+
+// Async page fetcher on java.net.http.HttpClient. A fetch holds no thread
+// while waiting on the network, so thousands can be in flight at once.
+// - Connections: HTTP/1.1 keep-alive, pooled per host by the client. The
+//   frontier allows one fetch per host at a time, so a host's fetches
+//   reuse a single connection.
+// - Timeouts: connectTimeout for the TCP/TLS handshake, and an overall
+//   requestTimeout that aborts the exchange if the body has not fully
+//   arrived by then. HttpRequest.timeout alone only covers the headers.
+// - Bodies: streamed as they arrive and cut off at maxBodyBytes.
+//   fetchLinks runs them through a LinkTokenizer without keeping them,
+//   and fetch buffers them. Non-2xx and non-HTML responses are discarded
+//   without reading the body.
+// - Redirects are not followed inside the client. fetchLinks reports the
+//   Location as a link, so the target goes through the frontier and its
+//   dedupe and politeness. fetch follows up to MAX_REDIRECTS itself.
+class FetchEngine {
+    static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(15);
+    static final int DEFAULT_MAX_BODY_BYTES = 2 * 1024 * 1024;
+    static final int MAX_REDIRECTS = 5;
+
+    // Aborts exchanges that outlive requestTimeout. A timer is cancelled, and
+    // removed from the queue, as soon as its exchange completes.
+    private static final ScheduledThreadPoolExecutor TIMEOUTS = timeoutScheduler();
+
+    // Outcome of one fetch. body is only kept by fetch(), and only for a 2xx HTML page.
+    static final class FetchResult {
+        final int status;
+        final String body;
+        final long bodyBytes;
+        final boolean truncated;
+
+        FetchResult(int status, String body, long bodyBytes, boolean truncated) {
+            this.status = status;
+            this.body = body;
+            this.bodyBytes = bodyBytes;
+            this.truncated = truncated;
+        }
+    }
+
+    private final HttpClient client;
+    private final ExecutorService executor;
+    private final Duration requestTimeout;
+    private final int maxBodyBytes;
+
+    FetchEngine(int threadCount) {
+        this(threadCount, DEFAULT_CONNECT_TIMEOUT, DEFAULT_REQUEST_TIMEOUT, DEFAULT_MAX_BODY_BYTES);
+    }
+
+    FetchEngine(int threadCount, Duration connectTimeout, Duration requestTimeout, int maxBodyBytes) {
+        AtomicInteger threadIds = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "fetch-engine-" + threadIds.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(connectTimeout)
+                .executor(executor)
+                .build();
+        this.requestTimeout = requestTimeout;
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    // Stops the client's threads. Fetches still in flight do not complete.
+    void close() {
+        executor.shutdownNow();
+    }
+
+    // Fetches a page and buffers its body, following redirects
+    CompletableFuture<FetchResult> fetch(String url) {
+        return fetch(url, MAX_REDIRECTS);
+    }
+
+    private CompletableFuture<FetchResult> fetch(String url, int redirectsLeft) {
+        String[] location = new String[1];
+        return send(url, info -> {
+            if (isRedirect(info.statusCode())) {
+                location[0] = info.headers().firstValue("Location")
+                        .map(target -> LinkTokenizer.normalize(url, target))
+                        .orElse(null);
+            }
+            return isHtmlPage(info)
+                    ? new CappedBodySubscriber(info.statusCode(), charsetOf(info), maxBodyBytes, null, true)
+                    : discarding(info);
+        }).thenCompose(result -> location[0] != null && redirectsLeft > 0
+                ? fetch(location[0], redirectsLeft - 1)
+                : CompletableFuture.completedFuture(result));
+    }
+
+    // Fetches a page and passes each link in it to linkSink as the body
+    // streams in, resolved against url and normalized. The body is not kept,
+    // so memory per fetch does not depend on page size. A redirect's target
+    // is passed to linkSink as the page's only link.
+    CompletableFuture<FetchResult> fetchLinks(String url, Consumer<String> linkSink) {
+        return send(url, info -> {
+            if (isRedirect(info.statusCode())) {
+                info.headers().firstValue("Location")
+                        .map(target -> LinkTokenizer.normalize(url, target))
+                        .ifPresent(linkSink);
+            }
+            return isHtmlPage(info)
+                    ? new CappedBodySubscriber(info.statusCode(), charsetOf(info), maxBodyBytes,
+                            new LinkTokenizer(url, charsetOf(info), linkSink), false)
+                    : discarding(info);
+        });
+    }
+
+    private CompletableFuture<FetchResult> send(String url, HttpResponse.BodyHandler<FetchResult> handler) {
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(URI.create(url))
+                    .timeout(requestTimeout)
+                    .header("User-Agent", "WebCrawler/1.0")
+                    .GET()
+                    .build();
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<HttpResponse<FetchResult>> exchange = client.sendAsync(request, handler);
+        // Cancelling a pending sendAsync aborts the exchange and closes its connection
+        ScheduledFuture<?> timeout = TIMEOUTS.schedule(
+                () -> exchange.cancel(true), requestTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        exchange.whenComplete((response, failure) -> timeout.cancel(false));
+        return exchange.thenApply(HttpResponse::body);
+    }
+
+    private static ScheduledThreadPoolExecutor timeoutScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "fetch-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    // Timers still pending, one per exchange in flight
+    static int pendingTimeouts() {
+        return TIMEOUTS.getQueue().size();
+    }
+
+    private static HttpResponse.BodySubscriber<FetchResult> discarding(HttpResponse.ResponseInfo info) {
+        return HttpResponse.BodySubscribers.replacing(new FetchResult(info.statusCode(), null, 0, false));
+    }
+
+    private static boolean isRedirect(int status) {
+        return status == 301 || status == 302 || status == 303 || status == 307 || status == 308;
+    }
+
+    private static boolean isHtmlPage(HttpResponse.ResponseInfo info) {
+        String type = info.headers().firstValue("Content-Type").orElse("text/html").toLowerCase(Locale.ROOT);
+        return info.statusCode() / 100 == 2
+                && (type.startsWith("text/html") || type.startsWith("application/xhtml+xml"));
+    }
+
+    private static Charset charsetOf(HttpResponse.ResponseInfo info) {
+        String contentType = info.headers().firstValue("Content-Type").orElse("");
+        for (String parameter : contentType.split(";")) {
+            String[] pair = parameter.trim().split("=", 2);
+            if (pair.length == 2 && pair[0].equalsIgnoreCase("charset")) {
+                try {
+                    return Charset.forName(pair[1].replace("\"", "").trim());
+                } catch (Exception e) {
+                    break;
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    // Passes body buffers to a LinkTokenizer and/or a buffer as the client
+    // delivers them. Once maxBodyBytes have arrived it cancels the
+    // subscription, which stops the download.
+    private static final class CappedBodySubscriber implements HttpResponse.BodySubscriber<FetchResult> {
+        private final int status;
+        private final Charset charset;
+        private final int maxBodyBytes;
+        private final LinkTokenizer tokenizer;
+        private final ByteArrayOutputStream body;
+        private final CompletableFuture<FetchResult> result = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private long received;
+
+        CappedBodySubscriber(int status, Charset charset, int maxBodyBytes, LinkTokenizer tokenizer, boolean keepBody) {
+            this.status = status;
+            this.charset = charset;
+            this.maxBodyBytes = maxBodyBytes;
+            this.tokenizer = tokenizer;
+            this.body = keepBody ? new ByteArrayOutputStream() : null;
+        }
+
+        @Override
+        public CompletionStage<FetchResult> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            try {
+                for (ByteBuffer buffer : buffers) {
+                    int length = (int) Math.min(buffer.remaining(), maxBodyBytes - received);
+                    ByteBuffer chunk = buffer.slice().limit(length);
+                    if (tokenizer != null) {
+                        tokenizer.feed(chunk.duplicate());
+                    }
+                    if (body != null) {
+                        byte[] bytes = new byte[length];
+                        chunk.get(bytes);
+                        body.write(bytes, 0, length);
+                    }
+                    received += length;
+                    if (received >= maxBodyBytes) {
+                        subscription.cancel();
+                        complete(true);
+                        return;
+                    }
+                }
+                subscription.request(1);
+            } catch (RuntimeException e) {
+                subscription.cancel();
+                result.completeExceptionally(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            complete(false);
+        }
+
+        private void complete(boolean truncated) {
+            String text = body == null ? null : new String(body.toByteArray(), charset);
+            result.complete(new FetchResult(status, text, received, truncated));
+        }
+    }
+}
+
+// Streaming HTML link tokenizer. Bytes are fed as they arrive, in chunks
+// of any size. Each href or src attribute value is resolved against the
+// page URL, normalized and passed to the sink as soon as its closing quote
+// is seen. State is a handful of fields plus fixed buffers for the current
+// tag name, attribute name and value, so memory per page is constant and
+// each byte is looked at once.
+//
+// It understands enough HTML to avoid false links: comments, <!DOCTYPE>
+// and <?...?>, end tags, and the raw text of <script> and <style> are
+// skipped. <base href> changes the base for the rest of the page. Values
+// longer than MAX_VALUE_BYTES are dropped. &amp; in values is decoded. Other
+// entities are left alone.
+class LinkTokenizer {
+    static final int MAX_VALUE_BYTES = 4096;
+    private static final int MAX_NAME_BYTES = 16;
+    private static final byte[] SCRIPT_END = "</script".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STYLE_END = "</style".getBytes(StandardCharsets.US_ASCII);
+
+    private enum State {
+        TEXT, TAG_OPEN, MARKUP, COMMENT, SKIP_TAG, TAG_NAME,
+        BEFORE_ATTR, ATTR_NAME, AFTER_ATTR_NAME, BEFORE_VALUE, VALUE, RAW_TEXT
+    }
+
+    private final Charset charset;
+    private final Consumer<String> sink;
+    private URI base; // parsed once per page, not once per link
+
+    private State state = State.TEXT;
+    private final byte[] tagName = new byte[MAX_NAME_BYTES];
+    private int tagLength;
+    private final byte[] attrName = new byte[MAX_NAME_BYTES];
+    private int attrLength;
+    private final byte[] value = new byte[MAX_VALUE_BYTES];
+    private int valueLength;
+    private boolean valueTooLong;
+    private byte quote; // 0 while reading an unquoted value
+    private int dashes; // '-' seen in a row, for <!-- and -->
+    private byte[] rawTextEnd;
+    private int rawTextMatched;
+
+    LinkTokenizer(String baseUrl, Charset charset, Consumer<String> sink) {
+        this.base = baseUrl == null ? null : baseUri(baseUrl);
+        this.charset = charset;
+        this.sink = sink;
+    }
+
+    void feed(ByteBuffer bytes) {
+        if (bytes.hasArray()) {
+            feed(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            bytes.position(bytes.limit());
+        } else {
+            while (bytes.hasRemaining()) {
+                step(bytes.get());
+            }
+        }
+    }
+
+    void feed(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            // Most of a page is text between tags: skip straight to the next '<'
+            if (state == State.TEXT) {
+                while (i < end && bytes[i] != '<') i++;
+                if (i == end) break;
+                state = State.TAG_OPEN;
+            } else {
+                step(bytes[i]);
+            }
+        }
+    }
+
+    private void step(byte b) {
+        switch (state) {
+            case TEXT:
+                if (b == '<') state = State.TAG_OPEN;
+                break;
+            case TAG_OPEN:
+                if (isLetter(b)) {
+                    tagLength = 0;
+                    appendTagName(b);
+                    state = State.TAG_NAME;
+                } else if (b == '!') {
+                    dashes = 0;
+                    state = State.MARKUP;
+                } else if (b == '/' || b == '?') {
+                    state = State.SKIP_TAG;
+                } else if (b != '<') {
+                    state = State.TEXT;
+                }
+                break;
+            case MARKUP:
+                if (b == '-' && ++dashes == 2) {
+                    dashes = 0;
+                    state = State.COMMENT;
+                } else if (b != '-') {
+                    state = b == '>' ? State.TEXT : State.SKIP_TAG;
+                }
+                break;
+            case COMMENT:
+                if (b == '-') {
+                    dashes++;
+                } else {
+                    if (b == '>' && dashes >= 2) state = State.TEXT;
+                    dashes = 0;
+                }
+                break;
+            case SKIP_TAG:
+                if (b == '>') state = State.TEXT;
+                break;
+            case TAG_NAME:
+                if (isSpace(b) || b == '/') {
+                    state = State.BEFORE_ATTR;
+                } else if (b == '>') {
+                    endStartTag();
+                } else {
+                    appendTagName(b);
+                }
+                break;
+            case BEFORE_ATTR:
+                if (b == '>') {
+                    endStartTag();
+                } else if (!isSpace(b) && b != '/') {
+                    startAttrName(b);
+                }
+                break;
+            case ATTR_NAME:
+                if (b == '=') {
+                    state = State.BEFORE_VALUE;
+                } else if (isSpace(b)) {
+                    state = State.AFTER_ATTR_NAME;
+                } else if (b == '/') {
+                    state = State.BEFORE_ATTR;
+                } else if (b == '>') {
+                    endStartTag();
+                } else if (attrLength < MAX_NAME_BYTES) {
+                    attrName[attrLength++] = lower(b);
+                }
+                break;
+            case AFTER_ATTR_NAME:
+                if (b == '=') {
+                    state = State.BEFORE_VALUE;
+                } else if (b == '>') {
+                    endStartTag();
+                } else if (!isSpace(b)) {
+                    startAttrName(b);
+                }
+                break;
+            case BEFORE_VALUE:
+                if (b == '"' || b == '\'') {
+                    startValue(b);
+                } else if (b == '>') {
+                    endStartTag();
+                } else if (!isSpace(b)) {
+                    startValue((byte) 0);
+                    appendValue(b);
+                }
+                break;
+            case VALUE:
+                if (quote != 0 ? b == quote : isSpace(b)) {
+                    endValue();
+                    state = State.BEFORE_ATTR;
+                } else if (quote == 0 && b == '>') {
+                    endValue();
+                    endStartTag();
+                } else {
+                    appendValue(b);
+                }
+                break;
+            case RAW_TEXT:
+                if (lower(b) == rawTextEnd[rawTextMatched]) {
+                    if (++rawTextMatched == rawTextEnd.length) state = State.SKIP_TAG;
+                } else {
+                    rawTextMatched = b == '<' ? 1 : 0;
+                }
+                break;
+        }
+    }
+
+    private void endStartTag() {
+        if (tagIs("script")) {
+            rawTextEnd = SCRIPT_END;
+        } else if (tagIs("style")) {
+            rawTextEnd = STYLE_END;
+        } else {
+            state = State.TEXT;
+            return;
+        }
+        rawTextMatched = 0;
+        state = State.RAW_TEXT;
+    }
+
+    private void startAttrName(byte b) {
+        attrLength = 0;
+        attrName[attrLength++] = lower(b);
+        state = State.ATTR_NAME;
+    }
+
+    private void startValue(byte quoteChar) {
+        quote = quoteChar;
+        valueLength = 0;
+        valueTooLong = false;
+        state = State.VALUE;
+    }
+
+    private void appendValue(byte b) {
+        if (valueLength < MAX_VALUE_BYTES) {
+            value[valueLength++] = b;
+        } else {
+            valueTooLong = true;
+        }
+    }
+
+    private void appendTagName(byte b) {
+        if (tagLength < MAX_NAME_BYTES) tagName[tagLength++] = lower(b);
+    }
+
+    private void endValue() {
+        boolean href = nameIs(attrName, attrLength, "href");
+        if (valueTooLong || !(href || nameIs(attrName, attrLength, "src"))) {
+            return;
+        }
+        String raw = new String(value, 0, valueLength, charset);
+        if (raw.indexOf('&') >= 0) {
+            raw = raw.replace("&amp;", "&").replace("&#38;", "&");
+        }
+        String link = normalize(base, raw);
+        if (link == null) {
+            return;
+        }
+        if (href && tagIs("base")) {
+            base = baseUri(link);
+        } else {
+            sink.accept(link);
+        }
+    }
+
+    private boolean tagIs(String name) {
+        return nameIs(tagName, tagLength, name);
+    }
+
+    private static boolean nameIs(byte[] bytes, int length, String name) {
+        if (length != name.length()) return false;
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != name.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isLetter(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r' || b == '\f';
+    }
+
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    // Normalizes an absolute URL, e.g. a crawl seed
+    static String normalize(String link) {
+        return normalize((URI) null, link);
+    }
+
+    static String normalize(String base, String link) {
+        URI baseUri = baseUri(base);
+        return baseUri == null ? null : normalize(baseUri, link);
+    }
+
+    // Resolves link against base and puts it in canonical form:
+    // lowercase scheme and host, no default port, dot segments removed,
+    // "/" for an empty path, query parameters sorted, no fragment and no
+    // user info. Returns null for anything that is not an http(s) URL.
+    static String normalize(URI base, String link) {
+        String trimmed = link.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+            return null;
+        }
+        try {
+            URI uri = new URI(trimmed.replace(" ", "%20"));
+            if (base != null) {
+                uri = base.resolve(uri);
+            }
+            uri = uri.normalize();
+
+            String scheme = uri.getScheme() == null ? null : uri.getScheme().toLowerCase(Locale.ROOT);
+            String host = uri.getHost();
+            if (!("http".equals(scheme) || "https".equals(scheme)) || host == null) {
+                return null;
+            }
+
+            StringBuilder normalized = new StringBuilder(scheme).append("://").append(host.toLowerCase(Locale.ROOT));
+            int port = uri.getPort();
+            if (port != -1 && !(port == 80 && scheme.equals("http")) && !(port == 443 && scheme.equals("https"))) {
+                normalized.append(':').append(port);
+            }
+            String path = uri.getRawPath();
+            normalized.append(path == null || path.isEmpty() ? "/" : path);
+
+            String query = uri.getRawQuery();
+            if (query != null && !query.isEmpty()) {
+                String[] parameters = query.split("&");
+                Arrays.sort(parameters);
+                StringJoiner sorted = new StringJoiner("&", "?", "");
+                for (String parameter : parameters) {
+                    if (!parameter.isEmpty()) sorted.add(parameter);
+                }
+                normalized.append(sorted);
+            }
+            return normalized.toString();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // URI.resolve drops the slash between an empty base path and a relative
+    // link ("http://a.com" + "b" gives "http://a.comb"), so give it one
+    private static URI baseUri(String base) {
+        try {
+            URI uri = new URI(base);
+            return uri.getRawPath() == null || uri.getRawPath().isEmpty() ? uri.resolve("/") : uri;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+}
+
+// Set of URLs the crawler has already seen, sized for 100M+ URLs. Each URL
+// is kept as a 64-bit fingerprint. At 100M URLs the chance of any two
+// colliding is about 1 in 3700. There are two tiers:
+// - A scalable Bloom filter on the heap, about 2 bytes per URL. Most URLs
+//   a crawler sees are new, and for those the filter says "no" without
+//   any further lookup.
+// - An exact store that settles the filter's "maybe" answers. Fingerprints
+//   are split into stripes by their top bits. Each stripe has a small
+//   in-heap buffer of recent fingerprints and sorted runs of older ones in
+//   memory-mapped files. A full buffer is frozen and written out as a new
+//   run on a background thread, while a fresh buffer takes new adds. Runs
+//   are merged like a binary counter: the new run absorbs every newer run
+//   no bigger than itself, so a stripe has at most log2(size / buffer) + 1
+//   runs and each fingerprint is rewritten about that many times.
+// Heap use is the filter, the buffers, and a sparse index with one entry
+// per 4 KB page of each run. That is about 2 bytes per URL, not the ~150
+// of a String in a hash set, and the filter stops growing at maxBloomBytes.
+// After that its false positive rate rises and more lookups go to the runs.
+//
+// The runs in directory only live as long as the process. writeSnapshot
+// saves the whole set for a checkpoint, and the set is reopened from such
+// a snapshot by mapping its files and rebuilding the filter from them.
+class UrlSeenSet {
+    static final int STRIPE_BITS = 6;
+    static final int DEFAULT_BUFFER_SIZE = 1 << 14; // per stripe, so 1M fingerprints in all
+    static final long DEFAULT_INITIAL_CAPACITY = 1 << 22; // 7 MB of filter, 5 stages at 100M URLs
+    static final long DEFAULT_MAX_BLOOM_BYTES = 256L << 20;
+
+    private final Path directory;
+    private final BloomFilter bloom;
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+    private final int bufferSize;
+    private final ExecutorService merger;
+    private final AtomicLong size = new AtomicLong();
+    // "maybe" answers from the filter that the exact tier turned into "no"
+    private final LongAdder falsePositives = new LongAdder();
+
+    UrlSeenSet(Path directory) {
+        this(directory, null);
+    }
+
+    // Opens the set from a writeSnapshot directory, or empty if snapshot is null
+    UrlSeenSet(Path directory, Path snapshot) {
+        this(directory, snapshot, DEFAULT_BUFFER_SIZE, DEFAULT_INITIAL_CAPACITY, DEFAULT_MAX_BLOOM_BYTES);
+    }
+
+    UrlSeenSet(Path directory, Path snapshot, int bufferSize, long initialCapacity, long maxBloomBytes) {
+        this.bufferSize = bufferSize;
+        try {
+            this.directory = Files.createDirectories(directory);
+            // Runs left by an earlier process are not part of any snapshot
+            try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, "*.run")) {
+                for (Path file : stale) Files.delete(file);
+            }
+            SortedRun[] loaded = new SortedRun[stripes.length];
+            long loadedCount = 0;
+            for (int i = 0; snapshot != null && i < stripes.length; i++) {
+                Path file = snapshot.resolve("seen-" + i + ".run");
+                if (Files.exists(file) && Files.size(file) > 0) {
+                    loaded[i] = SortedRun.open(file);
+                    loadedCount += loaded[i].count;
+                }
+            }
+            // Size the first stage for what is already there, so lookups
+            // do not have to go through a long chain of small stages
+            this.bloom = new BloomFilter(Math.max(initialCapacity, loadedCount), maxBloomBytes);
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i] = new Stripe(i, bufferSize);
+                if (loaded[i] != null) {
+                    stripes[i].runs = new SortedRun[] {loaded[i]};
+                    loaded[i].forEach(bloom::add);
+                }
+            }
+            size.set(loadedCount);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.merger = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "url-seen-set-merge");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Adds the URL. Returns true if it was not in the set before.
+    boolean add(String url) {
+        return add(fingerprint(url));
+    }
+
+    boolean add(long fingerprint) {
+        Stripe stripe = stripes[(int) (fingerprint >>> (64 - STRIPE_BITS))];
+        synchronized (stripe) {
+            // A fingerprint always goes to the filter under its stripe's lock,
+            // so a "no" here cannot race with another add of the same one
+            if (bloom.mightContain(fingerprint)) {
+                if (stripe.contains(fingerprint)) {
+                    return false;
+                }
+                falsePositives.increment();
+            }
+            stripe.buffer.add(fingerprint);
+            bloom.add(fingerprint);
+            if (stripe.buffer.size() >= bufferSize && stripe.frozen == null) {
+                stripe.frozen = stripe.buffer;
+                stripe.buffer = new LongHashSet(bufferSize);
+                merger.execute(() -> merge(stripe));
+            }
+        }
+        size.incrementAndGet();
+        return true;
+    }
+
+    long size() {
+        return size.get();
+    }
+
+    // Waits for a running merge and stops the merge thread
+    void close() throws InterruptedException {
+        merger.shutdown();
+        merger.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    long falsePositives() {
+        return falsePositives.sum();
+    }
+
+    long bloomBytes() {
+        return bloom.bytes();
+    }
+
+    // Writes every fingerprint in the set to target, one sorted file per
+    // stripe. Adds carry on meanwhile; each stripe is copied as of the
+    // moment its lock is taken.
+    void writeSnapshot(Path target) throws IOException {
+        for (Stripe stripe : stripes) {
+            SortedRun[] runs;
+            long[] recent;
+            synchronized (stripe) {
+                runs = stripe.runs;
+                recent = stripe.buffer.toArray(stripe.frozen);
+            }
+            Arrays.sort(recent);
+            SortedRun.merge(runs, recent, target.resolve("seen-" + stripe.index + ".run"), true);
+        }
+    }
+
+    long diskBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (SortedRun run : stripe.runs) {
+                    bytes += run.count * 8L;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    // Writes the stripe's frozen buffer, merged with the newest runs no
+    // bigger than it so far, into a new run. Adds and lookups carry on
+    // meanwhile: they still see the frozen buffer and the old runs until
+    // the new run is swapped in. Only this thread changes a stripe's runs.
+    private void merge(Stripe stripe) {
+        LongHashSet frozen;
+        SortedRun[] runs;
+        synchronized (stripe) {
+            frozen = stripe.frozen;
+            runs = stripe.runs;
+        }
+        long total = frozen.size();
+        int absorbed = 0;
+        while (absorbed < runs.length && runs[absorbed].count <= total) {
+            total += runs[absorbed++].count;
+        }
+        SortedRun[] merging = Arrays.copyOf(runs, absorbed);
+        SortedRun merged;
+        try {
+            Path file = directory.resolve("seen-" + stripe.index + "-" + (++stripe.generation) + ".run");
+            merged = SortedRun.merge(merging, frozen.toSortedArray(), file, false);
+        } catch (IOException e) {
+            // Keep the fingerprints in memory; the next full buffer retries the merge
+            System.err.println("Failed to merge seen URLs into " + directory + ": " + e);
+            synchronized (stripe) {
+                stripe.buffer.addAll(frozen);
+                stripe.frozen = null;
+            }
+            return;
+        }
+        SortedRun[] remaining = new SortedRun[runs.length - absorbed + 1];
+        remaining[0] = merged;
+        System.arraycopy(runs, absorbed, remaining, 1, runs.length - absorbed);
+        synchronized (stripe) {
+            stripe.runs = remaining;
+            stripe.frozen = null;
+        }
+        for (SortedRun old : merging) {
+            try {
+                old.delete();
+            } catch (IOException e) {
+                System.err.println("Failed to delete " + old.file + ": " + e);
+            }
+        }
+    }
+
+    // FNV-1a over the URL's chars, then the MurmurHash3 finalizer so every
+    // bit depends on every char. Never 0, which LongHashSet uses for empty.
+    static long fingerprint(String url) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < url.length(); i++) {
+            hash ^= url.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash = mix(hash);
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static final class Stripe {
+        final int index;
+        LongHashSet buffer;
+        LongHashSet frozen; // being merged into a new run, null when no merge is running
+        SortedRun[] runs = new SortedRun[0]; // newest first, each bigger than the one before
+        int generation; // only touched by the merge thread
+
+        Stripe(int index, int bufferSize) {
+            this.index = index;
+            this.buffer = new LongHashSet(bufferSize);
+        }
+
+        boolean contains(long fingerprint) {
+            if (buffer.contains(fingerprint) || (frozen != null && frozen.contains(fingerprint))) {
+                return true;
+            }
+            for (SortedRun run : runs) {
+                if (run.contains(fingerprint)) return true;
+            }
+            return false;
+        }
+    }
+
+    // Scalable Bloom filter (Almeida et al.): a list of stages, each a blocked
+    // Bloom filter. A fingerprint's bits all fall in one 512-bit block, so a
+    // lookup in a stage costs one cache miss instead of one per hash. When
+    // the newest stage has taken its capacity a new one
+    // twice the size is added, with a false positive rate TIGHTENING times
+    // lower, so the overall rate stays under FIRST_FALSE_POSITIVE_RATE /
+    // (1 - TIGHTENING), about 1%, however many URLs are added.
+    // Bits are set with an atomic OR and stages are published through a
+    // volatile array, so any number of threads can use it without locking.
+    static final class BloomFilter {
+        private static final double FIRST_FALSE_POSITIVE_RATE = 0.002;
+        private static final double TIGHTENING = 0.8;
+        private static final int BLOCK_WORDS = 8;
+        private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+        private final long maxBytes;
+        private volatile Stage[] stages;
+
+        BloomFilter(long initialCapacity, long maxBytes) {
+            this.maxBytes = maxBytes;
+            this.stages = new Stage[] {new Stage(initialCapacity, FIRST_FALSE_POSITIVE_RATE)};
+        }
+
+        boolean mightContain(long fingerprint) {
+            long second = mix(fingerprint) | 1;
+            for (Stage stage : stages) {
+                if (stage.mightContain(fingerprint, second)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void add(long fingerprint) {
+            Stage[] current = stages;
+            Stage last = current[current.length - 1];
+            last.add(fingerprint, mix(fingerprint) | 1);
+            // Exactly one thread sees the count hit capacity, and only it grows the filter
+            if (last.count.incrementAndGet() == last.capacity) {
+                Stage next = new Stage(last.capacity * 2, last.falsePositiveRate * TIGHTENING);
+                if (bytes() + next.words.length * 8L <= maxBytes) {
+                    Stage[] grown = Arrays.copyOf(current, current.length + 1);
+                    grown[current.length] = next;
+                    stages = grown;
+                }
+            }
+        }
+
+        long bytes() {
+            long bytes = 0;
+            for (Stage stage : stages) {
+                bytes += stage.words.length * 8L;
+            }
+            return bytes;
+        }
+
+        private static final class Stage {
+            final long capacity;
+            final double falsePositiveRate;
+            final long[] words;
+            final long blockCount;
+            final int hashCount;
+            final AtomicLong count = new AtomicLong();
+
+            Stage(long capacity, double falsePositiveRate) {
+                this.capacity = capacity;
+                this.falsePositiveRate = falsePositiveRate;
+                // Optimal size: m = -n ln p / (ln 2)^2 bits and k = (m / n) ln 2 hashes
+                long bits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+                this.blockCount = Math.min((Integer.MAX_VALUE - 8) / BLOCK_WORDS, (bits + 511) / 512);
+                this.words = new long[(int) blockCount * BLOCK_WORDS];
+                this.hashCount = Math.max(1, (int) Math.round((double) bits / capacity * Math.log(2)));
+            }
+
+            // first picks the block. Bit i in it is the top 9 bits of
+            // second + i * step (double hashing).
+            boolean mightContain(long first, long second) {
+                int block = block(first);
+                long step = Long.rotateLeft(first, 29) | 1;
+                for (int i = 0; i < hashCount; i++, second += step) {
+                    int bit = (int) (second >>> 55);
+                    if (((long) WORDS.getAcquire(words, block + (bit >>> 6)) & (1L << bit)) == 0) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            void add(long first, long second) {
+                int block = block(first);
+                long step = Long.rotateLeft(first, 29) | 1;
+                for (int i = 0; i < hashCount; i++, second += step) {
+                    int bit = (int) (second >>> 55);
+                    int word = block + (bit >>> 6);
+                    // Skip the atomic write when another fingerprint already set the bit
+                    if (((long) WORDS.getAcquire(words, word) & (1L << bit)) == 0) {
+                        WORDS.getAndBitwiseOr(words, word, 1L << bit);
+                    }
+                }
+            }
+
+            private int block(long hash) {
+                // (hash / 2^64) * blockCount without a division
+                return (int) Math.multiplyHigh(hash >>> 1, blockCount << 1) * BLOCK_WORDS;
+            }
+        }
+    }
+
+    // Open-addressing hash set of non-zero longs. Not thread safe.
+    static final class LongHashSet {
+        private long[] table;
+        private int size;
+
+        LongHashSet(int expected) {
+            table = new long[Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1];
+        }
+
+        boolean contains(long value) {
+            int mask = table.length - 1;
+            for (int slot = (int) value & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                if (table[slot] == value) return true;
+            }
+            return false;
+        }
+
+        boolean add(long value) {
+            int mask = table.length - 1;
+            int slot = (int) value & mask;
+            for (; table[slot] != 0; slot = (slot + 1) & mask) {
+                if (table[slot] == value) return false;
+            }
+            table[slot] = value;
+            if (++size * 2 > table.length) {
+                long[] old = table;
+                table = new long[old.length * 2];
+                size = 0;
+                for (long v : old) {
+                    if (v != 0) add(v);
+                }
+            }
+            return true;
+        }
+
+        void addAll(LongHashSet other) {
+            for (long v : other.table) {
+                if (v != 0) add(v);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        long[] toSortedArray() {
+            long[] values = toArray(null);
+            Arrays.sort(values);
+            return values;
+        }
+
+        // The values of this set and of other (if not null), in no order
+        long[] toArray(LongHashSet other) {
+            long[] values = new long[size + (other == null ? 0 : other.size)];
+            int i = 0;
+            for (long v : table) {
+                if (v != 0) values[i++] = v;
+            }
+            for (int j = 0; other != null && j < other.table.length; j++) {
+                if (other.table[j] != 0) values[i++] = other.table[j];
+            }
+            return values;
+        }
+    }
+
+    // An immutable file of sorted fingerprints, memory-mapped for lookups.
+    // The heap holds only the first fingerprint of each 4 KB page. A lookup
+    // binary searches that index for the page, then guesses the position in
+    // the page by interpolation and scans from there. Fingerprints are
+    // uniform, so the guess is usually within a cache line or two.
+    static final class SortedRun {
+        private static final int PAGE_ENTRIES = 512;
+
+        final Path file;
+        private final boolean owned; // false for a snapshot's files, which the checkpoint owns
+        private final LongBuffer values;
+        private final long[] pageFirst;
+        private final long last;
+        final int count;
+
+        private SortedRun(Path file, boolean owned, LongBuffer values, long[] pageFirst, long last, int count) {
+            this.file = file;
+            this.owned = owned;
+            this.values = values;
+            this.pageFirst = pageFirst;
+            this.last = last;
+            this.count = count;
+        }
+
+        // Maps a run written by merge. It is never deleted through this object.
+        static SortedRun open(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                int count = (int) (channel.size() / 8);
+                LongBuffer values = channel.map(FileChannel.MapMode.READ_ONLY, 0, count * 8L).asLongBuffer();
+                long[] pageFirst = new long[(count + PAGE_ENTRIES - 1) / PAGE_ENTRIES];
+                for (int page = 0; page < pageFirst.length; page++) {
+                    pageFirst[page] = values.get(page * PAGE_ENTRIES);
+                }
+                return new SortedRun(file, false, values, pageFirst, values.get(count - 1), count);
+            }
+        }
+
+        void forEach(java.util.function.LongConsumer action) {
+            for (int i = 0; i < count; i++) action.accept(values.get(i));
+        }
+
+        boolean contains(long fingerprint) {
+            int page = Arrays.binarySearch(pageFirst, fingerprint);
+            if (page >= 0) return true;
+            page = -page - 2; // the page whose first fingerprint is below this one
+            if (page < 0 || fingerprint > last) return false;
+            int low = page * PAGE_ENTRIES;
+            int high = Math.min(count, low + PAGE_ENTRIES) - 1;
+            double lowValue = pageFirst[page];
+            double highValue = page + 1 < pageFirst.length ? pageFirst[page + 1] : last;
+            int i = low + (int) ((fingerprint - lowValue) / (highValue - lowValue) * (high - low));
+            i = Math.max(low, Math.min(high, i));
+            while (i < high && values.get(i) < fingerprint) i++;
+            while (i > low && values.get(i) > fingerprint) i--;
+            return values.get(i) == fingerprint;
+        }
+
+        // Streams the runs and the new fingerprints, all sorted and disjoint,
+        // into a new file and maps it. There are only a handful of inputs,
+        // so the smallest head is found by a linear scan. With durable set
+        // the file is forced to disk first.
+        static SortedRun merge(SortedRun[] runs, long[] added, Path file, boolean durable) throws IOException {
+            long total = added.length;
+            for (SortedRun run : runs) total += run.count;
+            if (total > Integer.MAX_VALUE) {
+                throw new IOException("Run would hold " + total + " fingerprints");
+            }
+            int count = (int) total;
+            int[] positions = new int[runs.length];
+            long[] pageFirst = new long[(count + PAGE_ENTRIES - 1) / PAGE_ENTRIES];
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+                long last = 0;
+                int j = 0;
+                for (int written = 0; written < count; written++) {
+                    int source = -2; // -1 is added, -2 is none yet
+                    long next = 0;
+                    if (j < added.length) {
+                        next = added[j];
+                        source = -1;
+                    }
+                    for (int r = 0; r < runs.length; r++) {
+                        if (positions[r] < runs[r].count) {
+                            long head = runs[r].values.get(positions[r]);
+                            if (source == -2 || head < next) {
+                                next = head;
+                                source = r;
+                            }
+                        }
+                    }
+                    if (source == -1) {
+                        j++;
+                    } else {
+                        positions[source]++;
+                    }
+                    if (written % PAGE_ENTRIES == 0) pageFirst[written / PAGE_ENTRIES] = next;
+                    last = next;
+                    out.putLong(next);
+                    if (!out.hasRemaining()) {
+                        out.flip();
+                        while (out.hasRemaining()) channel.write(out);
+                        out.clear();
+                    }
+                }
+                out.flip();
+                while (out.hasRemaining()) channel.write(out);
+                if (durable) channel.force(false);
+                LongBuffer values = channel.map(FileChannel.MapMode.READ_ONLY, 0, count * 8L).asLongBuffer();
+                return new SortedRun(file, true, values, pageFirst, last, count);
+            }
+        }
+
+        // The mapping stays valid after the file is deleted, until it is collected
+        void delete() throws IOException {
+            if (owned) Files.deleteIfExists(file);
+        }
+    }
+}
+
+// Write-ahead log of the crawl. There is an ADD record for every URL that
+// passed the seen-set and went into the frontier, and a DONE record for
+// every URL whose fetch has finished and left the frontier for good.
+// Replaying the ADDs rebuilds the seen-set. ADDs minus DONEs give the
+// frontier.
+//
+// Appends go into an in-memory batch. One flusher thread writes each batch
+// with a single FileChannel write and force (group commit). While one
+// batch is being forced the next fills up, so the fsync rate stays flat
+// however many threads append. add() does not wait. done() returns a
+// future that completes once the record is on disk.
+//
+// The log is split into segments, wal-<n>.log, and roll() starts the next
+// one so a checkpoint can drop the segments it covers. A record is
+// [length][CRC32C][payload]. Replay stops at the first torn or corrupt
+// record, which is where a crash cut off the last write.
+class CrawlLog {
+    static final byte ADD = 1;
+    static final byte DONE = 2;
+    private static final int MAX_RECORD_BYTES = 1 << 16;
+
+    interface Visitor {
+        void add(String url, int depth);
+
+        void done(String url);
+    }
+
+    private static final class Batch {
+        final long segment;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final List<CompletableFuture<Void>> waiters = new ArrayList<>();
+        int records;
+
+        Batch(long segment) {
+            this.segment = segment;
+        }
+
+        boolean isEmpty() {
+            return bytes.size() == 0 && waiters.isEmpty();
+        }
+    }
+
+    private final Path directory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasWork = lock.newCondition();
+    private final Deque<Batch> sealed = new ArrayDeque<>(); // finished segments still to be written
+    private Batch current;
+    private long segment;
+    private IOException failure; // after a failed write nothing more is logged
+    private boolean closed;
+    private final Thread flusher;
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong syncs = new AtomicLong();
+
+    // Only the flusher thread uses these
+    private FileChannel channel;
+    private long channelSegment = -1;
+
+    CrawlLog(Path directory, long segment) {
+        this.directory = directory;
+        this.segment = segment;
+        this.current = new Batch(segment);
+        this.flusher = new Thread(this::flushLoop, "crawl-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    void add(String url, int depth) {
+        append(encode(ADD, depth, url), null);
+    }
+
+    CompletableFuture<Void> done(String url) {
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        append(encode(DONE, 0, url), durable);
+        return durable;
+    }
+
+    // Ends the current segment. The future completes with the number of the
+    // next segment once every record appended before the call is on disk.
+    CompletableFuture<Long> roll() {
+        CompletableFuture<Void> flushed = new CompletableFuture<>();
+        long next;
+        lock.lock();
+        try {
+            current.waiters.add(flushed);
+            sealed.add(current);
+            next = ++segment;
+            current = new Batch(next);
+            hasWork.signal();
+        } finally {
+            lock.unlock();
+        }
+        return flushed.thenApply(ignored -> next);
+    }
+
+    long records() {
+        return records.get();
+    }
+
+    long syncs() {
+        return syncs.get();
+    }
+
+    // Writes what is pending and stops the flusher
+    void close() throws InterruptedException {
+        lock.lock();
+        try {
+            closed = true;
+            hasWork.signal();
+        } finally {
+            lock.unlock();
+        }
+        flusher.join();
+    }
+
+    private void append(byte[] record, CompletableFuture<Void> waiter) {
+        lock.lock();
+        try {
+            if (failure != null || closed) {
+                if (waiter != null) waiter.completeExceptionally(failure != null ? failure : new IOException("Log is closed"));
+                return;
+            }
+            current.bytes.write(record, 0, record.length);
+            current.records++;
+            if (waiter != null) current.waiters.add(waiter);
+            hasWork.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            List<Batch> batches = new ArrayList<>();
+            IOException error;
+            lock.lock();
+            try {
+                while (sealed.isEmpty() && current.isEmpty() && !closed) {
+                    hasWork.awaitUninterruptibly();
+                }
+                batches.addAll(sealed);
+                sealed.clear();
+                if (!current.isEmpty()) {
+                    batches.add(current);
+                    current = new Batch(segment);
+                }
+                if (batches.isEmpty()) {
+                    break; // closed and everything written
+                }
+                error = failure;
+            } finally {
+                lock.unlock();
+            }
+
+            if (error == null) {
+                try {
+                    write(batches);
+                } catch (IOException e) {
+                    System.err.println("Crawl log write failed, crawl state is no longer durable: " + e);
+                    error = e;
+                    lock.lock();
+                    try {
+                        failure = e;
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+            for (Batch batch : batches) {
+                for (CompletableFuture<Void> waiter : batch.waiters) {
+                    if (error == null) {
+                        waiter.complete(null);
+                    } else {
+                        waiter.completeExceptionally(error);
+                    }
+                }
+            }
+        }
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close crawl log: " + e);
+        }
+    }
+
+    private void write(List<Batch> batches) throws IOException {
+        for (Batch batch : batches) {
+            if (batch.segment != channelSegment) {
+                if (channel != null) {
+                    channel.force(false);
+                    channel.close();
+                }
+                channel = FileChannel.open(segmentFile(directory, batch.segment),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                channelSegment = batch.segment;
+            }
+            // Straight from the batch's array to the channel, without a copy
+            batch.bytes.writeTo(Channels.newOutputStream(channel));
+            records.addAndGet(batch.records);
+        }
+        channel.force(false);
+        syncs.incrementAndGet();
+    }
+
+    static byte[] encode(byte type, int depth, String url) {
+        byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + (type == ADD ? 4 : 0) + urlBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(8 + length);
+        record.putInt(length).putInt(0).put(type);
+        if (type == ADD) record.putInt(depth);
+        record.put(urlBytes);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 8, length);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    // Replays the records in file up to the first torn or corrupt one.
+    // Returns how many were replayed.
+    static long replay(Path file, Visitor visitor) throws IOException {
+        long count = 0;
+        CRC32C crc = new CRC32C();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            while (true) {
+                byte[] payload;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 2 || length > MAX_RECORD_BYTES) break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                if ((int) crc.getValue() != checksum) break;
+
+                if (payload[0] == ADD && payload.length >= 5) {
+                    int depth = ByteBuffer.wrap(payload, 1, 4).getInt();
+                    visitor.add(new String(payload, 5, payload.length - 5, StandardCharsets.UTF_8), depth);
+                } else if (payload[0] == DONE) {
+                    visitor.done(new String(payload, 1, payload.length - 1, StandardCharsets.UTF_8));
+                } else {
+                    break;
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    static Path segmentFile(Path directory, long segment) {
+        return directory.resolve("wal-" + segment + ".log");
+    }
+
+    // Numbers of the segments in directory, in order
+    static List<Long> segments(Path directory) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "wal-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.add(Long.parseLong(name.substring(4, name.length() - 4)));
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+}
+
+// Durable crawl state in one directory: the seen-set, the write-ahead log,
+// and checkpoints that compact them.
+//   CURRENT         number n of the latest complete checkpoint
+//   checkpoint-n/   seen-<stripe>.run: the seen-set as of the roll to segment n
+//                   frontier.log: an ADD record for every URL not yet done
+//   wal-<m>.log     log segments m >= n, replayed on top of checkpoint n
+//   seen/           runs of the live seen-set, dropped on restart
+// A checkpoint rolls the log to segment n and snapshots the seen-set. It
+// then builds the new frontier.log from the previous one plus the
+// segments before n. All of that reads files, not the live frontier, so
+// the crawl does not pause. The snapshot may already hold URLs whose ADD
+// is in segment n or later. That is harmless, because replaying an ADD
+// for a URL the set already has changes nothing. CURRENT is replaced
+// atomically, and only then are the old segments and checkpoint deleted.
+class CrawlState {
+    static final String CURRENT = "CURRENT";
+    static final String FRONTIER = "frontier.log";
+
+    final UrlSeenSet seen;
+    final CrawlLog log;
+    private final Path directory;
+    private long checkpointSegment; // -1 before the first checkpoint
+    // For reporting: records replayed by open and how long it took
+    final long recoveredRecords;
+    final long recoveryMillis;
+
+    private CrawlState(Path directory, UrlSeenSet seen, CrawlLog log, long checkpointSegment,
+                       long recoveredRecords, long recoveryMillis) {
+        this.directory = directory;
+        this.seen = seen;
+        this.log = log;
+        this.checkpointSegment = checkpointSegment;
+        this.recoveredRecords = recoveredRecords;
+        this.recoveryMillis = recoveryMillis;
+    }
+
+    // Opens the state in directory, empty if there is none yet. Every URL
+    // that was added but not done is passed to resume, in the order it was
+    // first added.
+    static CrawlState open(Path directory, Consumer<WebCrawler.URLDepthPair> resume) throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(directory);
+        long checkpoint = readCurrent(directory);
+        Path checkpointDirectory = checkpoint < 0 ? null : checkpointDirectory(directory, checkpoint);
+        deleteUnusedCheckpoints(directory, checkpoint);
+
+        UrlSeenSet seen = new UrlSeenSet(directory.resolve("seen"), checkpointDirectory);
+        Map<String, Integer> pending = new LinkedHashMap<>();
+        long records = 0;
+        if (checkpointDirectory != null) {
+            records += CrawlLog.replay(checkpointDirectory.resolve(FRONTIER), pendingVisitor(pending));
+        }
+        CrawlLog.Visitor replay = new CrawlLog.Visitor() {
+            @Override
+            public void add(String url, int depth) {
+                seen.add(url);
+                pending.putIfAbsent(url, depth);
+            }
+
+            @Override
+            public void done(String url) {
+                pending.remove(url);
+            }
+        };
+        long nextSegment = checkpoint < 0 ? 0 : checkpoint;
+        for (long segment : CrawlLog.segments(directory)) {
+            if (segment < checkpoint) {
+                Files.delete(CrawlLog.segmentFile(directory, segment)); // covered by the checkpoint
+                continue;
+            }
+            records += CrawlLog.replay(CrawlLog.segmentFile(directory, segment), replay);
+            nextSegment = segment + 1;
+        }
+
+        pending.forEach((url, depth) -> resume.accept(new WebCrawler.URLDepthPair(url, depth)));
+        // Append to a fresh segment, never after a torn tail
+        CrawlLog log = new CrawlLog(directory, nextSegment);
+        return new CrawlState(directory, seen, log, checkpoint, records, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    // Writes a new checkpoint and deletes the log segments and checkpoint it replaces
+    synchronized void checkpoint() throws IOException {
+        long segment;
+        try {
+            segment = log.roll().join();
+        } catch (CompletionException e) {
+            throw new IOException("Could not roll the crawl log", e.getCause());
+        }
+        Path target = Files.createDirectories(checkpointDirectory(directory, segment));
+        seen.writeSnapshot(target);
+
+        Map<String, Integer> pending = new LinkedHashMap<>();
+        CrawlLog.Visitor visitor = pendingVisitor(pending);
+        if (checkpointSegment >= 0) {
+            CrawlLog.replay(checkpointDirectory(directory, checkpointSegment).resolve(FRONTIER), visitor);
+        }
+        List<Long> segments = CrawlLog.segments(directory);
+        for (long old : segments) {
+            if (old >= checkpointSegment && old < segment) {
+                CrawlLog.replay(CrawlLog.segmentFile(directory, old), visitor);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(target.resolve(FRONTIER),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+            for (Map.Entry<String, Integer> entry : pending.entrySet()) {
+                out.write(CrawlLog.encode(CrawlLog.ADD, entry.getValue(), entry.getKey()));
+            }
+            out.flush();
+            channel.force(false);
+        }
+        forceDirectory(target);
+
+        // The switch: write CURRENT aside, then rename it over the old one
+        Path next = directory.resolve(CURRENT + ".tmp");
+        try (FileChannel channel = FileChannel.open(next, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(Long.toString(segment).getBytes(StandardCharsets.US_ASCII)));
+            channel.force(false);
+        }
+        Files.move(next, directory.resolve(CURRENT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory(directory);
+
+        for (long old : segments) {
+            if (old < segment) Files.deleteIfExists(CrawlLog.segmentFile(directory, old));
+        }
+        checkpointSegment = segment;
+        deleteUnusedCheckpoints(directory, segment);
+    }
+
+    void close() throws InterruptedException {
+        log.close();
+        seen.close();
+    }
+
+    // Deletes directory and everything under it
+    static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) return;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                if (Files.isDirectory(entry)) {
+                    deleteRecursively(entry);
+                } else {
+                    Files.delete(entry);
+                }
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static CrawlLog.Visitor pendingVisitor(Map<String, Integer> pending) {
+        return new CrawlLog.Visitor() {
+            @Override
+            public void add(String url, int depth) {
+                pending.putIfAbsent(url, depth);
+            }
+
+            @Override
+            public void done(String url) {
+                pending.remove(url);
+            }
+        };
+    }
+
+    private static long readCurrent(Path directory) throws IOException {
+        Path current = directory.resolve(CURRENT);
+        if (!Files.exists(current)) return -1;
+        return Long.parseLong(new String(Files.readAllBytes(current), StandardCharsets.US_ASCII).trim());
+    }
+
+    private static Path checkpointDirectory(Path directory, long segment) {
+        return directory.resolve("checkpoint-" + segment);
+    }
+
+    // Deletes every checkpoint but keep: older ones, and any a crash left half written
+    private static void deleteUnusedCheckpoints(Path directory, long keep) throws IOException {
+        try (DirectoryStream<Path> checkpoints = Files.newDirectoryStream(directory, "checkpoint-*")) {
+            for (Path checkpoint : checkpoints) {
+                if (checkpoint.equals(checkpointDirectory(directory, keep))) continue;
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(checkpoint)) {
+                    for (Path file : files) Files.delete(file);
+                }
+                Files.delete(checkpoint);
+            }
+        }
+    }
+
+    // Makes renames and new files in a directory durable. Not every platform
+    // can open a directory, and there it is left to the file system.
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // best effort
+        }
+    }
+}
+
+// Assigns hosts to the nodes of a distributed crawl by consistent hashing.
+// Each node has VIRTUAL_NODES points on a 64-bit ring, and a host belongs
+// to the node with the first point at or after the host's hash. A node
+// gets about 1/n of the hosts. Adding or removing one moves only the hosts
+// between its points and their neighbours.
+class HostRing {
+    static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, Integer> points = new TreeMap<>();
+
+    HostRing(int nodeCount) {
+        for (int node = 0; node < nodeCount; node++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                points.put(UrlSeenSet.fingerprint("node-" + node + "#" + v), node);
+            }
+        }
+    }
+
+    int ownerOf(String host) {
+        Map.Entry<Long, Integer> point = points.ceilingEntry(UrlSeenSet.fingerprint(host));
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+}
+
+// One node of a host-partitioned crawl. A node only crawls the hosts
+// HostRing gives it, with its own frontier, seen-set and crawl state, so
+// politeness and dedupe stay local. A link to another node's host is
+// added to a batch for that node. A batch is sent over TCP once it holds
+// BATCH_SIZE links or has waited LINGER_MILLIS, and the receiving node
+// puts the links through its own seen-set.
+//
+// Protocol, one connection per sender, big-endian as DataOutputStream writes it:
+//   LINKS  byte 1, int count, then count x (int depth, UTF url)
+//   STATUS byte 2, answered with boolean idle, long sent, long received, long crawled
+//   STOP   byte 3, finish once the frontier is empty
+// The crawl is over when every node is idle and has no batch waiting, and
+// all links sent have been received. A coordinator checks that with two
+// rounds of STATUS that give the same counts (Mattern's four counters),
+// then sends STOP to every node.
+class CrawlNode extends WebCrawler {
+    static final byte LINKS = 1;
+    static final byte STATUS = 2;
+    static final byte STOP = 3;
+    static final int BATCH_SIZE = 256;
+    static final long LINGER_MILLIS = 10;
+
+    private final int self;
+    private final HostRing ring;
+    private final Peer[] peers;
+    private final ServerSocket server;
+    // Connections other nodes and the coordinator opened to this one
+    private final Set<Socket> accepted = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService linger;
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong crawled = new AtomicLong();
+
+    CrawlNode(int self, List<InetSocketAddress> nodes, int threadCount, long crawlDelayMillis, int maxDepth,
+              int maxInFlight, Path workDirectory) throws IOException {
+        super(threadCount, crawlDelayMillis, maxDepth, maxInFlight, workDirectory);
+        this.self = self;
+        this.ring = new HostRing(nodes.size());
+        this.peers = new Peer[nodes.size()];
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = i == self ? null : new Peer(nodes.get(i));
+        }
+        this.server = new ServerSocket();
+        server.bind(nodes.get(self));
+        setKeepAlive(true);
+
+        Thread acceptor = new Thread(this::acceptLoop, "crawl-node-" + self + "-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        this.linger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "crawl-node-" + self + "-linger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        linger.scheduleWithFixedDelay(() -> {
+            for (Peer peer : peers) {
+                if (peer != null) peer.flush();
+            }
+        }, LINGER_MILLIS, LINGER_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void onLinkFound(URLDepthPair link) {
+        int owner = ring.ownerOf(CrawlFrontier.hostOf(link.url));
+        if (owner == self) {
+            enqueue(link);
+        } else {
+            peers[owner].send(link);
+        }
+    }
+
+    @Override
+    protected void onPageCrawled(URLDepthPair pair, FetchEngine.FetchResult result) {
+        crawled.incrementAndGet();
+    }
+
+    // Stops accepting, closes every connection to and from this node, then
+    // closes the crawl state like WebCrawler.close
+    @Override
+    public void close() {
+        linger.shutdownNow();
+        try {
+            server.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        for (Socket socket : accepted) {
+            closeQuietly(socket);
+        }
+        for (Peer peer : peers) {
+            if (peer != null) peer.close();
+        }
+        super.close();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    private void acceptLoop() {
+        while (true) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                return; // closed
+            }
+            accepted.add(socket);
+            if (server.isClosed()) {
+                closeQuietly(socket); // accepted while close ran
+                return;
+            }
+            Thread reader = new Thread(() -> serve(socket), "crawl-node-" + self + "-peer");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (type == LINKS) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        int depth = in.readInt();
+                        // Routed again in case the sender's ring differs from ours
+                        onLinkFound(new URLDepthPair(in.readUTF(), depth));
+                    }
+                    // Counted only after the links are queued, so the node is
+                    // not idle while any link it was sent is unaccounted for
+                    received.addAndGet(count);
+                } else if (type == STATUS) {
+                    // Frontier first: once nothing is queued or in flight, only a
+                    // LINKS message can add to a batch, and that shows up in the
+                    // counters of the next round
+                    boolean idle = isIdle();
+                    long sent = 0;
+                    for (Peer peer : peers) {
+                        if (peer == null) continue;
+                        synchronized (peer) {
+                            idle &= peer.batch.isEmpty();
+                            sent += peer.sent;
+                        }
+                    }
+                    out.writeBoolean(idle);
+                    out.writeLong(sent);
+                    out.writeLong(received.get());
+                    out.writeLong(crawled.get());
+                    out.flush();
+                } else if (type == STOP) {
+                    setKeepAlive(false);
+                } else {
+                    throw new IOException("Unknown message type " + type);
+                }
+            }
+        } catch (IOException e) {
+            if (!server.isClosed()) {
+                System.err.println("Crawl node " + self + " lost a peer connection: " + e);
+            }
+        } finally {
+            accepted.remove(socket);
+        }
+    }
+
+    // Links waiting for one other node, and the connection they go over
+    private static final class Peer {
+        final InetSocketAddress address;
+        final List<URLDepthPair> batch = new ArrayList<>();
+        long sent;
+        private Socket socket;
+        private DataOutputStream out;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        synchronized void send(URLDepthPair link) {
+            batch.add(link);
+            if (batch.size() >= BATCH_SIZE) flush();
+        }
+
+        // Sends the batch. On failure the batch is kept and the next flush
+        // reconnects and tries again.
+        synchronized void flush() {
+            if (batch.isEmpty()) return;
+            try {
+                if (out == null) {
+                    socket = new Socket(address.getAddress(), address.getPort());
+                    socket.setTcpNoDelay(true);
+                    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                }
+                out.writeByte(LINKS);
+                out.writeInt(batch.size());
+                for (URLDepthPair link : batch) {
+                    out.writeInt(link.depth);
+                    out.writeUTF(link.url);
+                }
+                out.flush();
+                sent += batch.size();
+                batch.clear();
+            } catch (IOException e) {
+                System.err.println("Failed to send links to " + address + ": " + e);
+                try {
+                    if (socket != null) socket.close();
+                } catch (IOException ignored) {
+                    // already broken
+                }
+                socket = null;
+                out = null;
+            }
+        }
+
+        // Closes the connection. Links still in the batch are dropped.
+        synchronized void close() {
+            if (socket != null) closeQuietly(socket);
+            socket = null;
+            out = null;
+        }
+    }
+}
+
+// Drives FetchEngine directly against a local HttpServer and checks
+// concurrency, connection reuse, the body cap, the timeout and that no
+// timeout timer outlives its fetch.
+// Run with: java FetchEngineHarness [concurrentFetches]
+class FetchEngineHarness {
+
+    public static void main(String[] args) throws Exception {
+        int concurrent = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long latencyMillis = 500;
+
+        // Slow pages are answered from a timer rather than by a blocked server
+        // thread, so the server can hold thousands of requests open as well
+        ScheduledExecutorService responder = Executors.newScheduledThreadPool(2);
+        Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+        AtomicInteger open = new AtomicInteger();
+        AtomicInteger maxOpen = new AtomicInteger();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 8192);
+        server.createContext("/slow", exchange -> {
+            maxOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+            responder.schedule(() -> {
+                open.decrementAndGet();
+                respond(exchange, "<html><a href=\"http://example.com/\">x</a></html>".getBytes(StandardCharsets.UTF_8));
+            }, latencyMillis, TimeUnit.MILLISECONDS);
+        });
+        server.createContext("/page", exchange -> {
+            connections.add(exchange.getRemoteAddress());
+            respond(exchange, "<html>page</html>".getBytes(StandardCharsets.UTF_8));
+        });
+        server.createContext("/huge", exchange -> respond(exchange, new byte[8 * 1024 * 1024]));
+        server.createContext("/hang", exchange -> { /* never answers */ });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        FetchEngine engine = new FetchEngine(4, Duration.ofSeconds(5), Duration.ofSeconds(30), 1024 * 1024);
+
+        // Connection reuse: sequential fetches to one host
+        for (int i = 0; i < 100; i++) {
+            engine.fetch(base + "/page?i=" + i).join();
+        }
+        System.out.printf("100 sequential fetches used %d connection(s)%n", connections.size());
+
+        // Concurrency: every fetch waits latencyMillis on the server
+        long start = System.nanoTime();
+        List<CompletableFuture<FetchEngine.FetchResult>> fetches = new ArrayList<>();
+        for (int i = 0; i < concurrent; i++) {
+            fetches.add(engine.fetch(base + "/slow?i=" + i));
+        }
+        int ok = 0;
+        for (CompletableFuture<FetchEngine.FetchResult> fetch : fetches) {
+            try {
+                if (fetch.join().body != null) ok++;
+            } catch (CompletionException e) {
+                // counted as a failure
+            }
+        }
+        System.out.printf("%d fetches of a %d ms page: %d ok in %d ms, %d open at once on the server, %d threads%n",
+                concurrent, latencyMillis, ok, (System.nanoTime() - start) / 1_000_000, maxOpen.get(),
+                Thread.activeCount());
+
+        // Body cap
+        FetchEngine.FetchResult huge = engine.fetch(base + "/huge").join();
+        System.out.printf("8 MB page: kept %d bytes, truncated=%b%n", huge.body.length(), huge.truncated);
+        System.out.printf("timeout timers still pending after %d fetches: %d%n",
+                concurrent + 101, FetchEngine.pendingTimeouts());
+
+        // Timeout
+        FetchEngine impatient = new FetchEngine(1, Duration.ofSeconds(1), Duration.ofSeconds(2), 1024 * 1024);
+        start = System.nanoTime();
+        try {
+            impatient.fetch(base + "/hang").join();
+            System.out.println("hanging page: unexpectedly completed");
+        } catch (CompletionException | CancellationException e) {
+            System.out.printf("hanging page: gave up after %d ms (%s)%n",
+                    (System.nanoTime() - start) / 1_000_000, e.getClass().getSimpleName());
+        }
+
+        server.stop(0);
+        responder.shutdownNow();
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
+    private static void respond(com.sun.net.httpserver.HttpExchange exchange, byte[] body) {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (IOException e) {
+            // client gave up
+        }
+    }
+}
+
+// URL frontier with per-host politeness. Each host has its own FIFO queue
+// of URLs. Hosts with queued URLs sit in a min-heap keyed by the earliest
+// time they may be fetched again. The caller of take() gets the URL at the head of
+// the host on top of the heap. That host is checked out while the fetch
+// runs, so a host never has two fetches in flight. When the fetch
+// completes, the host's next fetch time becomes now + its crawl delay, and
+// it goes back into the heap if it still has URLs.
+//
+// take() blocks on a condition until the top host is due, and never polls.
+// Throughput grows with the number of hosts. Each host stays limited to
+// one fetch per crawl delay.
+//
+// A host's queue is dropped once it is empty and not checked out, so memory
+// follows the hosts with work rather than every host ever seen. Until its
+// crawl delay has passed, its next fetch time is kept in coolingHosts, in
+// completion order, and restored if a URL for it arrives in that time.
+class CrawlFrontier {
+
+    private static final class HostQueue {
+        final String host;
+        final ArrayDeque<WebCrawler.URLDepthPair> urls = new ArrayDeque<>();
+        long nextFetchNanos;
+        boolean scheduled; // in the heap
+        boolean checkedOut; // a fetch is in flight
+
+        HostQueue(String host) {
+            this.host = host;
+        }
+    }
+
+    private final long defaultDelayNanos;
+    private final Map<String, Long> delayOverridesNanos = new ConcurrentHashMap<>();
+    private final Map<String, HostQueue> hosts = new HashMap<>();
+    private final LinkedHashMap<String, Long> coolingHosts = new LinkedHashMap<>();
+    private final PriorityQueue<HostQueue> readyHosts =
+            new PriorityQueue<>(Comparator.comparingLong((HostQueue h) -> h.nextFetchNanos));
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private int queuedUrls;
+    private int inFlight;
+    private boolean keepAlive; // take() waits on an empty frontier instead of returning null
+
+    CrawlFrontier(long crawlDelayMillis) {
+        this.defaultDelayNanos = TimeUnit.MILLISECONDS.toNanos(crawlDelayMillis);
+    }
+
+    void setCrawlDelay(String host, long crawlDelayMillis) {
+        delayOverridesNanos.put(host, TimeUnit.MILLISECONDS.toNanos(crawlDelayMillis));
+    }
+
+    void add(WebCrawler.URLDepthPair pair) {
+        String host = hostOf(pair.url);
+        lock.lock();
+        try {
+            HostQueue queue = hosts.get(host);
+            if (queue == null) {
+                queue = new HostQueue(host);
+                Long nextFetchNanos = coolingHosts.remove(host);
+                if (nextFetchNanos != null) {
+                    queue.nextFetchNanos = nextFetchNanos;
+                }
+                hosts.put(host, queue);
+            }
+            queue.urls.add(pair);
+            queuedUrls++;
+            if (!queue.scheduled && !queue.checkedOut) {
+                schedule(queue);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until some host is due, then returns the next URL for it and
+    // checks the host out. Returns null once every queue is empty and no
+    // fetch is in flight, as nothing more can be added, unless keepAlive is
+    // set because more may arrive from elsewhere.
+    WebCrawler.URLDepthPair take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                HostQueue next = readyHosts.peek();
+                if (next == null) {
+                    if (inFlight == 0 && !keepAlive) {
+                        changed.signalAll();
+                        return null;
+                    }
+                    changed.await();
+                    continue;
+                }
+
+                long waitNanos = next.nextFetchNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    changed.awaitNanos(waitNanos);
+                    continue;
+                }
+
+                readyHosts.poll();
+                next.scheduled = false;
+                next.checkedOut = true;
+                inFlight++;
+                queuedUrls--;
+                return next.urls.poll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the host of a URL handed out by take(). Call it after any
+    // links found on the page have been added.
+    void complete(WebCrawler.URLDepthPair pair) {
+        String host = hostOf(pair.url);
+        lock.lock();
+        try {
+            HostQueue queue = hosts.get(host);
+            long now = System.nanoTime();
+            queue.checkedOut = false;
+            queue.nextFetchNanos = now + delayOverridesNanos.getOrDefault(host, defaultDelayNanos);
+            inFlight--;
+            expireCoolingHosts(now);
+            if (!queue.urls.isEmpty()) {
+                schedule(queue);
+                return;
+            }
+            hosts.remove(host);
+            if (queue.nextFetchNanos > now) {
+                coolingHosts.put(host, queue.nextFetchNanos);
+            }
+            if (inFlight == 0 && readyHosts.isEmpty()) {
+                changed.signalAll(); // the crawl is over, release the waiting workers
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return queuedUrls;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isIdle() {
+        lock.lock();
+        try {
+            return queuedUrls == 0 && inFlight == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setKeepAlive(boolean keepAlive) {
+        lock.lock();
+        try {
+            this.keepAlive = keepAlive;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Drops cooling hosts whose delay has passed, oldest first. A host with
+    // a longer Crawl-delay override can hold up the ones behind it, which
+    // then just linger until it passes.
+    private void expireCoolingHosts(long now) {
+        Iterator<Long> nextFetch = coolingHosts.values().iterator();
+        while (nextFetch.hasNext() && nextFetch.next() <= now) {
+            nextFetch.remove();
+        }
+    }
+
+    private void schedule(HostQueue queue) {
+        queue.scheduled = true;
+        readyHosts.add(queue);
+        // Only the worker waiting on the old top needs to recheck its deadline
+        if (readyHosts.peek() == queue) {
+            changed.signal();
+        }
+    }
+
+    // The politeness key: host and port, so two servers on one machine are separate hosts
+    static String hostOf(String url) {
+        try {
+            URI uri = new URI(url);
+            String host = uri.getHost();
+            if (host == null) {
+                return "";
+            }
+            return uri.getPort() == -1 ? host.toLowerCase(Locale.ROOT) : host.toLowerCase(Locale.ROOT) + ":" + uri.getPort();
+        } catch (Exception e) {
+            return "";
+        }
+    }
+}
+
+// Crawls a synthetic site on each of N local servers and reports pages/s
+// and the smallest gap between two fetches from the same host. Pages/s
+// should grow with N, and the gap should never fall below the crawl delay.
+// Run with: java CrawlFrontierHarness [pagesPerHost] [crawlDelayMillis]
+class CrawlFrontierHarness {
+
+    public static void main(String[] args) throws Exception {
+        int pagesPerHost = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        long crawlDelayMillis = args.length > 1 ? Long.parseLong(args[1]) : 50;
+
+        System.out.printf("%d pages per host, crawl delay %d ms, 16 parse threads%n", pagesPerHost, crawlDelayMillis);
+        System.out.printf("%6s %8s %10s %10s %14s%n", "hosts", "pages", "seconds", "pages/s", "min gap ms");
+
+        for (int hostCount : new int[] {1, 2, 4, 8, 16}) {
+            List<HttpServer> servers = new ArrayList<>();
+            List<Integer> sitePorts = new CopyOnWriteArrayList<>();
+            Map<Integer, List<Long>> fetchTimes = new ConcurrentHashMap<>();
+            ExecutorService handlers = Executors.newFixedThreadPool(4);
+            for (int h = 0; h < hostCount; h++) {
+                HttpServer server = startSite(pagesPerHost, sitePorts, fetchTimes, handlers);
+                servers.add(server);
+                sitePorts.add(server.getAddress().getPort());
+            }
+
+            AtomicLong pages = new AtomicLong();
+            WebCrawler crawler = new WebCrawler(16, crawlDelayMillis, Integer.MAX_VALUE) {
+                @Override
+                protected void onPageCrawled(URLDepthPair pair, FetchEngine.FetchResult result) {
+                    pages.incrementAndGet();
+                }
+            };
+
+            // The seed page of the first site links to every other site's seed
+            long start = System.nanoTime();
+            crawler.startCrawl("http://127.0.0.1:" + servers.get(0).getAddress().getPort() + "/0");
+            double seconds = (System.nanoTime() - start) / 1e9;
+            crawler.close();
+
+            long minGapNanos = Long.MAX_VALUE;
+            for (List<Long> times : fetchTimes.values()) {
+                List<Long> sorted = new ArrayList<>(times);
+                Collections.sort(sorted);
+                for (int i = 1; i < sorted.size(); i++) {
+                    minGapNanos = Math.min(minGapNanos, sorted.get(i) - sorted.get(i - 1));
+                }
+            }
+
+            System.out.printf("%6d %8d %10.2f %10.1f %14.1f%n",
+                    hostCount, pages.get(), seconds, pages.get() / seconds, minGapNanos / 1e6);
+            for (HttpServer server : servers) {
+                server.stop(0);
+            }
+            handlers.shutdown();
+        }
+    }
+
+    // Page i links to pages 2i+1 and 2i+2 on the same site, so the site is a
+    // binary tree. Page 0 also links to page 0 of every site in sitePorts.
+    private static HttpServer startSite(int pages, List<Integer> sitePorts, Map<Integer, List<Long>> fetchTimes,
+                                        ExecutorService handlers) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        int port = server.getAddress().getPort();
+        List<Long> times = Collections.synchronizedList(new ArrayList<>());
+        fetchTimes.put(port, times);
+
+        server.createContext("/", exchange -> {
+            times.add(System.nanoTime());
+            int page = Integer.parseInt(exchange.getRequestURI().getPath().substring(1));
+            StringBuilder html = new StringBuilder("<html><body>");
+            for (int child = 2 * page + 1; child <= 2 * page + 2 && child < pages; child++) {
+                html.append("<a href=\"http://127.0.0.1:").append(port).append('/').append(child).append("\">").append(child).append("</a>");
+            }
+            if (page == 0) {
+                for (int other : sitePorts) {
+                    html.append("<a href=\"http://127.0.0.1:").append(other).append("/0\">site</a>");
+                }
+            }
+            byte[] body = html.append("</body></html>").toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(handlers);
+        server.start();
+        return server;
+    }
+}
+
+// Checks LinkTokenizer on tricky markup, then compares it with the old
+// approach (buffer the whole page as a String, then run a regex over it)
+// on synthetic pages of growing size, fed in 8 KB chunks as from the network.
+// Run with: java LinkTokenizerHarness
+class LinkTokenizerHarness {
+    private static final Pattern HREF = Pattern.compile("href=\\\"(http[s]?://[^\\\"]+)\\\"");
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        String page = "<!DOCTYPE html><html><head><BASE HREF='https://Example.COM:443/docs/'>"
+                + "<link rel=stylesheet href=style.css><style>a[href=\"/not-a-link\"] {}</style></head>"
+                + "<body><!-- <a href=\"/commented\"> --><a href=\"../about?b=2&amp;a=1#team\">About</a>"
+                + "<a href=#top>top</a><a href=\"mailto:x@example.com\">mail</a><img src=/img/logo.png>"
+                + "<script>var s = '<a href=\"/in-script\">';</script><a\nhref = \"HTTP://Other.org:80\">x</a>"
+                + "<a data-href=\"/data\" href='./a/./b/../c'>c</a></body></html>";
+        System.out.println("links in the sample page:");
+        List<String> links = new ArrayList<>();
+        LinkTokenizer tokenizer = new LinkTokenizer("http://ignored.example/", StandardCharsets.UTF_8, links::add);
+        // One byte at a time, so every state has to survive a chunk boundary
+        for (byte b : page.getBytes(StandardCharsets.UTF_8)) {
+            tokenizer.feed(ByteBuffer.wrap(new byte[] {b}));
+        }
+        links.forEach(link -> System.out.println("  " + link));
+
+        System.out.printf("%n%-8s %-10s %8s %10s %14s%n", "page", "method", "links", "MB/s", "allocated KB");
+        for (int size : new int[] {10 << 10, 1 << 20, 16 << 20}) {
+            byte[] html = syntheticPage(size);
+            int rounds = Math.max(3, (64 << 20) / size);
+            for (int pass = 0; pass < 2; pass++) { // the first pass is warmup
+                report(pass, size, "regex", rounds, html, bytes -> regexLinks(bytes, false));
+                report(pass, size, "regex+norm", rounds, html, bytes -> regexLinks(bytes, true));
+                report(pass, size, "stream", rounds, html, LinkTokenizerHarness::streamLinks);
+            }
+        }
+    }
+
+    private static void report(int pass, int size, String method, int rounds, byte[] html,
+                               java.util.function.ToIntFunction<byte[]> extract) {
+        long allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < rounds; i++) {
+            found = extract.applyAsInt(html);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = (THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore) / rounds;
+        if (pass > 0) {
+            System.out.printf("%-8s %-10s %8d %10.0f %14d%n", size < (1 << 20) ? (size >> 10) + "KB" : (size >> 20) + "MB",
+                    method, found, (double) size * rounds / elapsed * 1e9 / (1 << 20), allocated >> 10);
+        }
+    }
+
+    // What WebCrawler did before: collect the chunks, decode, then match.
+    // With normalize it also does the URL work the tokenizer does per link.
+    private static int regexLinks(byte[] html, boolean normalize) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int offset = 0; offset < html.length; offset += 8192) {
+            body.write(html, offset, Math.min(8192, html.length - offset));
+        }
+        Matcher matcher = HREF.matcher(new String(body.toByteArray(), StandardCharsets.UTF_8));
+        int found = 0;
+        while (matcher.find()) {
+            if (!normalize || LinkTokenizer.normalize("http://example.com/", matcher.group(1)) != null) found++;
+        }
+        return found;
+    }
+
+    private static int streamLinks(byte[] html) {
+        int[] found = new int[1];
+        LinkTokenizer tokenizer = new LinkTokenizer("http://example.com/", StandardCharsets.UTF_8, link -> found[0]++);
+        for (int offset = 0; offset < html.length; offset += 8192) {
+            tokenizer.feed(ByteBuffer.wrap(html, offset, Math.min(8192, html.length - offset)));
+        }
+        return found[0];
+    }
+
+    // Text, a script block and one absolute link roughly every 200 bytes
+    private static byte[] syntheticPage(int size) {
+        StringBuilder html = new StringBuilder(size + 256).append("<html><body>");
+        for (int i = 0; html.length() < size; i++) {
+            html.append("<p class=\"item\">Lorem ipsum dolor sit amet, consectetur adipiscing elit ")
+                    .append("<a href=\"https://example.com/page/").append(i).append("?ref=list\">item ")
+                    .append(i).append("</a></p>\n");
+            if (i % 16 == 0) {
+                html.append("<script>if (a < b) { track('").append(i).append("'); }</script>\n");
+            }
+        }
+        return html.append("</body></html>").toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
+
+// Adds N distinct URLs to a UrlSeenSet from several threads, then adds
+// them all again and adds N URLs it has never seen. It reports ns per add,
+// the Bloom filter's false positive rate and heap/disk use, and checks
+// that every first add returned true and every repeat returned false.
+// Time per add includes building the URL string, as in the crawler; the
+// "build only" line is that cost alone.
+// Run with: java -Xmx512m UrlSeenSetHarness [urls] [threads] [directory]
+class UrlSeenSetHarness {
+
+    public static void main(String[] args) throws Exception {
+        int urls = args.length > 0 ? Integer.parseInt(args[0]) : 20_000_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        boolean temporary = args.length <= 2;
+        Path directory = temporary ? Files.createTempDirectory("url-seen-set") : Path.of(args[2]);
+        UrlSeenSet seen = new UrlSeenSet(directory);
+
+        System.out.printf("%d URLs, %d threads, runs in %s%n", urls, threads, directory);
+        System.out.printf("%-14s %10s %12s%n", "phase", "ns/add", "returned true");
+        run("build only", urls, threads, i -> UrlSeenSet.fingerprint(url(i)) == 0 ? 1 : 0);
+        run("new", urls, threads, i -> seen.add(url(i)) ? 1 : 0);
+        run("repeat", urls, threads, i -> seen.add(url(i)) ? 1 : 0);
+        long before = seen.falsePositives();
+        run("never seen", urls, threads, i -> seen.add(url(urls + i)) ? 1 : 0);
+
+        System.gc();
+        long heap = java.lang.management.ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        System.out.printf("size %d, Bloom false positives on unseen URLs %.3f%%%n",
+                seen.size(), 100.0 * (seen.falsePositives() - before) / urls);
+        System.out.printf("Bloom filter %d MB, runs on disk %d MB, heap in use after GC %d MB (%.1f bytes per URL)%n",
+                seen.bloomBytes() >> 20, seen.diskBytes() >> 20, heap >> 20, (double) heap / seen.size());
+        seen.close();
+        if (temporary) CrawlState.deleteRecursively(directory);
+    }
+
+    private static String url(long i) {
+        return "https://host-" + (i % 10_000) + ".example.com/catalog/item?id=" + i;
+    }
+
+    private static void run(String phase, int urls, int threads, java.util.function.LongToIntFunction add)
+            throws InterruptedException {
+        AtomicLong added = new AtomicLong();
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            workers[t] = new Thread(() -> {
+                long count = 0;
+                for (long i = first; i < urls; i += threads) count += add.applyAsInt(i);
+                added.addAndGet(count);
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) worker.join();
+        long elapsed = System.nanoTime() - start;
+        // CPU time per add, assuming each thread has a core to itself
+        int busy = Math.min(threads, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-14s %10.0f %12d%n", phase, (double) elapsed * busy / urls, added.get());
+    }
+}
+
+// Two checks of the crawl state.
+// 1. Group commit: threads append DONE records and wait for each to be
+//    durable. Reports records/s and records per fsync.
+// 2. Crash and resume: a child JVM crawls local sites and is killed with
+//    SIGKILL partway through. A second child resumes from the same work
+//    directory and finishes. The servers count every fetch. No page the
+//    first child reported as crawled may be fetched again, and every page
+//    must be crawled in the end.
+// Run with: java CrawlStateHarness [sites] [pagesPerSite] [killAfterMillis]
+class CrawlStateHarness {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("crawl")) {
+            crawl(args[1], Path.of(args[2]));
+            return;
+        }
+        int sites = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int pagesPerSite = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        long killAfterMillis = args.length > 2 ? Long.parseLong(args[2]) : 3000;
+
+        groupCommit();
+        crashAndResume(sites, pagesPerSite, killAfterMillis);
+    }
+
+    private static void groupCommit() throws Exception {
+        System.out.printf("%8s %12s %16s%n", "threads", "records/s", "records/fsync");
+        for (int threads : new int[] {1, 4, 16, 64}) {
+            Path directory = Files.createTempDirectory("crawl-log");
+            CrawlLog log = new CrawlLog(directory, 0);
+            AtomicLong stop = new AtomicLong(System.nanoTime() + 1_000_000_000L);
+            Thread[] workers = new Thread[threads];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int id = t;
+                workers[t] = new Thread(() -> {
+                    for (int i = 0; System.nanoTime() < stop.get(); i++) {
+                        log.done("https://example.com/" + id + "/" + i).join();
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread worker : workers) worker.join();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            log.close();
+            System.out.printf("%8d %12.0f %16.1f%n", threads, log.records() / seconds,
+                    (double) log.records() / log.syncs());
+            CrawlState.deleteRecursively(directory);
+        }
+    }
+
+    private static void crashAndResume(int sites, int pagesPerSite, long killAfterMillis) throws Exception {
+        Map<String, AtomicInteger> fetches = new ConcurrentHashMap<>();
+        List<Integer> ports = new CopyOnWriteArrayList<>();
+        List<HttpServer> servers = new ArrayList<>();
+        ExecutorService handlers = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < sites; i++) {
+            HttpServer server = startSite(pagesPerSite, ports, fetches, handlers);
+            servers.add(server);
+            ports.add(server.getAddress().getPort());
+        }
+        String seed = "http://127.0.0.1:" + ports.get(0) + "/0";
+        Path work = Files.createTempDirectory("crawl-state");
+        System.out.printf("%n%d sites x %d pages, work directory %s%n", sites, pagesPerSite, work);
+
+        Set<String> crawledBeforeCrash = ConcurrentHashMap.newKeySet();
+        Process first = startCrawler(seed, work, crawledBeforeCrash, null);
+        Thread.sleep(killAfterMillis);
+        first.destroyForcibly().waitFor();
+        Map<String, Integer> fetchedBeforeCrash = new HashMap<>();
+        fetches.forEach((url, count) -> fetchedBeforeCrash.put(url, count.get()));
+        System.out.printf("killed after %d ms: %d pages reported crawled, %d fetched%n",
+                killAfterMillis, crawledBeforeCrash.size(), fetchedBeforeCrash.size());
+
+        Set<String> crawledAfterCrash = ConcurrentHashMap.newKeySet();
+        String[] resumeLine = new String[1];
+        Process second = startCrawler(seed, work, crawledAfterCrash, resumeLine);
+        second.waitFor();
+        System.out.println("restart: " + resumeLine[0]);
+
+        int refetchedCrawled = 0;
+        int refetchedInFlight = 0;
+        for (Map.Entry<String, AtomicInteger> entry : fetches.entrySet()) {
+            int before = fetchedBeforeCrash.getOrDefault(entry.getKey(), 0);
+            if (before > 0 && entry.getValue().get() > before) {
+                if (crawledBeforeCrash.contains(entry.getKey())) {
+                    refetchedCrawled++;
+                } else {
+                    refetchedInFlight++;
+                }
+            }
+        }
+        // Coverage is counted from the servers. A page whose DONE record
+        // became durable just before the kill is never reported by either
+        // child, since the first died before printing it and the second
+        // skips it, but the server saw it fetched.
+        Set<String> reported = new HashSet<>(crawledBeforeCrash);
+        reported.addAll(crawledAfterCrash);
+        System.out.printf("crawled %d of %d pages (%d reported); fetched again: %d that were crawled before the crash "
+                        + "(must be 0), %d that were in flight%n",
+                fetches.size(), sites * pagesPerSite, reported.size(), refetchedCrawled, refetchedInFlight);
+
+        Set<String> crawledAgain = ConcurrentHashMap.newKeySet();
+        String[] finalLine = new String[1];
+        startCrawler(seed, work, crawledAgain, finalLine).waitFor();
+        System.out.printf("third run on the finished state: %s, crawled %d%n", finalLine[0], crawledAgain.size());
+
+        for (HttpServer server : servers) server.stop(0);
+        handlers.shutdown();
+        CrawlState.deleteRecursively(work);
+    }
+
+    // Starts a child JVM that crawls seed with state in work. Each page it
+    // reports crawled goes into crawled, and its resume line into resumeLine.
+    private static Process startCrawler(String seed, Path work, Set<String> crawled, String[] resumeLine)
+            throws IOException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "CrawlStateHarness", "crawl", seed, work.toString())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        Thread reader = new Thread(() -> {
+            try (java.io.BufferedReader lines = new java.io.BufferedReader(
+                    new java.io.InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    if (line.startsWith("crawled ")) {
+                        crawled.add(line.substring(8));
+                    } else if (resumeLine != null && line.startsWith("resumed ")) {
+                        resumeLine[0] = line;
+                    }
+                }
+            } catch (IOException e) {
+                // the child was killed
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        return process;
+    }
+
+    // The child: a crawler that checkpoints every half second and reports
+    // each page once it is durably done
+    private static void crawl(String seed, Path work) {
+        long start = System.nanoTime();
+        WebCrawler crawler = new WebCrawler(4, 20, Integer.MAX_VALUE, 64, work) {
+            @Override
+            protected void onPageCrawled(URLDepthPair pair, FetchEngine.FetchResult result) {
+                System.out.println("crawled " + pair.url);
+            }
+        };
+        System.out.printf("resumed %d pending URLs in %d ms%n",
+                crawler.resumedUrls(), (System.nanoTime() - start) / 1_000_000);
+        crawler.setCheckpointInterval(500);
+        crawler.startCrawl(seed);
+        crawler.close();
+        System.out.flush();
+    }
+
+    // Same site shape as CrawlFrontierHarness: page i links to 2i+1 and 2i+2,
+    // and page 0 links to every site's page 0
+    private static HttpServer startSite(int pages, List<Integer> sitePorts, Map<String, AtomicInteger> fetches,
+                                        ExecutorService handlers) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        int port = server.getAddress().getPort();
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            fetches.computeIfAbsent("http://127.0.0.1:" + port + path, url -> new AtomicInteger()).incrementAndGet();
+            int page = Integer.parseInt(path.substring(1));
+            StringBuilder html = new StringBuilder("<html><body>");
+            for (int child = 2 * page + 1; child <= 2 * page + 2 && child < pages; child++) {
+                html.append("<a href=\"/").append(child).append("\">").append(child).append("</a>");
+            }
+            if (page == 0) {
+                for (int other : sitePorts) {
+                    html.append("<a href=\"http://127.0.0.1:").append(other).append("/0\">site</a>");
+                }
+            }
+            byte[] body = html.append("</body></html>").toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(handlers);
+        server.start();
+        return server;
+    }
+}
+
+// Runs the same crawl on 1, 2 and 4 CrawlNodes, each its own JVM on this
+// machine, against local sites that take RESPONSE_MILLIS per page. Each node
+// has at most IN_FLIGHT fetches running, so a node's rate is set by fetch
+// latency and the cluster's rate shows how well the work spreads. The
+// harness is the coordinator: it polls STATUS until the four-counter check
+// says the crawl is over, then sends STOP. It also checks every page was
+// fetched exactly once across the cluster. Each node count is run several
+// times; pages/s is the mean with its standard deviation, and speedup is
+// against the mean of the 1-node runs, with the slowest and fastest run.
+//
+// Usage: java CrawlClusterHarness [sites] [pagesPerSite] [runs]
+class CrawlClusterHarness {
+    static final long RESPONSE_MILLIS = 50;
+    static final int IN_FLIGHT = 4;
+    static final int CROSS_LINKS = 3;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("node")) {
+            node(Integer.parseInt(args[1]), args[2], args[3], Path.of(args[4]));
+            return;
+        }
+        int sites = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int pagesPerSite = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Map<String, AtomicInteger> fetches = new ConcurrentHashMap<>();
+        List<Integer> ports = new CopyOnWriteArrayList<>();
+        List<HttpServer> servers = new ArrayList<>();
+        ExecutorService handlers = Executors.newFixedThreadPool(64);
+        for (int i = 0; i < sites; i++) {
+            HttpServer server = startSite(i, pagesPerSite, ports, fetches, handlers);
+            servers.add(server);
+            ports.add(server.getAddress().getPort());
+        }
+        String seed = "http://127.0.0.1:" + ports.get(0) + "/0";
+        int pages = sites * pagesPerSite;
+        System.out.printf("%d sites x %d pages, %d ms per page, %d fetches in flight per node, %d runs each%n",
+                sites, pagesPerSite, RESPONSE_MILLIS, IN_FLIGHT, runs);
+        System.out.printf("%6s %10s %18s %10s %13s %14s %14s %10s%n", "nodes", "pages", "pages/s",
+                "speedup", "slowest-fastest", "busiest node", "links sent", "refetched");
+
+        double baseline = 0;
+        for (int nodes : new int[] {1, 2, 4}) {
+            double[] rates = new double[runs];
+            long crawled = 0;
+            long sent = 0;
+            long busiest = 0;
+            int refetched = 0;
+            for (int run = 0; run < runs; run++) {
+                fetches.clear();
+                long[] result = crawl(nodes, seed);
+                rates[run] = result[1] / (result[0] / 1e9);
+                crawled += result[1];
+                sent += result[2];
+                busiest += result[3];
+                for (AtomicInteger count : fetches.values()) {
+                    if (count.get() > 1) refetched++;
+                }
+                if (result[1] != pages || fetches.size() != pages) {
+                    System.out.printf("  expected each of %d pages crawled once, crawled %d, fetched %d distinct%n",
+                            pages, result[1], fetches.size());
+                }
+            }
+            double mean = 0;
+            double min = Double.MAX_VALUE;
+            double max = 0;
+            for (double rate : rates) {
+                mean += rate / runs;
+                min = Math.min(min, rate);
+                max = Math.max(max, rate);
+            }
+            double variance = 0;
+            for (double rate : rates) variance += (rate - mean) * (rate - mean) / Math.max(1, runs - 1);
+            if (nodes == 1) baseline = mean;
+            System.out.printf("%6d %10d %9.0f +- %5.0f %9.2fx %6.2f-%5.2fx %13.0f%% %14d %10d%n",
+                    nodes, crawled / runs, mean, Math.sqrt(variance), mean / baseline,
+                    min / baseline, max / baseline, 100.0 * busiest / crawled, sent / runs, refetched);
+        }
+
+        for (HttpServer server : servers) server.stop(0);
+        handlers.shutdown();
+    }
+
+    // Starts the nodes, times the crawl from "go" to the end of the
+    // four-counter check, and returns {nanos, pages crawled, links sent,
+    // most pages crawled by one node}
+    private static long[] crawl(int nodes, String seed) throws Exception {
+        List<Integer> nodePorts = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                nodePorts.add(probe.getLocalPort());
+            }
+        }
+        String portList = nodePorts.toString().replaceAll("[\\[\\] ]", "");
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> processes = new ArrayList<>();
+        List<Path> works = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            Path work = Files.createTempDirectory("crawl-node-" + i);
+            works.add(work);
+            Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    "CrawlClusterHarness", "node", String.valueOf(i), portList, seed, work.toString())
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            String line = new java.io.BufferedReader(
+                    new java.io.InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)).readLine();
+            if (!"ready".equals(line)) throw new IllegalStateException("Node " + i + " failed to start: " + line);
+            processes.add(process);
+        }
+
+        List<Socket> sockets = new ArrayList<>();
+        for (int port : nodePorts) {
+            Socket socket = new Socket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            sockets.add(socket);
+        }
+        long start = System.nanoTime();
+        for (Process process : processes) {
+            process.getOutputStream().write("go\n".getBytes(StandardCharsets.UTF_8));
+            process.getOutputStream().flush();
+        }
+
+        // Over when two rounds in a row find every node idle, as many links
+        // received as sent, and no counter moved in between
+        long[] previous = null;
+        long[] counts;
+        while (true) {
+            Thread.sleep(100);
+            counts = new long[3 * nodes];
+            boolean idle = true;
+            for (int i = 0; i < nodes; i++) {
+                DataOutputStream out = new DataOutputStream(sockets.get(i).getOutputStream());
+                out.writeByte(CrawlNode.STATUS);
+                out.flush();
+                DataInputStream in = new DataInputStream(sockets.get(i).getInputStream());
+                idle &= in.readBoolean();
+                counts[3 * i] = in.readLong();
+                counts[3 * i + 1] = in.readLong();
+                counts[3 * i + 2] = in.readLong();
+            }
+            long sent = 0;
+            long received = 0;
+            for (int i = 0; i < nodes; i++) {
+                sent += counts[3 * i];
+                received += counts[3 * i + 1];
+            }
+            boolean quiet = idle && sent == received;
+            if (quiet && Arrays.equals(counts, previous)) break;
+            previous = quiet ? counts : null;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        for (Socket socket : sockets) {
+            socket.getOutputStream().write(CrawlNode.STOP);
+            socket.getOutputStream().flush();
+        }
+        for (Process process : processes) process.waitFor();
+        for (Socket socket : sockets) socket.close();
+        for (Path work : works) CrawlState.deleteRecursively(work);
+
+        long crawled = 0;
+        long sent = 0;
+        long busiest = 0;
+        for (int i = 0; i < nodes; i++) {
+            sent += counts[3 * i];
+            crawled += counts[3 * i + 2];
+            busiest = Math.max(busiest, counts[3 * i + 2]);
+        }
+        return new long[] {elapsed, crawled, sent, busiest};
+    }
+
+    // The child: one node, started on "go" from the harness
+    private static void node(int self, String portList, String seed, Path work) throws IOException {
+        List<InetSocketAddress> nodes = new ArrayList<>();
+        for (String port : portList.split(",")) {
+            nodes.add(new InetSocketAddress("127.0.0.1", Integer.parseInt(port)));
+        }
+        try (CrawlNode node = new CrawlNode(self, nodes, 2, 0, Integer.MAX_VALUE, IN_FLIGHT, work)) {
+            System.out.println("ready");
+            System.out.flush();
+            new java.io.BufferedReader(new java.io.InputStreamReader(System.in, StandardCharsets.UTF_8)).readLine();
+            node.startCrawl(seed);
+        }
+    }
+
+    // Page i of site s links to pages 2i+1 and 2i+2 of its own site and to
+    // page i of the next CROSS_LINKS sites, so most links cross hosts and,
+    // once there is more than one node, nodes
+    private static HttpServer startSite(int site, int pages, List<Integer> sitePorts,
+                                        Map<String, AtomicInteger> fetches, ExecutorService handlers)
+            throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        int port = server.getAddress().getPort();
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            fetches.computeIfAbsent("http://127.0.0.1:" + port + path, url -> new AtomicInteger()).incrementAndGet();
+            int page = Integer.parseInt(path.substring(1));
+            StringBuilder html = new StringBuilder("<html><body>");
+            for (int child = 2 * page + 1; child <= 2 * page + 2 && child < pages; child++) {
+                html.append("<a href=\"/").append(child).append("\">").append(child).append("</a>");
+            }
+            for (int k = 1; k <= CROSS_LINKS; k++) {
+                int other = sitePorts.get((site + k) % sitePorts.size());
+                html.append("<a href=\"http://127.0.0.1:").append(other).append('/').append(page)
+                        .append("\">site</a>");
+            }
+            byte[] body = html.append("</body></html>").toString().getBytes(StandardCharsets.UTF_8);
+            try {
+                Thread.sleep(RESPONSE_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(handlers);
+        server.start();
+        return server;
     }
 }
@@ -0,0 +1,161 @@
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class SlidingWindowCounterRateLimiter {
+
+    // A Rate Limiter that approximates the sliding window using two counters per user
+    // instead of a queue of timestamps, so memory per user is constant.
+    //
+    // The sliding window count is estimated as:
+    //   previousWindowCount * (1 - elapsedInCurrentWindow / windowSize) + currentWindowCount
+    //
+    // This is exact when the previous window's requests were spread evenly. With bursts
+    // clustered at a window edge it can admit at most 2 * maxRequests within one sliding
+    // window. SlidingWindowRateLimiter (timestamp queue) is always exact but holds up to
+    // maxRequests timestamps per user.
+
+    // Number of requests allowed (X) in a given time window (Y seconds)
+    private final int maxRequests;
+    private final long windowSizeInMillis;
+
+    // Default upper bound on the number of users tracked at once
+    public static final int DEFAULT_MAX_TRACKED_USERS = 100_000;
+
+    // Upper bound on the number of users tracked at once
+    private final int maxTrackedUsers;
+
+    // A map from user to its window counters. It is access-ordered, so the least
+    // recently active user is always first, as in SlidingWindowRateLimiter.
+    private final LinkedHashMap<String, WindowCounter> userCounterMap;
+
+    // The counters kept for each user: which fixed window is current and the counts
+    // for it and for the window just before it
+    private static final class WindowCounter {
+        long currentWindow = Long.MIN_VALUE;
+        long currentCount;
+        long previousCount;
+    }
+
+    // Constructor to initialize the rate limiter with maxRequests and windowSize
+    public SlidingWindowCounterRateLimiter(int maxRequests, int windowSizeInSeconds) {
+        this(maxRequests, windowSizeInSeconds, DEFAULT_MAX_TRACKED_USERS);
+    }
+
+    // Constructor that also bounds how many users are tracked at once
+    public SlidingWindowCounterRateLimiter(int maxRequests, int windowSizeInSeconds, int maxTrackedUsers) {
+        this.maxRequests = maxRequests;
+        this.windowSizeInMillis = windowSizeInSeconds * 1000L;  // Convert seconds to milliseconds
+        this.maxTrackedUsers = maxTrackedUsers;
+        this.userCounterMap = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, WindowCounter> eldest) {
+                // Over the cap, forget the least recently active user. That user starts
+                // over with empty counters, so the cap should exceed the active users.
+                return size() > SlidingWindowCounterRateLimiter.this.maxTrackedUsers;
+            }
+        };
+    }
+
+    // Method to check if a user is allowed to make a request at the given currentTime.
+    // Synchronized because the map is shared by all users and reordered on every access.
+    public synchronized boolean allowRequest(String userId, Date currentTime) {
+        long currentTimeMillis = currentTime.getTime();  // Convert current time to milliseconds
+        long window = currentTimeMillis / windowSizeInMillis;
+
+        // Drop users whose counters would both be zero by now
+        evictIdleUsers(window);
+
+        // If this user has never made a request before, create counters for them
+        WindowCounter counter = userCounterMap.computeIfAbsent(userId, id -> new WindowCounter());
+
+        // Roll the counters forward when we have moved into a new fixed window.
+        // If more than one window passed, the previous window saw no requests.
+        if (window != counter.currentWindow) {
+            counter.previousCount = window == counter.currentWindow + 1 ? counter.currentCount : 0;
+            counter.currentCount = 0;
+            counter.currentWindow = window;
+        }
+
+        // Weighted estimate, multiplied through by windowSizeInMillis to stay in integers
+        long elapsed = currentTimeMillis - window * windowSizeInMillis;
+        long weighted = counter.previousCount * (windowSizeInMillis - elapsed)
+                + (counter.currentCount + 1) * windowSizeInMillis;
+
+        if (weighted <= maxRequests * windowSizeInMillis) {
+            // If the user is within the rate limit, allow the request and count it
+            counter.currentCount++;
+            return true;
+        } else {
+            // If the user has exceeded the rate limit, deny the request
+            return false;
+        }
+    }
+
+    // Number of users currently tracked
+    public synchronized int trackedUsers() {
+        return userCounterMap.size();
+    }
+
+    // Users are in access order, so idle users sit at the front. A user whose last
+    // request was two or more windows ago would roll over to zero in both counters,
+    // so forgetting them is lossless. Stop at the first user that is still active.
+    // Each idle user is removed once, so this is amortized O(1).
+    private void evictIdleUsers(long window) {
+        Iterator<WindowCounter> counters = userCounterMap.values().iterator();
+        while (counters.hasNext()) {
+            if (counters.next().currentWindow >= window - 1) {
+                break;
+            }
+            counters.remove();
+        }
+    }
+
+    // Helper method to simulate a user making a request
+    public void handleRequest(String userId) {
+        Date currentTime = new Date();  // Get the current time
+        if (allowRequest(userId, currentTime)) {
+            System.out.println("Request allowed for user: " + userId + " at " + currentTime);
+        } else {
+            System.out.println("Request denied for user: " + userId + " at " + currentTime);
+        }
+    }
+
+    // Main method to test the SlidingWindowCounterRateLimiter
+    public static void main(String[] args) {
+        // Create a new SlidingWindowCounterRateLimiter allowing 3 requests every 10 seconds
+        SlidingWindowCounterRateLimiter rateLimiter = new SlidingWindowCounterRateLimiter(3, 10);
+
+        String userId = "user123";
+        long start = 1_000_000_000L;  // Aligned to a 10 second window boundary
+
+        // 3 requests at the end of one window are allowed, the 4th is denied
+        for (int i = 1; i <= 4; i++) {
+            System.out.println("t=9s request " + i + ": " + rateLimiter.allowRequest(userId, new Date(start + 9_000)));
+        }
+
+        // 2 seconds into the next window 80% of the previous window still counts: 3 * 0.8 = 2.4,
+        // so no more requests fit yet
+        System.out.println("t=12s: " + rateLimiter.allowRequest(userId, new Date(start + 12_000)));
+
+        // 7 seconds in only 30% still counts: 3 * 0.3 = 0.9, so 2 more requests fit
+        System.out.println("t=17s: " + rateLimiter.allowRequest(userId, new Date(start + 17_000)));
+        System.out.println("t=17s: " + rateLimiter.allowRequest(userId, new Date(start + 17_000)));
+        System.out.println("t=17s: " + rateLimiter.allowRequest(userId, new Date(start + 17_000)));
+
+        // A real-time request through the helper
+        rateLimiter.handleRequest("user456");
+
+        // Many distinct users (e.g. per-IP limiting during a scrape) stay within the cap
+        SlidingWindowCounterRateLimiter perIp = new SlidingWindowCounterRateLimiter(3, 10, 1_000);
+        for (int i = 0; i < 10_000; i++) {
+            perIp.allowRequest("10.0." + (i >> 8) + "." + (i & 0xFF), new Date(start));
+        }
+        System.out.println("Tracked users after 10000 distinct IPs: " + perIp.trackedUsers());
+
+        // Two windows later their counters are all zero, so they are dropped on the next request
+        perIp.allowRequest("10.1.0.1", new Date(start + 20_000));
+        System.out.println("Tracked users after two windows: " + perIp.trackedUsers());
+    }
+}
@@ -1,7 +1,8 @@
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Date;
 
 public class SlidingWindowRateLimiter {
@@ -12,25 +13,48 @@ public class SlidingWindowRateLimiter {
     private final int maxRequests;
     private final long windowSizeInMillis;
 
+    // Default upper bound on the number of users tracked at once
+    public static final int DEFAULT_MAX_TRACKED_USERS = 100_000;
+
+    // Upper bound on the number of users tracked at once
+    private final int maxTrackedUsers;
+
     // A map to track user request timestamps. Each user has a queue of timestamps.
-    private final Map<String, Queue<Long>> userRequestMap;
+    // It is access-ordered, so the least recently active user is always first.
+    // That gives O(1) cleanup of idle users and a hard cap on tracked users.
+    private final LinkedHashMap<String, Deque<Long>> userRequestMap;
 
     // Constructor to initialize the rate limiter with maxRequests and windowSize
     public SlidingWindowRateLimiter(int maxRequests, int windowSizeInSeconds) {
+        this(maxRequests, windowSizeInSeconds, DEFAULT_MAX_TRACKED_USERS);
+    }
+
+    // Constructor that also bounds how many users are tracked at once
+    public SlidingWindowRateLimiter(int maxRequests, int windowSizeInSeconds, int maxTrackedUsers) {
         this.maxRequests = maxRequests;
         this.windowSizeInMillis = windowSizeInSeconds * 1000L;  // Convert seconds to milliseconds
-        this.userRequestMap = new HashMap<>();
+        this.maxTrackedUsers = maxTrackedUsers;
+        this.userRequestMap = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Deque<Long>> eldest) {
+                // Over the cap, forget the least recently active user. That user starts
+                // over with an empty window, so the cap should exceed the active users.
+                return size() > SlidingWindowRateLimiter.this.maxTrackedUsers;
+            }
+        };
     }
 
-    // Method to check if a user is allowed to make a request at the given currentTime
-    public boolean allowRequest(String userId, Date currentTime) {
+    // Method to check if a user is allowed to make a request at the given currentTime.
+    // Synchronized because the map is shared by all users and reordered on every access.
+    public synchronized boolean allowRequest(String userId, Date currentTime) {
         long currentTimeMillis = currentTime.getTime();  // Convert current time to milliseconds
 
-        // If this user has never made a request before, create a queue for them
-        userRequestMap.putIfAbsent(userId, new LinkedList<>());
+        // Drop users whose most recent request has left the window. Forgetting them is
+        // lossless: their queue would be empty on their next request anyway.
+        evictIdleUsers(currentTimeMillis);
 
-        // Get the user's queue of request timestamps
-        Queue<Long> requestQueue = userRequestMap.get(userId);
+        // If this user has never made a request before, create a queue for them
+        Deque<Long> requestQueue = userRequestMap.computeIfAbsent(userId, id -> new ArrayDeque<>());
 
         // Remove outdated requests that are outside the sliding window
         while (!requestQueue.isEmpty() && requestQueue.peek() <= currentTimeMillis - windowSizeInMillis) {
@@ -48,6 +72,24 @@ public class SlidingWindowRateLimiter {
         }
     }
 
+    // Number of users currently tracked
+    public synchronized int trackedUsers() {
+        return userRequestMap.size();
+    }
+
+    // Users are in access order, so idle users sit at the front. Stop at the first
+    // user that is still active. Each idle user is removed once, so this is amortized O(1).
+    private void evictIdleUsers(long currentTimeMillis) {
+        Iterator<Deque<Long>> queues = userRequestMap.values().iterator();
+        while (queues.hasNext()) {
+            Deque<Long> queue = queues.next();
+            if (!queue.isEmpty() && queue.peekLast() > currentTimeMillis - windowSizeInMillis) {
+                break;
+            }
+            queues.remove();
+        }
+    }
+
     // Helper method to simulate a user making a request
     public void handleRequest(String userId) {
         Date currentTime = new Date();  // Get the current time
@@ -79,5 +121,17 @@ public class SlidingWindowRateLimiter {
 
         // Now the rate limit window has reset, the next request should be allowed again
         rateLimiter.handleRequest(userId);  // Request 5 (should be allowed)
+
+        // Many distinct users (e.g. per-IP limiting during a scrape) stay within the cap
+        SlidingWindowRateLimiter perIp = new SlidingWindowRateLimiter(3, 10, 1_000);
+        Date now = new Date();
+        for (int i = 0; i < 10_000; i++) {
+            perIp.allowRequest("10.0." + (i >> 8) + "." + (i & 0xFF), now);
+        }
+        System.out.println("Tracked users after 10000 distinct IPs: " + perIp.trackedUsers());
+
+        // Once the window has passed, idle users are dropped on the next request
+        perIp.allowRequest("10.1.0.1", new Date(now.getTime() + 10_000));
+        System.out.println("Tracked users after the window passed: " + perIp.trackedUsers());
     }
 }
@@ -11,7 +11,18 @@
 // O(1) time for both put and get
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.*;
+import java.util.function.Function;
 
 // Node for doubly linked list
 class Node<K, V> {
@@ -110,8 +121,371 @@ class LRUCache<K, V> {
     }
 }
 
+// Read-mostly LRU cache. get() is a lock-free ConcurrentHashMap lookup that
+// records the hit in a striped, lossy ring buffer instead of reordering the
+// list itself. Buffered reads are replayed against the LRU list in batches
+// by whichever thread wins a tryLock, so readers never block each other.
+// Recency is therefore slightly stale, and reads dropped from a full buffer
+// are simply not counted. Writes still take the lock and drain first.
+class ReadBufferedLRUCache<K, V> {
+    private static final int BUFFER_SIZE = 16; // per stripe, power of two
+    private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+
+    private final int capacity;
+    private final ConcurrentHashMap<K, Entry<K, V>> cache;
+    private final Entry<K, V> head, tail; // dummy nodes, guarded by lock
+    private final ReentrantLock lock;
+    private final ReadBuffer<K, V>[] readBuffers;
+    private final int stripeMask;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ReadBufferedLRUCache(int capacity) {
+        this.capacity = capacity;
+        this.cache = new ConcurrentHashMap<>();
+        this.lock = new ReentrantLock();
+
+        head = new Entry<>(null, null);
+        tail = new Entry<>(null, null);
+        head.next = tail;
+        tail.prev = head;
+
+        int stripes = Integer.highestOneBit(
+                Math.max(1, Runtime.getRuntime().availableProcessors()) * 4 - 1) << 1;
+        readBuffers = new ReadBuffer[stripes];
+        for (int i = 0; i < stripes; i++) {
+            readBuffers[i] = new ReadBuffer<>();
+        }
+        stripeMask = stripes - 1;
+    }
+
+    // Get value without taking the lock
+    public V get(K key) {
+        Entry<K, V> entry = cache.get(key);
+        if (entry == null) return null;
+
+        ReadBuffer<K, V> buffer = readBuffers[stripeIndex()];
+        if (!buffer.offer(entry)) {
+            // Stripe is full: drain if nobody else is, otherwise drop the read
+            tryDrain();
+        }
+        return entry.value;
+    }
+
+    // Put value
+    public void put(K key, V value) {
+        lock.lock();
+        try {
+            drainReadBuffers();
+
+            Entry<K, V> entry = cache.get(key);
+            if (entry != null) {
+                entry.value = value;
+                remove(entry);
+                insertToFront(entry);
+                return;
+            }
+
+            if (cache.size() == capacity) {
+                // Evict LRU from end
+                Entry<K, V> lru = tail.prev;
+                remove(lru);
+                cache.remove(lru.key);
+            }
+            Entry<K, V> newEntry = new Entry<>(key, value);
+            cache.put(key, newEntry);
+            insertToFront(newEntry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void printCache() {
+        lock.lock();
+        try {
+            drainReadBuffers();
+            Entry<K, V> curr = head.next;
+            System.out.print("Cache (MRU → LRU): ");
+            while (curr != tail) {
+                System.out.print(curr.key + "=" + curr.value + " ");
+                curr = curr.next;
+            }
+            System.out.println();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int stripeIndex() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+        return h & stripeMask;
+    }
+
+    private void tryDrain() {
+        if (lock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // --- Helper: replay buffered reads; caller holds the lock ---
+    private void drainReadBuffers() {
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            buffer.drainTo(this);
+        }
+    }
+
+    private void onAccess(Entry<K, V> entry) {
+        // Entries evicted after the read was buffered are already unlinked
+        if (entry.prev == null) return;
+        remove(entry);
+        insertToFront(entry);
+    }
+
+    // --- Helper: Remove from linked list ---
+    private void remove(Entry<K, V> entry) {
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    // --- Helper: Insert entry after head (MRU) ---
+    private void insertToFront(Entry<K, V> entry) {
+        entry.next = head.next;
+        entry.prev = head;
+        head.next.prev = entry;
+        head.next = entry;
+    }
+
+    private static class Entry<K, V> {
+        final K key;
+        volatile V value;
+        Entry<K, V> prev, next; // guarded by the cache lock
+
+        Entry(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    // Bounded multi-producer ring; only the lock holder consumes
+    private static class ReadBuffer<K, V> {
+        private final AtomicReferenceArray<Entry<K, V>> slots =
+                new AtomicReferenceArray<>(BUFFER_SIZE);
+        private final AtomicLong writeCounter = new AtomicLong();
+        private volatile long readCounter;
+
+        boolean offer(Entry<K, V> entry) {
+            long tail = writeCounter.get();
+            if (tail - readCounter >= BUFFER_SIZE) return false;
+
+            // Losing the race just drops this read, which is fine for recency
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                slots.lazySet((int) (tail & BUFFER_MASK), entry);
+            }
+            return true;
+        }
+
+        void drainTo(ReadBufferedLRUCache<K, V> cache) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            while (head < tail) {
+                int index = (int) (head & BUFFER_MASK);
+                Entry<K, V> entry = slots.get(index);
+                // Producer claimed the slot but has not published yet
+                if (entry == null) break;
+                slots.lazySet(index, null);
+                cache.onAccess(entry);
+                head++;
+            }
+            readCounter = head;
+        }
+    }
+}
+
+// Loading cache on top of LRUCache. Misses call a loader, and concurrent
+// misses for the same key share one in-flight CompletableFuture, so a hot
+// key expiring costs the backing store a single load instead of a stampede.
+// Entries expire expireAfterWriteMillis after they were loaded; with
+// refreshAheadMillis > 0 a read inside that final window still returns the
+// current value but triggers one background reload.
+class LoadingLRUCache<K, V> {
+    private final LRUCache<K, Loaded<V>> cache;
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight;
+    private final long expireAfterWriteMillis;
+    private final long refreshAheadMillis;
+    private final Executor executor;
+
+    public LoadingLRUCache(int capacity, long expireAfterWriteMillis) {
+        this(capacity, expireAfterWriteMillis, 0, ForkJoinPool.commonPool());
+    }
+
+    public LoadingLRUCache(int capacity,
+                           long expireAfterWriteMillis,
+                           long refreshAheadMillis,
+                           Executor executor) {
+        if (refreshAheadMillis < 0 || refreshAheadMillis >= expireAfterWriteMillis) {
+            throw new IllegalArgumentException("refreshAheadMillis must be in [0, expireAfterWriteMillis)");
+        }
+        this.cache = new LRUCache<>(capacity);
+        this.inFlight = new ConcurrentHashMap<>();
+        this.expireAfterWriteMillis = expireAfterWriteMillis;
+        this.refreshAheadMillis = refreshAheadMillis;
+        this.executor = executor;
+    }
+
+    // Blocking get: the caller that wins the race runs the loader itself
+    public V get(K key, Function<K, V> loader) {
+        V cached = getIfFresh(key, loader);
+        if (cached != null) return cached;
+
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing == null) {
+            load(key, loader, future);
+            existing = future;
+        }
+        return await(existing);
+    }
+
+    // Non-blocking get: misses load on the executor
+    public CompletableFuture<V> getAsync(K key, Function<K, V> loader) {
+        V cached = getIfFresh(key, loader);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+
+        return loadAsync(key, loader);
+    }
+
+    // Bulk get: every key that is neither cached nor already loading goes
+    // to bulkLoader in one call. Keys the loader omits map to null.
+    public Map<K, V> getAll(Collection<K> keys, Function<Set<K>, Map<K, V>> bulkLoader) {
+        Map<K, V> result = new LinkedHashMap<>();
+        Map<K, CompletableFuture<V>> pending = new LinkedHashMap<>();
+        Map<K, CompletableFuture<V>> owned = new LinkedHashMap<>();
+
+        for (K key : keys) {
+            Loaded<V> entry = cache.get(key);
+            if (entry != null && !entry.isExpired(now())) {
+                result.put(key, entry.value);
+                continue;
+            }
+            CompletableFuture<V> future = new CompletableFuture<>();
+            CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+            if (existing == null) {
+                owned.put(key, future);
+                existing = future;
+            }
+            pending.put(key, existing);
+        }
+
+        if (!owned.isEmpty()) {
+            try {
+                Map<K, V> loaded = bulkLoader.apply(Collections.unmodifiableSet(owned.keySet()));
+                for (Map.Entry<K, CompletableFuture<V>> e : owned.entrySet()) {
+                    complete(e.getKey(), loaded.get(e.getKey()), e.getValue());
+                }
+            } catch (RuntimeException e) {
+                for (Map.Entry<K, CompletableFuture<V>> owner : owned.entrySet()) {
+                    fail(owner.getKey(), e, owner.getValue());
+                }
+                throw e;
+            }
+        }
+
+        for (Map.Entry<K, CompletableFuture<V>> e : pending.entrySet()) {
+            result.put(e.getKey(), await(e.getValue()));
+        }
+        return result;
+    }
+
+    // --- Helper: cached value if present and not expired; may kick off refresh ---
+    private V getIfFresh(K key, Function<K, V> loader) {
+        Loaded<V> entry = cache.get(key);
+        if (entry == null) return null;
+
+        long now = now();
+        if (entry.isExpired(now)) return null;
+
+        if (refreshAheadMillis > 0 && now >= entry.expiresAt - refreshAheadMillis) {
+            loadAsync(key, loader);
+        }
+        return entry.value;
+    }
+
+    private CompletableFuture<V> loadAsync(K key, Function<K, V> loader) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) return existing;
+
+        try {
+            executor.execute(() -> load(key, loader, future));
+        } catch (RejectedExecutionException e) {
+            fail(key, e, future);
+        }
+        return future;
+    }
+
+    private void load(K key, Function<K, V> loader, CompletableFuture<V> future) {
+        V value;
+        try {
+            value = loader.apply(key);
+        } catch (Throwable t) {
+            fail(key, t, future);
+            return;
+        }
+        complete(key, value, future);
+    }
+
+    // Store before leaving inFlight so a new caller sees one or the other
+    private void complete(K key, V value, CompletableFuture<V> future) {
+        if (value != null) {
+            cache.put(key, new Loaded<>(value, now() + expireAfterWriteMillis));
+        }
+        inFlight.remove(key, future);
+        future.complete(value);
+    }
+
+    private void fail(K key, Throwable error, CompletableFuture<V> future) {
+        inFlight.remove(key, future);
+        future.completeExceptionally(error);
+    }
+
+    // Waits for a load, rethrowing the loader's own RuntimeException
+    // rather than the CompletionException wrapping it
+    private static <V> V await(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    private static long now() {
+        return System.currentTimeMillis();
+    }
+
+    private static class Loaded<V> {
+        final V value;
+        final long expiresAt;
+
+        Loaded(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
+
     public class LRUCacheDemo {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
         LRUCache<Integer, String> cache = new LRUCache<>(3);
 
         cache.put(1, "A");
@@ -126,6 +500,50 @@ class LRUCache<K, V> {
         cache.printCache(); // 4=D 1=A 3=C
 
         System.out.println("Get 2: " + cache.get(2)); // null
+
+        ReadBufferedLRUCache<Integer, String> buffered = new ReadBufferedLRUCache<>(3);
+
+        buffered.put(1, "A");
+        buffered.put(2, "B");
+        buffered.put(3, "C");
+
+        buffered.get(1);       // Recorded in the read buffer, applied on next write
+        buffered.put(4, "D");  // Drains reads, then evicts LRU (2)
+        buffered.printCache(); // 4=D 1=A 3=C
+
+        LoadingLRUCache<Integer, String> loading = new LoadingLRUCache<>(3, 10_000);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(5);
+
+        // Five concurrent misses on the same key share one load
+        for (int i = 0; i < 5; i++) {
+            new Thread(() -> {
+                loading.get(7, k -> {
+                    loads.incrementAndGet();
+                    sleepQuietly(200);
+                    return "value-" + k;
+                });
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        System.out.println("Loader calls for key 7: " + loads.get()); // 1
+
+        Map<Integer, String> all = loading.getAll(List.of(7, 8, 9), missing -> {
+            System.out.println("Bulk load: " + missing); // [8, 9]
+            Map<Integer, String> values = new HashMap<>();
+            for (Integer k : missing) values.put(k, "value-" + k);
+            return values;
+        });
+        System.out.println(all); // {7=value-7, 8=value-8, 9=value-9}
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
 